@@ -0,0 +1,110 @@
+package cb.quiz.picocache.factory;
+
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bolts.Continuation;
+import bolts.Task;
+import cb.quiz.picocache.iface.IPicoAsyncCache;
+import cb.quiz.picocache.iface.IPicoCache;
+import cb.quiz.picocache.iface.IPicoLoader;
+
+/**
+ * Run the calls of a blocking IPicoCache on a dedicated I/O executor and coalesce the
+ * concurrent loads of the same key. The threads live until close.
+ */
+class AsyncCacheStore implements IPicoAsyncCache {
+
+    protected final IPicoCache mCache;
+    protected final ExecutorService mExecutor;
+
+    // The loads in flight by their keys, guarded by itself.
+    protected final HashMap<String, Task<byte[]>> mLoading = new HashMap<>();
+
+    /**
+     * @param cache The blocking cache.
+     * @param parallelism The number of the I/O threads.
+     */
+    public AsyncCacheStore(IPicoCache cache, int parallelism) {
+        mCache = cache;
+        mExecutor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "picocache-io-" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public Task<byte[]> getAsync(final String key) {
+        return Task.call(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                return mCache.get(key);
+            }
+        }, mExecutor);
+    }
+
+    @Override
+    public Task<Void> putAsync(final String key, final byte[] data) {
+        return Task.call(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                mCache.put(key, data);
+                return null;
+            }
+        }, mExecutor);
+    }
+
+    @Override
+    public Task<byte[]> getOrLoadAsync(final String key, final IPicoLoader loader) {
+        synchronized (mLoading) {
+            // A completed task could still be here until its continuation runs.
+            Task<byte[]> loading = mLoading.get(key);
+            if (loading != null && !loading.isCompleted()) {
+                return loading;
+            }
+
+            final Task<byte[]> task = Task.call(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws Exception {
+                    return mCache.get(key, loader);
+                }
+            }, mExecutor);
+
+            // Registered before the continuation, which may run right away.
+            mLoading.put(key, task);
+            task.continueWith(new Continuation<byte[], Void>() {
+                @Override
+                public Void then(Task<byte[]> done) throws Exception {
+                    synchronized (mLoading) {
+                        if (mLoading.get(key) == task) {
+                            mLoading.remove(key);
+                        }
+                    }
+                    return null;
+                }
+            });
+
+            return task;
+        }
+    }
+
+    @Override
+    public IPicoCache getCache() {
+        return mCache;
+    }
+
+    @Override
+    public void close() {
+        mExecutor.shutdown();
+    }
+}
@@ -0,0 +1,149 @@
+package cb.quiz.picocache.factory;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+abstract class BaseNode implements ICacheNode {
+
+    protected String mKey = null;
+
+    // The weight counted by the store.
+    protected long mWeight = 0;
+
+    // The timer expiring the node, read by the lock-free readers.
+    protected volatile TimerWheel.Timer mTimer = null;
+
+    // Links used by CacheNodeList.
+    protected ICacheNode mPrev = null;
+    protected ICacheNode mNext = null;
+
+    @Override
+    public void setKey(String key) throws IllegalArgumentException {
+        if (key.length() <= 0) {
+            throw new IllegalArgumentException("Key cannot be empty.");
+        }
+
+        mKey = key;
+    }
+
+    @Override
+    public String getKey() {
+        return mKey;
+    }
+
+    @Override
+    public void setData(byte[] value) throws IllegalArgumentException {
+        if (value.length == 0) {
+            throw new IllegalArgumentException("The given byte array is empty.");
+        }
+    }
+
+    @Override
+    public byte[] getData() {
+        return null;
+    }
+
+    @Override
+    public ByteBuffer getBuffer() {
+        byte[] data = getData();
+        return data != null ? ByteBuffer.wrap(data).asReadOnlyBuffer() : null;
+    }
+
+    /**
+     * The data is never written in place, so the view of the current data stays intact anyway.
+     */
+    @Override
+    public Pin pin() {
+        ByteBuffer buffer = getBuffer();
+        return buffer != null ? new Pin(buffer) : null;
+    }
+
+    /**
+     * Read the pinned data, which is in memory anyway.
+     */
+    @Override
+    public InputStream openInputStream() {
+        Pin pin = pin();
+        return pin != null ? new PinInputStream(pin) : null;
+    }
+
+    @Override
+    public ByteBuffer copyTo(BufferPool pool) {
+        Pin pin = pin();
+        if (pin == null) {
+            return null;
+        }
+
+        try {
+            ByteBuffer buffer = pool.acquire(pin.buffer.remaining());
+            buffer.put(pin.buffer.duplicate());
+            buffer.flip();
+            return buffer;
+        } finally {
+            pin.release();
+        }
+    }
+
+    @Override
+    public int size() {
+        return 0;
+    }
+
+    @Override
+    public long weight() {
+        return mWeight;
+    }
+
+    @Override
+    public void setWeight(long weight) {
+        mWeight = weight;
+    }
+
+    @Override
+    public TimerWheel.Timer getTimer() {
+        return mTimer;
+    }
+
+    @Override
+    public void setTimer(TimerWheel.Timer timer) {
+        mTimer = timer;
+    }
+
+    @Override
+    public boolean isKey(String key) {
+        return mKey.compareTo(key) == 0;
+    }
+
+    @Override
+    public void dispose() {
+        // Take the timer out of the wheel, the store holds the lock of the wheel.
+        TimerWheel.Timer timer = mTimer;
+        if (timer != null) {
+            timer.unlink();
+            mTimer = null;
+        }
+
+        mKey = null;
+    }
+
+    @Override
+    public ICacheNode getPrev() {
+        return mPrev;
+    }
+
+    @Override
+    public void setPrev(ICacheNode node) {
+        mPrev = node;
+    }
+
+    @Override
+    public ICacheNode getNext() {
+        return mNext;
+    }
+
+    @Override
+    public void setNext(ICacheNode node) {
+        mNext = node;
+    }
+
+}
@@ -0,0 +1,153 @@
+package cb.quiz.picocache.factory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-classed pools of ByteBuffers, so the short-lived buffers of the reads and writes are
+ * reused rather than allocated and collected over and over.
+ *
+ * The classes are the powers of two from MIN_CLASS_SHIFT to MAX_CLASS_SHIFT. A buffer is taken
+ * from the smallest class fitting the size and limited to the size, the larger ones are
+ * allocated as they are and never pooled. The idle buffers are bounded by MAX_POOLED_BYTES per
+ * pool, the ones released beyond that are left to the GC.
+ *
+ * The direct buffers live off the heap, they cost the collector nothing and the channels read
+ * and write them without a copy, but they are expensive to allocate, so they are only worth it
+ * pooled.
+ */
+class BufferPool {
+
+    // 4KB.
+    static final int MIN_CLASS_SHIFT = 12;
+    // 4MB.
+    static final int MAX_CLASS_SHIFT = 22;
+
+    static final long MAX_POOLED_BYTES = 32 << 20;
+
+    static final BufferPool HEAP = new BufferPool(false);
+    static final BufferPool DIRECT = new BufferPool(true);
+
+    protected final boolean mIsDirect;
+
+    // The idle buffers by their classes, guarded by the pool.
+    protected final ArrayDeque<ByteBuffer>[] mClasses;
+    protected long mPooledBytes = 0;
+
+    protected final AtomicLong mAllocations = new AtomicLong();
+    protected final AtomicLong mAllocatedBytes = new AtomicLong();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    BufferPool(boolean isDirect) {
+        mIsDirect = isDirect;
+        mClasses = new ArrayDeque[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1];
+
+        for (int i = 0; i < mClasses.length; ++i) {
+            mClasses[i] = new ArrayDeque<>();
+        }
+    }
+
+    boolean isDirect() {
+        return mIsDirect;
+    }
+
+    /**
+     * @param size The size in bytes.
+     * @return A buffer whose position is 0 and limit is the size, to be given back by release.
+     */
+    ByteBuffer acquire(int size) throws IllegalArgumentException {
+        if (size < 0) {
+            throw new IllegalArgumentException("The size is less than 0.");
+        }
+
+        int index = classOf(size);
+        if (index < 0) {
+            return allocate(size);
+        }
+
+        ByteBuffer buffer;
+        synchronized (this) {
+            buffer = mClasses[index].poll();
+            if (buffer != null) {
+                mPooledBytes -= buffer.capacity();
+            }
+        }
+
+        if (buffer == null) {
+            buffer = allocate(1 << (index + MIN_CLASS_SHIFT));
+        }
+
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * Give the buffer taken by acquire back to the pool, it must not be used afterwards.
+     */
+    void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.isDirect() != mIsDirect) {
+            return;
+        }
+
+        int capacity = buffer.capacity();
+        int index = classOf(capacity);
+
+        // Not one of the classes, e.g. a large buffer.
+        if (index < 0 || capacity != 1 << (index + MIN_CLASS_SHIFT)) {
+            return;
+        }
+
+        synchronized (this) {
+            if (mPooledBytes + capacity <= MAX_POOLED_BYTES) {
+                mClasses[index].push(buffer);
+                mPooledBytes += capacity;
+            }
+        }
+    }
+
+    /**
+     * @return The number of the buffers allocated so far.
+     */
+    long allocations() {
+        return mAllocations.get();
+    }
+
+    /**
+     * @return The bytes of the buffers allocated so far.
+     */
+    long allocatedBytes() {
+        return mAllocatedBytes.get();
+    }
+
+    /**
+     * @return The bytes of the idle buffers.
+     */
+    synchronized long pooledBytes() {
+        return mPooledBytes;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Protected/Private ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @return The index of the smallest class fitting the size, or -1 if it's too large.
+     */
+    protected static int classOf(int size) {
+        if (size <= 1 << MIN_CLASS_SHIFT) {
+            return 0;
+        } else if (size > 1 << MAX_CLASS_SHIFT) {
+            return -1;
+        }
+
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_CLASS_SHIFT;
+    }
+
+    protected ByteBuffer allocate(int capacity) {
+        mAllocations.incrementAndGet();
+        mAllocatedBytes.addAndGet(capacity);
+
+        return mIsDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+}
@@ -0,0 +1,277 @@
+package cb.quiz.picocache.factory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import cb.quiz.picocache.iface.IPicoCacheStats;
+
+class CacheNodeFactory implements ICacheNodeFactory {
+
+    private int mType;
+
+    // The log holding the data of the file nodes.
+    private SegmentLog mLog;
+
+    public CacheNodeFactory(int type) {
+        this(type, null);
+    }
+
+    public CacheNodeFactory(int type, SegmentLog log) {
+        mType = type;
+        mLog = log;
+    }
+
+    @Override
+    public ICacheNode create(String key, byte[] value) {
+        ICacheNode node = null;
+
+        switch (mType) {
+            case PicoCacheFactory.TYPE_MEMORY:
+                node = new MemoNode();
+                break;
+            case PicoCacheFactory.TYPE_FILE:
+                node = new FileNode(mLog);
+                break;
+        }
+
+        if (node != null) {
+            node.setKey(key);
+            node.setData(value);
+        }
+
+        return node;
+    }
+
+    @Override
+    public NodeOutputStream openOutputStream(String key) throws IOException {
+        if (mType != PicoCacheFactory.TYPE_FILE) {
+            return null;
+        }
+
+        return new NodeOutputStream(key, mLog.openWriter()) {
+            @Override
+            protected ICacheNode createNode(SegmentLog.Record record) {
+                return new FileNode(mLog, record);
+            }
+        };
+    }
+
+    @Override
+    public List<ICacheNode> restore() {
+        List<ICacheNode> nodes = new ArrayList<>();
+
+        if (mLog != null) {
+            for (SegmentLog.Record record : mLog.records()) {
+                nodes.add(new FileNode(mLog, record));
+            }
+        }
+
+        return nodes;
+    }
+
+    @Override
+    public long mappedSize() {
+        return mLog != null ? mLog.mappedBytes() : 0;
+    }
+
+    @Override
+    public void setCapacity(long bytes) {
+        // DO NOTHING.
+    }
+
+    @Override
+    public int backend() {
+        return mType == PicoCacheFactory.TYPE_FILE ? IPicoCacheStats.BACKEND_FILE :
+                IPicoCacheStats.BACKEND_MEMORY;
+    }
+
+    @Override
+    public void sortByLocation(List<ICacheNode> nodes) {
+        if (mLog == null) {
+            return;
+        }
+
+        List<SegmentLog.Record> records = new ArrayList<>(nodes.size());
+        for (ICacheNode node : nodes) {
+            records.add(node instanceof FileNode ? ((FileNode) node).mRecord : null);
+        }
+
+        mLog.sortByLocation(nodes, records);
+    }
+
+    @Override
+    public void flush() {
+        // DO NOTHING.
+    }
+
+    @Override
+    public void awaitCapacity() {
+        // DO NOTHING.
+    }
+
+    @Override
+    public void close() {
+        if (mLog != null) {
+            mLog.release();
+        }
+    }
+
+    @Override
+    public boolean isClosed() {
+        return mLog != null && mLog.isClosed();
+    }
+
+    @Override
+    public SlabStats slabStats() {
+        return null;
+    }
+
+    /**
+     * Read the value of the record into a buffer taken from the pool.
+     * @return The buffer, or null if the value is gone.
+     */
+    static ByteBuffer copyRecord(SegmentLog log, SegmentLog.Record record, BufferPool pool) {
+        ByteBuffer buffer = pool.acquire(record.mLength);
+
+        try {
+            if (log.read(record, buffer)) {
+                buffer.flip();
+                return buffer;
+            }
+        } catch (IOException e) {
+            // DO NOTHING.
+        }
+
+        pool.release(buffer);
+        return null;
+    }
+
+    private static class MemoNode extends BaseNode {
+
+        // Volatile so that the lock-free readers see the replaced data.
+        private volatile byte[] mValue = null;
+
+        @Override
+        public void setData(byte[] value) throws IllegalArgumentException {
+            super.setData(value);
+            mValue = value;
+        }
+
+        @Override
+        public byte[] getData() {
+            return mValue;
+        }
+
+        @Override
+        public int size() {
+            return mValue != null ? mValue.length : 0;
+        }
+
+        @Override
+        public void dispose() {
+            super.dispose();
+            mValue = null;
+        }
+
+    }
+
+    private static class FileNode extends BaseNode {
+
+        private final SegmentLog mLog;
+
+        // Replaced rather than reused by setData, so the open streams never see the new value.
+        private volatile SegmentLog.Record mRecord;
+        private int mSize = 0;
+
+        FileNode(SegmentLog log) {
+            mLog = log;
+            mRecord = new SegmentLog.Record();
+        }
+
+        FileNode(SegmentLog log, SegmentLog.Record record) {
+            mLog = log;
+            mRecord = record;
+            mSize = record.mLength;
+            setKey(record.mKey);
+        }
+
+        @Override
+        public void setData(byte[] value) throws IllegalArgumentException {
+            super.setData(value);
+
+            // The old value becomes dead space in its segment.
+            mLog.free(mRecord);
+            mSize = 0;
+
+            try {
+                SegmentLog.Record record = new SegmentLog.Record();
+                mLog.append(record, mKey, value);
+                mRecord = record;
+                mSize = value.length;
+            } catch (IOException e) {
+                // DO NOTHING.
+            }
+        }
+
+        @Override
+        public byte[] getData() {
+            try {
+                byte[] value = mLog.read(mRecord);
+
+                if (value != null && value.length == mSize) {
+                    return value;
+                }
+            } catch (IOException e) {
+                // DO NOTHING.
+            }
+
+            return null;
+        }
+
+        @Override
+        public ByteBuffer getBuffer() {
+            try {
+                ByteBuffer buffer = mLog.readBuffer(mRecord);
+
+                if (buffer != null && buffer.remaining() == mSize) {
+                    return buffer;
+                }
+            } catch (IOException e) {
+                // DO NOTHING.
+            }
+
+            return null;
+        }
+
+        @Override
+        public InputStream openInputStream() {
+            return mLog.openReader(mRecord);
+        }
+
+        /**
+         * Read straight into the buffer, without a copy on the heap.
+         */
+        @Override
+        public ByteBuffer copyTo(BufferPool pool) {
+            return copyRecord(mLog, mRecord, pool);
+        }
+
+        @Override
+        public int size() {
+            return mSize;
+        }
+
+        @Override
+        public void dispose() {
+            super.dispose();
+
+            mLog.free(mRecord);
+            mSize = 0;
+        }
+
+    }
+
+}
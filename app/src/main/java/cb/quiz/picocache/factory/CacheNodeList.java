@@ -0,0 +1,83 @@
+package cb.quiz.picocache.factory;
+
+/**
+ * An intrusive doubly linked-list of cache nodes. The links live in the nodes themselves so
+ * that removing or moving a node is O(1) without any search. A node can only be in one list
+ * at a time.
+ */
+class CacheNodeList {
+
+    protected ICacheNode mHead = null;
+    protected ICacheNode mTail = null;
+
+    protected int mCount = 0;
+
+    public ICacheNode first() {
+        return mHead;
+    }
+
+    public ICacheNode last() {
+        return mTail;
+    }
+
+    public int count() {
+        return mCount;
+    }
+
+    public boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    public void addLast(ICacheNode node) {
+        node.setPrev(mTail);
+        node.setNext(null);
+
+        if (mTail != null) {
+            mTail.setNext(node);
+        } else {
+            mHead = node;
+        }
+        mTail = node;
+
+        ++mCount;
+    }
+
+    public void remove(ICacheNode node) {
+        ICacheNode prev = node.getPrev();
+        ICacheNode next = node.getNext();
+
+        // Not in this list.
+        if (prev == null && mHead != node) {
+            return;
+        }
+
+        if (prev != null) {
+            prev.setNext(next);
+        } else {
+            mHead = next;
+        }
+        if (next != null) {
+            next.setPrev(prev);
+        } else {
+            mTail = prev;
+        }
+
+        node.setPrev(null);
+        node.setNext(null);
+
+        --mCount;
+    }
+
+    public void moveToLast(ICacheNode node) {
+        if (node != mTail) {
+            remove(node);
+            addLast(node);
+        }
+    }
+
+    public void clear() {
+        mHead = null;
+        mTail = null;
+        mCount = 0;
+    }
+}
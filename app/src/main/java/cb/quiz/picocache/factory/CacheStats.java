@@ -0,0 +1,148 @@
+package cb.quiz.picocache.factory;
+
+import cb.quiz.picocache.iface.IPicoCacheStats;
+
+/**
+ * An immutable snapshot of a StatsRecorder.
+ */
+class CacheStats implements IPicoCacheStats {
+
+    protected final long[] mCounters;
+
+    // The latency histograms by op * 2 + backend.
+    protected final long[][] mHistograms;
+
+    CacheStats(long[] counters, long[][] histograms) {
+        mCounters = counters;
+        mHistograms = histograms;
+    }
+
+    /**
+     * @return The snapshot of a store not recording anything.
+     */
+    static CacheStats empty() {
+        return new CacheStats(new long[StatsRecorder.COUNTERS],
+                new long[StatsRecorder.HISTOGRAMS][LATENCY_BUCKETS]);
+    }
+
+    /**
+     * Sum up the snapshots, e.g. of the segments of a concurrent cache.
+     */
+    static CacheStats sum(CacheStats[] all) {
+        CacheStats sum = empty();
+
+        for (CacheStats stats : all) {
+            for (int i = 0; i < StatsRecorder.COUNTERS; ++i) {
+                sum.mCounters[i] += stats.mCounters[i];
+            }
+            for (int h = 0; h < StatsRecorder.HISTOGRAMS; ++h) {
+                for (int i = 0; i < LATENCY_BUCKETS; ++i) {
+                    sum.mHistograms[h][i] += stats.mHistograms[h][i];
+                }
+            }
+        }
+
+        return sum;
+    }
+
+    @Override
+    public long getHitCount() {
+        return mCounters[StatsRecorder.HIT];
+    }
+
+    @Override
+    public long getMissCount() {
+        return mCounters[StatsRecorder.MISS];
+    }
+
+    @Override
+    public double getHitRate() {
+        long requests = getHitCount() + getMissCount();
+        return requests == 0 ? 1 : (double) getHitCount() / requests;
+    }
+
+    @Override
+    public long getPutCount() {
+        return mCounters[StatsRecorder.PUT];
+    }
+
+    @Override
+    public long getReplaceCount() {
+        return mCounters[StatsRecorder.REPLACE];
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return getEvictionCount(CAUSE_SIZE) + getEvictionCount(CAUSE_EXPIRED) +
+                getEvictionCount(CAUSE_LOST);
+    }
+
+    @Override
+    public long getEvictionCount(int cause) {
+        return mCounters[StatsRecorder.EVICTION + cause];
+    }
+
+    @Override
+    public long getEvictedBytes() {
+        return mCounters[StatsRecorder.EVICTED_BYTES + CAUSE_SIZE] +
+                mCounters[StatsRecorder.EVICTED_BYTES + CAUSE_EXPIRED] +
+                mCounters[StatsRecorder.EVICTED_BYTES + CAUSE_LOST];
+    }
+
+    @Override
+    public long getLoadSuccessCount() {
+        return mCounters[StatsRecorder.LOAD_SUCCESS];
+    }
+
+    @Override
+    public long getLoadFailureCount() {
+        return mCounters[StatsRecorder.LOAD_FAILURE];
+    }
+
+    @Override
+    public long getLatencyCount(int op, int backend) {
+        long count = 0;
+        for (long bucket : mHistograms[op * 2 + backend]) {
+            count += bucket;
+        }
+        return count;
+    }
+
+    @Override
+    public long[] getLatencyHistogram(int op, int backend) {
+        return mHistograms[op * 2 + backend].clone();
+    }
+
+    @Override
+    public long getLatencyPercentile(int op, int backend, double percentile) {
+        long[] histogram = mHistograms[op * 2 + backend];
+        long count = getLatencyCount(op, backend);
+
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+
+        for (int i = 0; i < histogram.length; ++i) {
+            seen += histogram[i];
+            if (seen >= rank) {
+                return 1L << (i + 1);
+            }
+        }
+
+        return 1L << histogram.length;
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + getHitCount() +
+                "; misses=" + getMissCount() +
+                "; puts=" + getPutCount() +
+                "; replaces=" + getReplaceCount() +
+                "; evictions=" + getEvictionCount() +
+                "; evicted bytes=" + getEvictedBytes() +
+                "; loads=" + getLoadSuccessCount() + "/" + getLoadFailureCount();
+    }
+}
@@ -0,0 +1,955 @@
+package cb.quiz.picocache.factory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import cb.quiz.picocache.iface.IPicoBuffer;
+import cb.quiz.picocache.iface.IPicoCache;
+import cb.quiz.picocache.iface.IPicoCacheStats;
+import cb.quiz.picocache.iface.IPicoLoader;
+import cb.quiz.picocache.iface.IPicoReader;
+import cb.quiz.picocache.iface.IPicoSlabStats;
+import cb.quiz.picocache.iface.IPicoWeigher;
+
+class CacheStore implements IPicoCache, ICacheNodeEvictor {
+
+    static final int DEFAULT_CACHE_SIZE = 20;
+
+    // Current total weight in bytes.
+    protected long mSize;
+
+    // Maximum total weight in bytes.
+    protected long mSizeMax;
+
+    // The hash index of the nodes, the order of the nodes is kept by the trimmer.
+    protected HashMap<String, ICacheNode> mIndex;
+
+    // The trimmer.
+    protected ICacheStoreTrimmer mTrimmer = null;
+
+    // The node factory.
+    protected ICacheNodeFactory mNodeFactory = null;
+
+    // Told about the trimmed nodes.
+    protected ICacheEvictionListener mEvictionListener = null;
+
+    // The cost model, null to count the size of the data only.
+    protected IPicoWeigher mWeigher = null;
+
+    // Coalesce the loads of the missing keys.
+    protected final SingleFlight mSingleFlight = new SingleFlight();
+
+    // Expire the nodes with a time to live, or all of them after an idle time.
+    protected final TimerWheel mWheel = new TimerWheel();
+
+    // Record the statistics, null if turned off.
+    protected volatile StatsRecorder mStats = null;
+
+    // Compress the data put from now on.
+    protected volatile boolean mIsCompressing = false;
+
+    // Share the identical data across the keys, null if it's never turned on.
+    protected DedupNodeFactory mDedup = null;
+
+    // The pool of the buffers of getPooled.
+    protected volatile BufferPool mPool = BufferPool.HEAP;
+
+    // Closed by close, the store cannot be used afterwards.
+    protected volatile boolean mIsClosed = false;
+
+    public CacheStore(ICacheNodeFactory factory, ICacheStoreTrimmer trimmer) {
+        mSize = 0;
+        mSizeMax = DEFAULT_CACHE_SIZE;
+        mIndex = new HashMap<>();
+        mTrimmer = trimmer;
+        mNodeFactory = factory;
+        mNodeFactory.setCapacity(mSizeMax);
+    }
+
+    @Override
+    public synchronized void setCacheSize(int kb) throws IllegalArgumentException {
+        if (kb <= 0) {
+            throw new IllegalArgumentException("The cache size is either less/equal than 0" +
+                    " or greater than Integer.MAX_VALUE");
+        }
+
+        setMaxSize((long) kb << 10);
+    }
+
+    /**
+     * Set the maximum cache size in bytes.
+     * @param bytes Numbers in bytes.
+     */
+    public synchronized void setMaxSize(long bytes) {
+        mSizeMax = bytes;
+        trim();
+
+        mNodeFactory.setCapacity(bytes);
+    }
+
+    /**
+     * @return The maximum cache size in bytes.
+     */
+    public synchronized long maxSize() {
+        return mSizeMax;
+    }
+
+    @Override
+    public synchronized void setWeigher(IPicoWeigher weigher) {
+        mWeigher = weigher;
+
+        mSize = 0;
+        for (ICacheNode node : mIndex.values()) {
+            mSize += weigh(mWeigher, node);
+        }
+
+        trim();
+    }
+
+    /**
+     * @return The weight of an entry of the given key and size.
+     */
+    public synchronized long weightOf(String key, int size) {
+        return weigh(mWeigher, key, size);
+    }
+
+    @Override
+    public synchronized void setExpireAfterAccess(long ms) throws IllegalArgumentException {
+        if (ms < 0) {
+            throw new IllegalArgumentException("The expiry time is less than 0");
+        }
+
+        long now = TimerWheel.now();
+        mWheel.setExpireAfterAccess(ms);
+
+        // Reschedule all the nodes, the access time starts from now.
+        for (ICacheNode node : mIndex.values()) {
+            TimerWheel.Timer timer = node.getTimer();
+            mWheel.schedule(node, timer != null && timer.ttlDeadline != Long.MAX_VALUE ?
+                    Math.max(1, timer.ttlDeadline - now) : 0, now);
+        }
+
+        expire();
+    }
+
+    /**
+     * @return The time to live left of the key in milliseconds, 0 if it never expires or the key
+     * is missing.
+     */
+    synchronized long timeToLive(String key) {
+        ICacheNode current = mIndex.get(key);
+        TimerWheel.Timer timer = current != null ? current.getTimer() : null;
+
+        if (timer == null || timer.ttlDeadline == Long.MAX_VALUE) {
+            return 0;
+        }
+
+        return Math.max(1, timer.ttlDeadline - TimerWheel.now());
+    }
+
+    @Override
+    public synchronized void setStatsEnabled(boolean enabled) {
+        if (!enabled) {
+            mStats = null;
+        } else if (mStats == null) {
+            mStats = new StatsRecorder(mNodeFactory.backend());
+        }
+    }
+
+    @Override
+    public void setCompressionEnabled(boolean enabled) {
+        mIsCompressing = enabled;
+    }
+
+    /**
+     * No-op for the file caches, which keep their data by key across a restart.
+     */
+    @Override
+    public synchronized void setDedupEnabled(boolean enabled) {
+        if (mNodeFactory.backend() == IPicoCacheStats.BACKEND_FILE) {
+            return;
+        }
+
+        if (mDedup == null) {
+            if (!enabled) {
+                return;
+            }
+
+            mDedup = new DedupNodeFactory(mNodeFactory);
+            mNodeFactory = mDedup;
+        }
+
+        mDedup.setEnabled(enabled);
+    }
+
+    @Override
+    public void setDirectBuffersEnabled(boolean enabled) {
+        mPool = enabled ? BufferPool.DIRECT : BufferPool.HEAP;
+    }
+
+    @Override
+    public CacheStats getStats() {
+        StatsRecorder stats = mStats;
+        return stats != null ? stats.snapshot() : CacheStats.empty();
+    }
+
+    public synchronized void setEvictionListener(ICacheEvictionListener listener) {
+        mEvictionListener = listener;
+    }
+
+    /**
+     * Pin the data paired with given key.
+     * @return The pin, or null if the key is missing.
+     */
+    synchronized Pin pin(String key) {
+        checkOpen();
+
+        StatsRecorder stats = mStats;
+        long start = stats != null ? System.nanoTime() : 0;
+        Pin pin = null;
+
+        try {
+            ICacheNode current = lookup(key, expire());
+
+            if (current != null) {
+                // Let the trimmer know the access order.
+                if (mTrimmer != null) {
+                    mTrimmer.onAccess(current);
+                }
+
+                pin = current.pin();
+
+                // The data is lost, e.g. the file is deleted behind the cache.
+                if (pin == null) {
+                    evict(current, IPicoCacheStats.CAUSE_LOST);
+                }
+            }
+        } catch (Exception e) {
+            // DO NOTHING.
+        }
+
+        if (stats != null) {
+            stats.record(pin != null ? StatsRecorder.HIT : StatsRecorder.MISS);
+            stats.recordLatency(IPicoCacheStats.OP_GET, start);
+        }
+
+        return pin;
+    }
+
+    /**
+     * Open a stream of the data paired with given key as it's stored.
+     * @return The stream, or null if the key is missing.
+     */
+    synchronized InputStream openNodeInput(String key) {
+        checkOpen();
+
+        StatsRecorder stats = mStats;
+        long start = stats != null ? System.nanoTime() : 0;
+        InputStream in = null;
+
+        try {
+            ICacheNode current = lookup(key, expire());
+
+            if (current != null) {
+                // Let the trimmer know the access order.
+                if (mTrimmer != null) {
+                    mTrimmer.onAccess(current);
+                }
+
+                in = current.openInputStream();
+
+                // The data is lost, e.g. the file is deleted behind the cache.
+                if (in == null) {
+                    evict(current, IPicoCacheStats.CAUSE_LOST);
+                }
+            }
+        } catch (Exception e) {
+            // DO NOTHING.
+        }
+
+        if (stats != null) {
+            stats.record(in != null ? StatsRecorder.HIT : StatsRecorder.MISS);
+            stats.recordLatency(IPicoCacheStats.OP_GET, start);
+        }
+
+        return in;
+    }
+
+    /**
+     * @return The stream writing the data of a new node, or null if the node factory doesn't
+     * stream the data.
+     */
+    synchronized NodeOutputStream openNodeStream(String key) throws IOException {
+        checkOpen();
+
+        return mNodeFactory.openOutputStream(key);
+    }
+
+    /**
+     * Put the node written by a NodeOutputStream, replacing the current one of its key. The
+     * node never expires.
+     * @return True if the key was in the store.
+     */
+    synchronized boolean putNode(ICacheNode node) {
+        checkOpen();
+
+        String key = node.getKey();
+        boolean isReplaced = remove(key);
+        long now = expire();
+
+        mIndex.put(key, node);
+        mSize += weigh(mWeigher, node);
+        mWheel.schedule(node, 0, now);
+
+        if (mTrimmer != null) {
+            mTrimmer.onAdd(node);
+        }
+
+        StatsRecorder stats = mStats;
+        if (stats != null) {
+            stats.record(StatsRecorder.PUT);
+            if (isReplaced) {
+                stats.record(StatsRecorder.REPLACE);
+            }
+        }
+
+        // Trim the cache if it is overflowed.
+        trim();
+
+        return isReplaced;
+    }
+
+    /**
+     * @return True if the data paired with given key is in the store, expired or not.
+     */
+    synchronized boolean contains(String key) {
+        return mIndex.containsKey(key);
+    }
+
+    /**
+     * Remove the data paired with given key.
+     * @param key The key paired with the data.
+     * @return True if the data was in the store.
+     */
+    public synchronized boolean remove(String key) {
+        ICacheNode current = mIndex.remove(key);
+
+        if (current == null) {
+            return false;
+        }
+
+        if (mTrimmer != null) {
+            mTrimmer.onRemove(current);
+        }
+        mSize -= current.weight();
+        current.dispose();
+        settle();
+
+        return true;
+    }
+
+    /**
+     * Put back the data left on the disk. The store is not trimmed, it's up to the following put
+     * or setCacheSize.
+     */
+    void restore() {
+        for (ICacheNode node : mNodeFactory.restore()) {
+            restore(node);
+        }
+    }
+
+    /**
+     * Put back a node restored from the disk.
+     */
+    synchronized void restore(ICacheNode node) {
+        mIndex.put(node.getKey(), node);
+        mSize += weigh(mWeigher, node);
+        mWheel.schedule(node, 0, TimerWheel.now());
+
+        if (mTrimmer != null) {
+            mTrimmer.onAdd(node);
+        }
+    }
+
+    /**
+     * Evict the node reclaimed by the node factory, e.g. by the slab allocator running out of
+     * memory.
+     */
+    @Override
+    public synchronized void evict(ICacheNode node) {
+        // The data shared by the keys goes with all of them.
+        if (mDedup != null) {
+            for (ICacheNode referrer : mDedup.referrersOf(node)) {
+                evict(referrer, IPicoCacheStats.CAUSE_SIZE);
+            }
+        }
+
+        evict(node, IPicoCacheStats.CAUSE_SIZE);
+    }
+
+    @Override
+    public void put(String key, byte[] data) throws IllegalArgumentException {
+        put(key, data, 0);
+    }
+
+    /**
+     * Not synchronized, the data is compressed and the factory waits for room out of the lock.
+     */
+    @Override
+    public void put(String key, byte[] data, long ttl) throws IllegalArgumentException {
+        StatsRecorder stats = mStats;
+        long start = stats != null ? System.nanoTime() : 0;
+
+        mNodeFactory.awaitCapacity();
+        putEncoded(key, Compressor.encode(data, mIsCompressing), ttl);
+
+        if (stats != null) {
+            stats.recordLatency(IPicoCacheStats.OP_PUT, start);
+        }
+    }
+
+    /**
+     * Not synchronized, the data is compressed and the factory waits for room out of the lock.
+     */
+    @Override
+    public void putAll(Map<String, byte[]> entries) throws IllegalArgumentException {
+        mNodeFactory.awaitCapacity();
+
+        if (!mIsCompressing) {
+            putAllEncoded(entries);
+            return;
+        }
+
+        HashMap<String, byte[]> encoded = new HashMap<>();
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            encoded.put(entry.getKey(), Compressor.encode(entry.getValue(), true));
+        }
+        putAllEncoded(encoded);
+    }
+
+    /**
+     * Put the data as encoded by the Compressor, e.g. demoted from another store.
+     */
+    synchronized void putEncoded(String key, byte[] data, long ttl)
+            throws IllegalArgumentException {
+        if (ttl < 0) {
+            throw new IllegalArgumentException("The time to live is less than 0");
+        }
+        checkOpen();
+
+        try {
+            insert(key, data, ttl, expire());
+
+            // Trim the cache if it is overflowed.
+            trim();
+        } catch (Exception e) {
+            // DO NOTHING.
+        }
+    }
+
+    synchronized void putAllEncoded(Map<String, byte[]> entries) {
+        checkOpen();
+
+        long now = expire();
+
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            try {
+                insert(entry.getKey(), entry.getValue(), 0, now);
+            } catch (Exception e) {
+                // DO NOTHING.
+            }
+        }
+
+        // Trim once for the whole batch.
+        trim();
+    }
+
+    @Override
+    public synchronized byte[] get(String key) {
+        checkOpen();
+
+        StatsRecorder stats = mStats;
+        long start = stats != null ? System.nanoTime() : 0;
+        byte[] data = null;
+
+        try {
+            ICacheNode current = lookup(key, expire());
+
+            if (current != null) {
+                // Let the trimmer know the access order.
+                if (mTrimmer != null) {
+                    mTrimmer.onAccess(current);
+                }
+
+                data = Compressor.decode(current.getData());
+
+                // The data is lost, e.g. the file is deleted behind the cache.
+                if (data == null) {
+                    evict(current, IPicoCacheStats.CAUSE_LOST);
+                }
+            }
+        } catch (Exception e) {
+            // DO NOTHING.
+        }
+
+        if (stats != null) {
+            stats.record(data != null ? StatsRecorder.HIT : StatsRecorder.MISS);
+            stats.recordLatency(IPicoCacheStats.OP_GET, start);
+        }
+
+        return data;
+    }
+
+    @Override
+    public byte[] get(String key, IPicoLoader loader) {
+        // Not synchronized, the loader must not hold the store.
+        return mSingleFlight.get(this, key, loader, mStats);
+    }
+
+    @Override
+    public synchronized Map<String, byte[]> getAll(Collection<String> keys) {
+        checkOpen();
+
+        StatsRecorder stats = mStats;
+        long start = stats != null ? System.nanoTime() : 0;
+
+        HashMap<String, byte[]> result = new HashMap<>();
+        ArrayList<ICacheNode> nodes = new ArrayList<>(keys.size());
+        long now = expire();
+
+        for (String key : keys) {
+            ICacheNode current = lookup(key, now);
+
+            if (current != null) {
+                // Let the trimmer know the access order, in the order of the keys.
+                if (mTrimmer != null) {
+                    mTrimmer.onAccess(current);
+                }
+
+                if (!result.containsKey(key)) {
+                    result.put(key, null);
+                    nodes.add(current);
+                }
+            }
+        }
+
+        // Read the disk sequentially.
+        mNodeFactory.sortByLocation(nodes);
+
+        for (ICacheNode node : nodes) {
+            String key = node.getKey();
+            byte[] data = null;
+
+            try {
+                data = Compressor.decode(node.getData());
+            } catch (Exception e) {
+                // DO NOTHING.
+            }
+
+            if (data != null) {
+                result.put(key, data);
+            } else {
+                // The data is lost, e.g. the file is deleted behind the cache.
+                result.remove(key);
+                evict(node, IPicoCacheStats.CAUSE_LOST);
+            }
+        }
+
+        // The batch is timed as a single get.
+        if (stats != null) {
+            stats.record(StatsRecorder.HIT, result.size());
+            stats.record(StatsRecorder.MISS, keys.size() - result.size());
+            stats.recordLatency(IPicoCacheStats.OP_GET, start);
+        }
+
+        return result;
+    }
+
+    @Override
+    public synchronized ByteBuffer getBuffer(String key) {
+        checkOpen();
+
+        StatsRecorder stats = mStats;
+        long start = stats != null ? System.nanoTime() : 0;
+        ByteBuffer buffer = null;
+
+        try {
+            ICacheNode current = lookup(key, expire());
+
+            if (current != null) {
+                // Let the trimmer know the access order.
+                if (mTrimmer != null) {
+                    mTrimmer.onAccess(current);
+                }
+
+                buffer = Compressor.decode(current.getBuffer());
+
+                // The data is lost, e.g. the file is deleted behind the cache.
+                if (buffer == null) {
+                    evict(current, IPicoCacheStats.CAUSE_LOST);
+                }
+            }
+        } catch (Exception e) {
+            // DO NOTHING.
+        }
+
+        if (stats != null) {
+            stats.record(buffer != null ? StatsRecorder.HIT : StatsRecorder.MISS);
+            stats.recordLatency(IPicoCacheStats.OP_GET, start);
+        }
+
+        return buffer;
+    }
+
+    /**
+     * Not synchronized, the data is pinned rather than the store locked while being read.
+     */
+    @Override
+    public <T> T read(String key, IPicoReader<T> reader) {
+        Pin pin = pin(key);
+
+        if (pin == null) {
+            return null;
+        }
+
+        try {
+            ByteBuffer data = Compressor.decode(pin.buffer);
+            return data != null ? reader.read(key, data) : null;
+        } finally {
+            pin.release();
+        }
+    }
+
+    @Override
+    public synchronized IPicoBuffer getPooled(String key) {
+        checkOpen();
+
+        StatsRecorder stats = mStats;
+        long start = stats != null ? System.nanoTime() : 0;
+        PooledBuffer buffer = null;
+
+        try {
+            ICacheNode current = lookup(key, expire());
+
+            if (current != null) {
+                // Let the trimmer know the access order.
+                if (mTrimmer != null) {
+                    mTrimmer.onAccess(current);
+                }
+
+                buffer = PooledBuffer.copyOf(mPool, current);
+
+                // The data is lost, e.g. the file is deleted behind the cache.
+                if (buffer == null) {
+                    evict(current, IPicoCacheStats.CAUSE_LOST);
+                }
+            }
+        } catch (Exception e) {
+            // DO NOTHING.
+        }
+
+        if (stats != null) {
+            stats.record(buffer != null ? StatsRecorder.HIT : StatsRecorder.MISS);
+            stats.recordLatency(IPicoCacheStats.OP_GET, start);
+        }
+
+        return buffer;
+    }
+
+    /**
+     * Not synchronized, the chunks are written out of the lock. The entry is collected on the
+     * heap unless the node factory streams it, e.g. to the disk.
+     */
+    @Override
+    public OutputStream openOutputStream(final String key) throws IOException {
+        if (key.length() <= 0) {
+            throw new IllegalArgumentException("Key cannot be empty.");
+        }
+
+        return new EntryOutputStream(openNodeStream(key)) {
+            @Override
+            protected void commit(ICacheNode node) {
+                putNode(node);
+            }
+
+            @Override
+            protected void commit(byte[] data) {
+                putEncoded(key, data, 0);
+            }
+        };
+    }
+
+    /**
+     * Not synchronized, the data is read in chunks out of the lock.
+     */
+    @Override
+    public InputStream openInputStream(String key) throws IOException {
+        InputStream in = openNodeInput(key);
+        if (in == null) {
+            return null;
+        }
+
+        try {
+            return Compressor.decode(in);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public synchronized long size() {
+        // The expired nodes don't count.
+        expire();
+
+        return mSize;
+    }
+
+    @Override
+    public long mappedSize() {
+        return mNodeFactory.mappedSize();
+    }
+
+    @Override
+    public IPicoSlabStats getSlabStats() {
+        return mNodeFactory.slabStats();
+    }
+
+    @Override
+    public void flush() {
+        // The writer never takes the lock of the store.
+        mNodeFactory.flush();
+    }
+
+    @Override
+    public synchronized void clear() {
+        mSingleFlight.clear();
+
+        if (!mIndex.isEmpty()) {
+            for (ICacheNode node : mIndex.values()) {
+                node.dispose();
+            }
+            mIndex.clear();
+            mSize = 0;
+            settle();
+
+            if (mTrimmer != null) {
+                mTrimmer.clear();
+            }
+        }
+    }
+
+    /**
+     * Drop the nodes and release the node factory, e.g. the reference to the SegmentLog. The
+     * data on the disk is kept for the next store rather than disposed like clear does.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (mIsClosed) {
+                return;
+            }
+            mIsClosed = true;
+
+            mSingleFlight.clear();
+            mIndex.clear();
+            mSize = 0;
+
+            if (mTrimmer != null) {
+                mTrimmer.clear();
+            }
+        }
+
+        // Not under the lock, the factory may write the staged data first.
+        mNodeFactory.close();
+    }
+
+    /**
+     * Insert or replace the node of the key without trimming, the caller holds the lock.
+     * @param ttl The time to live in milliseconds, 0 if it never expires.
+     * @param now The current time of the wheel.
+     */
+    protected void insert(String key, byte[] data, long ttl, long now)
+            throws IllegalArgumentException {
+        // Check whether the given key is already in the store.
+        ICacheNode current = mIndex.get(key);
+
+        if (current != null) {
+            // Replace the data in place, the trimmer decides whether it is an access.
+            mSize -= current.weight();
+            current.setData(data);
+            mSize += weigh(mWeigher, current);
+            mWheel.schedule(current, ttl, now);
+
+            if (mTrimmer != null) {
+                mTrimmer.onAccess(current);
+            }
+
+            StatsRecorder stats = mStats;
+            if (stats != null) {
+                stats.record(StatsRecorder.PUT);
+                stats.record(StatsRecorder.REPLACE);
+            }
+        } else {
+            // Use node factory to create responsive cache node.
+            ICacheNode node = mNodeFactory.create(key, data);
+
+            mIndex.put(key, node);
+            mSize += weigh(mWeigher, node);
+            mWheel.schedule(node, ttl, now);
+
+            if (mTrimmer != null) {
+                mTrimmer.onAdd(node);
+            }
+
+            StatsRecorder stats = mStats;
+            if (stats != null) {
+                stats.record(StatsRecorder.PUT);
+            }
+        }
+    }
+
+    protected void checkOpen() throws IllegalStateException {
+        if (mIsClosed) {
+            throw new IllegalStateException("The cache is closed.");
+        } else if (mNodeFactory.isClosed()) {
+            throw new IllegalStateException("The files are taken over by another cache.");
+        }
+    }
+
+    /**
+     * Find the node of the key, the expired node is removed and the hit is an access.
+     * @return The live node or null.
+     */
+    protected ICacheNode lookup(String key, long now) {
+        ICacheNode current = mIndex.get(key);
+
+        // The wheel is coarser than a millisecond, so check the deadline itself.
+        if (current != null && !mWheel.touch(current, now)) {
+            evict(current, IPicoCacheStats.CAUSE_EXPIRED);
+            return null;
+        }
+
+        return current;
+    }
+
+    /**
+     * Advance the wheel and remove the expired nodes, the caller holds the lock.
+     * @return The current time of the wheel.
+     */
+    protected long expire() {
+        long now = TimerWheel.now();
+
+        for (ICacheNode node : mWheel.advance(now)) {
+            evict(node, IPicoCacheStats.CAUSE_EXPIRED);
+        }
+
+        return now;
+    }
+
+    /**
+     * Remove the node if it's still in the store and count the eviction.
+     * @param cause One of IPicoCacheStats.CAUSE_*.
+     */
+    protected void evict(ICacheNode node, int cause) {
+        String key = node.getKey();
+
+        if (key != null && mIndex.get(key) == node) {
+            long weight = node.weight();
+            remove(key);
+
+            StatsRecorder stats = mStats;
+            if (stats != null) {
+                stats.recordEviction(cause, 1, weight);
+            }
+        }
+    }
+
+    /**
+     * Trim the store to the maximum size and count the evictions, the caller holds the lock.
+     */
+    protected void trim() {
+        settle();
+
+        if (mTrimmer == null) {
+            return;
+        }
+
+        // Trim again if the trimmed nodes handed their shared data over.
+        do {
+            int count = mIndex.size();
+            long size = mSize;
+
+            mSize = mTrimmer.trim(mIndex, mSize, mSizeMax, mEvictionListener);
+
+            StatsRecorder stats = mStats;
+            if (stats != null && mIndex.size() < count) {
+                stats.recordEviction(IPicoCacheStats.CAUSE_SIZE, count - mIndex.size(),
+                        size - mSize);
+            }
+        } while (settle() && mSize > mSizeMax);
+    }
+
+    /**
+     * Weigh the nodes again which have taken the shared data over from the removed ones, the
+     * caller holds the lock.
+     * @return True if any node is weighed again.
+     */
+    protected boolean settle() {
+        if (mDedup == null) {
+            return false;
+        }
+
+        boolean isSettled = false;
+
+        for (ICacheNode node : mDedup.drainTransfers()) {
+            String key = node.getKey();
+
+            if (key != null && mIndex.get(key) == node) {
+                mSize -= node.weight();
+                mSize += weigh(mWeigher, node);
+                isSettled = true;
+            }
+        }
+
+        return isSettled;
+    }
+
+    /**
+     * @param weigher The weigher, or null to count the size of the data only.
+     * @return The weight of an entry of the given key and size.
+     */
+    static long weigh(IPicoWeigher weigher, String key, int size) {
+        return weigher != null ? Math.max(0, weigher.weigh(key, size)) : size;
+    }
+
+    /**
+     * Weigh the node and keep the weight in it, so the same weight is subtracted on removal.
+     * @param weigher The weigher, or null to count the size of the data only.
+     * @return The weight.
+     */
+    static long weigh(IPicoWeigher weigher, ICacheNode node) {
+        long weight = weigh(weigher, node.getKey(), node.size());
+        node.setWeight(weight);
+
+        return weight;
+    }
+
+    @Override
+    public synchronized String toString() {
+        String ret = super.toString().concat("\n");
+
+        for (ICacheNode current : mIndex.values()) {
+            ret = ret.concat("key=" + current.getKey()
+                    + "; data size=" + current.size() + "\n");
+        }
+
+        return ret;
+    }
+}
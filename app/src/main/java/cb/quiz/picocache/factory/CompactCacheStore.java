@@ -0,0 +1,886 @@
+package cb.quiz.picocache.factory;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import cb.quiz.picocache.iface.IPicoBuffer;
+import cb.quiz.picocache.iface.IPicoCache;
+import cb.quiz.picocache.iface.IPicoCacheStats;
+import cb.quiz.picocache.iface.IPicoLoader;
+import cb.quiz.picocache.iface.IPicoReader;
+import cb.quiz.picocache.iface.IPicoSlabStats;
+import cb.quiz.picocache.iface.IPicoWeigher;
+
+/**
+ * A memory cache without any object per entry, for millions of small entries.
+ *
+ * The index is an open-addressing table of parallel primitive arrays: the 64-bit hashes of the
+ * keys, the locations of the entries, their weights and access ticks, with linear probing and
+ * backward-shift deletion. The keys and the data are packed together in an arena of byte pages,
+ * a key is only read back to verify a match of the hash. An entry is never written in place, a
+ * replaced one becomes garbage and the live entries are copied to new pages once the garbage
+ * outweighs them, so the views handed out stay intact.
+ *
+ * There's no ordered structure to trim, the least recently used of SAMPLES random entries is
+ * evicted like SampledTrimmer does. The deadlines and the access times are only allocated once
+ * a time to live or an idle time is used, and the expired entries are dropped lazily when they
+ * are read or sampled.
+ */
+class CompactCacheStore implements IPicoCache {
+
+    // The number of the candidates per eviction.
+    static final int SAMPLES = SampledTrimmer.SAMPLES;
+
+    // The size of a page of the arena, a larger entry takes a page of its own.
+    static final int PAGE_SIZE = 256 << 10;
+
+    // The key length (2 bytes) and the data length (4 bytes) in front of an entry.
+    static final int ENTRY_HEADER = 6;
+
+    static final int MAX_KEY_LENGTH = 0xffff;
+
+    private static final int MIN_CAPACITY = 16;
+
+    // Grow the table beyond this load, in percent.
+    private static final int MAX_LOAD_PERCENT = 70;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Current total weight in bytes.
+    protected long mSize = 0;
+
+    // Maximum total weight in bytes.
+    protected long mSizeMax = CacheStore.DEFAULT_CACHE_SIZE;
+
+    // The cost model, null to count the size of the data only.
+    protected IPicoWeigher mWeigher = null;
+
+    // The table, a slot is empty if its hash is 0. The locations are the page in the high 32
+    // bits and the offset in the low ones.
+    protected long[] mHashes = new long[MIN_CAPACITY];
+    protected long[] mLocations = new long[MIN_CAPACITY];
+    protected int[] mWeights = new int[MIN_CAPACITY];
+    protected int[] mTicks = new int[MIN_CAPACITY];
+    protected int mCount = 0;
+
+    // The deadlines in the time of TimerWheel, 0 if never expires, null until a time to live.
+    protected long[] mDeadlines = null;
+
+    // The last access times, null unless the entries expire after access.
+    protected long[] mAccessed = null;
+    protected long mExpireAfterAccess = 0;
+
+    // The access clock, compared with wrapping.
+    protected int mClock = 0;
+
+    // The state of the xorshift generator picking the samples.
+    protected long mSeed = 0x9e3779b97f4a7c15L;
+
+    // The arena, the current page takes the entries until it's full.
+    protected byte[][] mPages = new byte[4][];
+    protected int mPageCount = 0;
+    protected int mCurrent = -1;
+    protected int mPageUsed = 0;
+
+    // The bytes of all the pages and of the live entries in them.
+    protected long mArenaBytes = 0;
+    protected long mLiveBytes = 0;
+
+    // Coalesce the loads of the missing keys.
+    protected final SingleFlight mSingleFlight = new SingleFlight();
+
+    // Record the statistics, null if turned off.
+    protected volatile StatsRecorder mStats = null;
+
+    // Compress the data put from now on.
+    protected volatile boolean mIsCompressing = false;
+
+    // The pool of the buffers of getPooled.
+    protected volatile BufferPool mPool = BufferPool.HEAP;
+
+    // Closed by close, the store cannot be used afterwards.
+    protected volatile boolean mIsClosed = false;
+
+    @Override
+    public void put(String key, byte[] data) throws IllegalArgumentException {
+        put(key, data, 0);
+    }
+
+    /**
+     * Not synchronized, the data is compressed out of the lock.
+     */
+    @Override
+    public void put(String key, byte[] data, long ttl) throws IllegalArgumentException {
+        if (ttl < 0) {
+            throw new IllegalArgumentException("The time to live is less than 0");
+        }
+
+        StatsRecorder stats = mStats;
+        long start = stats != null ? System.nanoTime() : 0;
+
+        putEncoded(key, Compressor.encode(data, mIsCompressing), ttl);
+
+        if (stats != null) {
+            stats.recordLatency(IPicoCacheStats.OP_PUT, start);
+        }
+    }
+
+    /**
+     * Not synchronized, the data is compressed out of the lock.
+     */
+    @Override
+    public void putAll(Map<String, byte[]> entries) throws IllegalArgumentException {
+        HashMap<String, byte[]> encoded = new HashMap<>();
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            encoded.put(entry.getKey(), Compressor.encode(entry.getValue(), mIsCompressing));
+        }
+
+        synchronized (this) {
+            checkOpen();
+
+            for (Map.Entry<String, byte[]> entry : encoded.entrySet()) {
+                try {
+                    insert(entry.getKey(), entry.getValue(), 0);
+                } catch (Exception e) {
+                    // DO NOTHING.
+                }
+            }
+
+            // Trim once for the whole batch.
+            trim();
+        }
+    }
+
+    @Override
+    public synchronized byte[] get(String key) {
+        checkOpen();
+
+        StatsRecorder stats = mStats;
+        long start = stats != null ? System.nanoTime() : 0;
+        byte[] data = null;
+
+        try {
+            int slot = lookup(key);
+
+            if (slot >= 0) {
+                long location = mLocations[slot];
+                byte[] page = mPages[(int) (location >>> 32)];
+                int offset = (int) location;
+                int from = offset + ENTRY_HEADER + keyLength(page, offset);
+
+                data = Compressor.decode(Arrays.copyOfRange(page, from,
+                        from + dataLength(page, offset)));
+            }
+        } catch (Exception e) {
+            // DO NOTHING.
+        }
+
+        if (stats != null) {
+            stats.record(data != null ? StatsRecorder.HIT : StatsRecorder.MISS);
+            stats.recordLatency(IPicoCacheStats.OP_GET, start);
+        }
+
+        return data;
+    }
+
+    @Override
+    public synchronized Map<String, byte[]> getAll(Collection<String> keys) {
+        Map<String, byte[]> result = new HashMap<>();
+
+        for (String key : keys) {
+            byte[] data = get(key);
+
+            if (data != null) {
+                result.put(key, data);
+            }
+        }
+
+        return result;
+    }
+
+    @Override
+    public byte[] get(String key, IPicoLoader loader) {
+        // Not synchronized, the loader must not hold the store.
+        return mSingleFlight.get(this, key, loader, mStats);
+    }
+
+    @Override
+    public ByteBuffer getBuffer(String key) {
+        return Compressor.decode(view(key));
+    }
+
+    /**
+     * Not synchronized, the pages are never written in place, so the view needs no pin.
+     */
+    @Override
+    public <T> T read(String key, IPicoReader<T> reader) {
+        ByteBuffer data = getBuffer(key);
+        return data != null ? reader.read(key, data) : null;
+    }
+
+    @Override
+    public IPicoBuffer getPooled(String key) {
+        return PooledBuffer.copyOf(mPool, getBuffer(key));
+    }
+
+    @Override
+    public void setDirectBuffersEnabled(boolean enabled) {
+        mPool = enabled ? BufferPool.DIRECT : BufferPool.HEAP;
+    }
+
+    /**
+     * The entry is collected on the heap, it's held in the arena anyway.
+     */
+    @Override
+    public OutputStream openOutputStream(final String key) {
+        if (key.length() <= 0) {
+            throw new IllegalArgumentException("Key cannot be empty.");
+        }
+
+        return new EntryOutputStream(null) {
+            @Override
+            protected void commit(ICacheNode node) {
+                // DO NOTHING, there's no node stream.
+            }
+
+            @Override
+            protected void commit(byte[] data) {
+                putEncoded(key, data, 0);
+            }
+        };
+    }
+
+    @Override
+    public InputStream openInputStream(String key) {
+        ByteBuffer buffer = getBuffer(key);
+        return buffer != null ? new PinInputStream(new Pin(buffer)) : null;
+    }
+
+    /**
+     * The expired entries count until they're dropped.
+     */
+    @Override
+    public synchronized long size() {
+        return mSize;
+    }
+
+    @Override
+    public long mappedSize() {
+        return 0;
+    }
+
+    @Override
+    public IPicoSlabStats getSlabStats() {
+        return null;
+    }
+
+    @Override
+    public void setCompressionEnabled(boolean enabled) {
+        mIsCompressing = enabled;
+    }
+
+    /**
+     * No-op, the entries don't have any node to share the data.
+     */
+    @Override
+    public void setDedupEnabled(boolean enabled) {
+        // DO NOTHING.
+    }
+
+    @Override
+    public synchronized void setStatsEnabled(boolean enabled) {
+        if (!enabled) {
+            mStats = null;
+        } else if (mStats == null) {
+            mStats = new StatsRecorder(IPicoCacheStats.BACKEND_MEMORY);
+        }
+    }
+
+    @Override
+    public CacheStats getStats() {
+        StatsRecorder stats = mStats;
+        return stats != null ? stats.snapshot() : CacheStats.empty();
+    }
+
+    @Override
+    public void flush() {
+        // DO NOTHING.
+    }
+
+    @Override
+    public synchronized void clear() {
+        mSingleFlight.clear();
+
+        mHashes = new long[MIN_CAPACITY];
+        mLocations = new long[MIN_CAPACITY];
+        mWeights = new int[MIN_CAPACITY];
+        mTicks = new int[MIN_CAPACITY];
+        mDeadlines = null;
+        mAccessed = mAccessed != null ? new long[MIN_CAPACITY] : null;
+        mCount = 0;
+        mSize = 0;
+
+        mPages = new byte[4][];
+        mPageCount = 0;
+        mCurrent = -1;
+        mArenaBytes = 0;
+        mLiveBytes = 0;
+    }
+
+    /**
+     * The entries are in memory, so it's clear plus the store cannot be used afterwards.
+     */
+    @Override
+    public synchronized void close() {
+        mIsClosed = true;
+        clear();
+    }
+
+    @Override
+    public synchronized void setCacheSize(int kb) throws IllegalArgumentException {
+        if (kb <= 0) {
+            throw new IllegalArgumentException("The cache size is either less/equal than 0" +
+                    " or greater than Integer.MAX_VALUE");
+        }
+
+        mSingleFlight.clear();
+
+        mSizeMax = (long) kb << 10;
+        trim();
+    }
+
+    @Override
+    public synchronized void setExpireAfterAccess(long ms) throws IllegalArgumentException {
+        if (ms < 0) {
+            throw new IllegalArgumentException("The expiry time is less than 0");
+        }
+
+        mExpireAfterAccess = ms;
+
+        // The access time starts from now.
+        if (ms > 0) {
+            mAccessed = new long[mHashes.length];
+            Arrays.fill(mAccessed, TimerWheel.now());
+        } else {
+            mAccessed = null;
+        }
+    }
+
+    @Override
+    public synchronized void setWeigher(IPicoWeigher weigher) {
+        mWeigher = weigher;
+
+        mSize = 0;
+        for (int slot = 0; slot < mHashes.length; ++slot) {
+            if (mHashes[slot] != 0) {
+                long location = mLocations[slot];
+                byte[] page = mPages[(int) (location >>> 32)];
+                int offset = (int) location;
+                String key = new String(page, offset + ENTRY_HEADER, keyLength(page, offset),
+                        UTF_8);
+
+                mWeights[slot] = weigh(key, dataLength(page, offset));
+                mSize += mWeights[slot];
+            }
+        }
+
+        trim();
+    }
+
+    @Override
+    public synchronized String toString() {
+        String ret = super.toString().concat("\n");
+
+        for (int slot = 0; slot < mHashes.length; ++slot) {
+            if (mHashes[slot] != 0) {
+                long location = mLocations[slot];
+                byte[] page = mPages[(int) (location >>> 32)];
+                int offset = (int) location;
+
+                ret = ret.concat("key=" + new String(page, offset + ENTRY_HEADER,
+                        keyLength(page, offset), UTF_8)
+                        + "; data size=" + dataLength(page, offset) + "\n");
+            }
+        }
+
+        return ret;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Protected/Private ///////////////////////////////////////////////////////////////////////////
+
+    protected void checkOpen() throws IllegalStateException {
+        if (mIsClosed) {
+            throw new IllegalStateException("The cache is closed.");
+        }
+    }
+
+    /**
+     * Put the data as encoded by the Compressor.
+     */
+    protected synchronized void putEncoded(String key, byte[] data, long ttl) {
+        checkOpen();
+
+        try {
+            insert(key, data, ttl);
+
+            // Trim the cache if it is overflowed.
+            trim();
+        } catch (Exception e) {
+            // DO NOTHING.
+        }
+    }
+
+    /**
+     * Insert or replace the entry of the key without trimming, the caller holds the lock.
+     * @param ttl The time to live in milliseconds, 0 if it never expires.
+     */
+    protected void insert(String key, byte[] data, long ttl) throws IllegalArgumentException {
+        if (data.length == 0) {
+            throw new IllegalArgumentException("The given byte array is empty.");
+        }
+
+        byte[] keyBytes = encodeKey(key);
+        long hash = hash(keyBytes);
+        int slot = find(hash, keyBytes);
+
+        StatsRecorder stats = mStats;
+        if (stats != null) {
+            stats.record(StatsRecorder.PUT);
+        }
+
+        if (slot >= 0) {
+            // The old entry becomes garbage in the arena.
+            mLiveBytes -= entryLength(mLocations[slot]);
+            mSize -= mWeights[slot];
+
+            if (stats != null) {
+                stats.record(StatsRecorder.REPLACE);
+            }
+        } else {
+            if ((mCount + 1) * 100L > (long) mHashes.length * MAX_LOAD_PERCENT) {
+                resize(mHashes.length * 2);
+            }
+
+            slot = (int) hash & (mHashes.length - 1);
+            while (mHashes[slot] != 0) {
+                slot = (slot + 1) & (mHashes.length - 1);
+            }
+
+            mHashes[slot] = hash;
+            ++mCount;
+        }
+
+        mLocations[slot] = write(keyBytes, data);
+        mWeights[slot] = weigh(key, data.length);
+        mTicks[slot] = ++mClock;
+        mSize += mWeights[slot];
+
+        long now = ttl > 0 || mAccessed != null ? TimerWheel.now() : 0;
+        if (ttl > 0) {
+            if (mDeadlines == null) {
+                mDeadlines = new long[mHashes.length];
+            }
+            mDeadlines[slot] = now + ttl;
+        } else if (mDeadlines != null) {
+            mDeadlines[slot] = 0;
+        }
+        if (mAccessed != null) {
+            mAccessed[slot] = now;
+        }
+    }
+
+    /**
+     * Find the entry of the key, the expired one is removed and the hit is an access.
+     * @return The slot of the live entry or -1.
+     */
+    protected int lookup(String key) {
+        byte[] keyBytes = encodeKey(key);
+        int slot = find(hash(keyBytes), keyBytes);
+
+        if (slot < 0) {
+            return -1;
+        }
+
+        long now = mDeadlines != null || mAccessed != null ? TimerWheel.now() : 0;
+        if (isExpired(slot, now)) {
+            evict(slot, IPicoCacheStats.CAUSE_EXPIRED);
+            return -1;
+        }
+
+        mTicks[slot] = ++mClock;
+        if (mAccessed != null) {
+            mAccessed[slot] = now;
+        }
+
+        return slot;
+    }
+
+    /**
+     * @return The read-only view of the stored data of the key, or null if it's missing.
+     */
+    protected synchronized ByteBuffer view(String key) {
+        checkOpen();
+
+        StatsRecorder stats = mStats;
+        long start = stats != null ? System.nanoTime() : 0;
+        ByteBuffer view = null;
+
+        try {
+            int slot = lookup(key);
+
+            if (slot >= 0) {
+                long location = mLocations[slot];
+                byte[] page = mPages[(int) (location >>> 32)];
+                int offset = (int) location;
+
+                view = ByteBuffer.wrap(page, offset + ENTRY_HEADER + keyLength(page, offset),
+                        dataLength(page, offset)).slice().asReadOnlyBuffer();
+            }
+        } catch (Exception e) {
+            // DO NOTHING.
+        }
+
+        if (stats != null) {
+            stats.record(view != null ? StatsRecorder.HIT : StatsRecorder.MISS);
+            stats.recordLatency(IPicoCacheStats.OP_GET, start);
+        }
+
+        return view;
+    }
+
+    /**
+     * @return The slot of the key, or -1 if it's missing.
+     */
+    protected int find(long hash, byte[] keyBytes) {
+        int mask = mHashes.length - 1;
+        int slot = (int) hash & mask;
+
+        while (mHashes[slot] != 0) {
+            if (mHashes[slot] == hash && isKey(slot, keyBytes)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Compare the key kept in the arena, the hashes could collide.
+     */
+    protected boolean isKey(int slot, byte[] keyBytes) {
+        long location = mLocations[slot];
+        byte[] page = mPages[(int) (location >>> 32)];
+        int offset = (int) location;
+
+        if (keyLength(page, offset) != keyBytes.length) {
+            return false;
+        }
+
+        offset += ENTRY_HEADER;
+        for (int i = 0; i < keyBytes.length; ++i) {
+            if (page[offset + i] != keyBytes[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    protected boolean isExpired(int slot, long now) {
+        return (mDeadlines != null && mDeadlines[slot] != 0 && now >= mDeadlines[slot]) ||
+                (mAccessed != null && now - mAccessed[slot] >= mExpireAfterAccess);
+    }
+
+    /**
+     * Trim the store to the maximum size and count the evictions, the caller holds the lock.
+     */
+    protected void trim() {
+        if (mSize > mSizeMax && mCount > 0) {
+            long now = mDeadlines != null || mAccessed != null ? TimerWheel.now() : 0;
+
+            while (mSize > mSizeMax && mCount > 0) {
+                int slot = sample(now);
+                evict(slot, isExpired(slot, now) ? IPicoCacheStats.CAUSE_EXPIRED :
+                        IPicoCacheStats.CAUSE_SIZE);
+            }
+        }
+
+        // Copy the live entries to new pages once the garbage outweighs them.
+        if (mArenaBytes > 2 * mLiveBytes + 2 * PAGE_SIZE) {
+            compactArena();
+        }
+    }
+
+    /**
+     * @return The slot of the least recently used of the samples, an expired one is taken right
+     * away. All the entries are the samples if there are no more than SAMPLES of them.
+     */
+    protected int sample(long now) {
+        int mask = mHashes.length - 1;
+        int victim = -1;
+
+        if (mCount <= SAMPLES) {
+            for (int slot = 0; slot < mHashes.length; ++slot) {
+                if (mHashes[slot] != 0 && (victim < 0 || mTicks[slot] - mTicks[victim] < 0)) {
+                    victim = slot;
+                }
+            }
+            return victim;
+        }
+
+        for (int i = 0; i < SAMPLES; ++i) {
+            int slot = (int) (nextRandom() >>> 33) & mask;
+            while (mHashes[slot] == 0) {
+                slot = (slot + 1) & mask;
+            }
+
+            if (isExpired(slot, now)) {
+                return slot;
+            } else if (victim < 0 || mTicks[slot] - mTicks[victim] < 0) {
+                victim = slot;
+            }
+        }
+
+        return victim;
+    }
+
+    /**
+     * Remove the entry and count the eviction.
+     * @param cause One of IPicoCacheStats.CAUSE_*.
+     */
+    protected void evict(int slot, int cause) {
+        long weight = mWeights[slot];
+        remove(slot);
+
+        StatsRecorder stats = mStats;
+        if (stats != null) {
+            stats.recordEviction(cause, 1, weight);
+        }
+    }
+
+    /**
+     * Empty the slot and shift the following slots of the probe sequence back, so the lookups
+     * never stop at a hole.
+     */
+    protected void remove(int slot) {
+        mSize -= mWeights[slot];
+        mLiveBytes -= entryLength(mLocations[slot]);
+        --mCount;
+
+        int mask = mHashes.length - 1;
+        int hole = slot;
+        int current = (slot + 1) & mask;
+
+        while (mHashes[current] != 0) {
+            int home = (int) mHashes[current] & mask;
+
+            // Move the entry into the hole unless its home lies cyclically in (hole, current].
+            if (((current - home) & mask) >= ((current - hole) & mask)) {
+                move(current, hole);
+                hole = current;
+            }
+            current = (current + 1) & mask;
+        }
+
+        mHashes[hole] = 0;
+    }
+
+    protected void move(int from, int to) {
+        mHashes[to] = mHashes[from];
+        mLocations[to] = mLocations[from];
+        mWeights[to] = mWeights[from];
+        mTicks[to] = mTicks[from];
+
+        if (mDeadlines != null) {
+            mDeadlines[to] = mDeadlines[from];
+        }
+        if (mAccessed != null) {
+            mAccessed[to] = mAccessed[from];
+        }
+    }
+
+    protected void resize(int capacity) {
+        long[] hashes = mHashes;
+        long[] locations = mLocations;
+        int[] weights = mWeights;
+        int[] ticks = mTicks;
+        long[] deadlines = mDeadlines;
+        long[] accessed = mAccessed;
+
+        mHashes = new long[capacity];
+        mLocations = new long[capacity];
+        mWeights = new int[capacity];
+        mTicks = new int[capacity];
+        mDeadlines = deadlines != null ? new long[capacity] : null;
+        mAccessed = accessed != null ? new long[capacity] : null;
+
+        int mask = capacity - 1;
+        for (int i = 0; i < hashes.length; ++i) {
+            if (hashes[i] == 0) {
+                continue;
+            }
+
+            int slot = (int) hashes[i] & mask;
+            while (mHashes[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+
+            mHashes[slot] = hashes[i];
+            mLocations[slot] = locations[i];
+            mWeights[slot] = weights[i];
+            mTicks[slot] = ticks[i];
+            if (deadlines != null) {
+                mDeadlines[slot] = deadlines[i];
+            }
+            if (accessed != null) {
+                mAccessed[slot] = accessed[i];
+            }
+        }
+    }
+
+    /**
+     * Append the entry to the arena.
+     * @return The location of the entry.
+     */
+    protected long write(byte[] keyBytes, byte[] data) {
+        int length = ENTRY_HEADER + keyBytes.length + data.length;
+        long location = allocate(length);
+        byte[] page = mPages[(int) (location >>> 32)];
+        int offset = (int) location;
+
+        page[offset] = (byte) (keyBytes.length >>> 8);
+        page[offset + 1] = (byte) keyBytes.length;
+        page[offset + 2] = (byte) (data.length >>> 24);
+        page[offset + 3] = (byte) (data.length >>> 16);
+        page[offset + 4] = (byte) (data.length >>> 8);
+        page[offset + 5] = (byte) data.length;
+        System.arraycopy(keyBytes, 0, page, offset + ENTRY_HEADER, keyBytes.length);
+        System.arraycopy(data, 0, page, offset + ENTRY_HEADER + keyBytes.length, data.length);
+
+        mLiveBytes += length;
+        return location;
+    }
+
+    /**
+     * @return The location of the given bytes in the arena.
+     */
+    protected long allocate(int length) {
+        if (length > PAGE_SIZE / 2) {
+            return (long) addPage(new byte[length]) << 32;
+        }
+
+        if (mCurrent < 0 || mPageUsed + length > PAGE_SIZE) {
+            mCurrent = addPage(new byte[PAGE_SIZE]);
+            mPageUsed = 0;
+        }
+
+        long location = ((long) mCurrent << 32) | mPageUsed;
+        mPageUsed += length;
+        return location;
+    }
+
+    protected int addPage(byte[] page) {
+        if (mPageCount == mPages.length) {
+            mPages = Arrays.copyOf(mPages, mPages.length * 2);
+        }
+
+        mPages[mPageCount] = page;
+        mArenaBytes += page.length;
+        return mPageCount++;
+    }
+
+    /**
+     * Copy the live entries to new pages and drop the old ones, whose views stay intact.
+     */
+    protected void compactArena() {
+        byte[][] pages = mPages;
+
+        mPages = new byte[4][];
+        mPageCount = 0;
+        mCurrent = -1;
+        mArenaBytes = 0;
+
+        for (int slot = 0; slot < mHashes.length; ++slot) {
+            if (mHashes[slot] == 0) {
+                continue;
+            }
+
+            long location = mLocations[slot];
+            byte[] page = pages[(int) (location >>> 32)];
+            int offset = (int) location;
+            int length = ENTRY_HEADER + keyLength(page, offset) + dataLength(page, offset);
+
+            long moved = allocate(length);
+            System.arraycopy(page, offset, mPages[(int) (moved >>> 32)], (int) moved, length);
+            mLocations[slot] = moved;
+        }
+    }
+
+    protected int entryLength(long location) {
+        byte[] page = mPages[(int) (location >>> 32)];
+        int offset = (int) location;
+
+        return ENTRY_HEADER + keyLength(page, offset) + dataLength(page, offset);
+    }
+
+    protected static int keyLength(byte[] page, int offset) {
+        return ((page[offset] & 0xff) << 8) | (page[offset + 1] & 0xff);
+    }
+
+    protected static int dataLength(byte[] page, int offset) {
+        return ((page[offset + 2] & 0xff) << 24) | ((page[offset + 3] & 0xff) << 16) |
+                ((page[offset + 4] & 0xff) << 8) | (page[offset + 5] & 0xff);
+    }
+
+    protected int weigh(String key, int size) {
+        return (int) Math.min(Integer.MAX_VALUE, CacheStore.weigh(mWeigher, key, size));
+    }
+
+    protected static byte[] encodeKey(String key) throws IllegalArgumentException {
+        if (key.length() <= 0) {
+            throw new IllegalArgumentException("Key cannot be empty.");
+        }
+
+        byte[] bytes = key.getBytes(UTF_8);
+        if (bytes.length > MAX_KEY_LENGTH) {
+            throw new IllegalArgumentException("The key is longer than " + MAX_KEY_LENGTH +
+                    " bytes.");
+        }
+
+        return bytes;
+    }
+
+    /**
+     * FNV-1a spread by the finalizer of MurmurHash3, never 0 which marks an empty slot.
+     */
+    protected static long hash(byte[] keyBytes) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : keyBytes) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+
+        return hash != 0 ? hash : 1;
+    }
+
+    protected long nextRandom() {
+        mSeed ^= mSeed << 13;
+        mSeed ^= mSeed >>> 7;
+        mSeed ^= mSeed << 17;
+        return mSeed;
+    }
+}
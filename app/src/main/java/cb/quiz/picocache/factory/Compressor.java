@@ -0,0 +1,326 @@
+package cb.quiz.picocache.factory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compress the data of the entries with Deflater.
+ *
+ * A compressed value is framed by a header of MAGIC, the method and the original length. The
+ * data is only compressed if it shrinks to MAX_RATIO or less, otherwise it's kept raw without
+ * any header, so the poorly compressible data costs nothing but the attempt. The output buffer
+ * is cut at MAX_RATIO, so the attempt gives up as soon as the data is known to compress poorly.
+ * A raw value starting with MAGIC is framed as stored, so any value can be decoded, whether the
+ * compression was on or off when it was put.
+ *
+ * The streamed values are decoded on the fly, chunk by chunk.
+ *
+ * The Deflaters and Inflaters hold native memory and are expensive to create, so they are
+ * pooled.
+ */
+class Compressor {
+
+    // Too small to gain anything after the header.
+    static final int MIN_SIZE = 256;
+
+    // Keep the data raw unless it's compressed to this ratio or less.
+    static final float MAX_RATIO = 0.875f;
+
+    static final byte METHOD_STORED = 0;
+    static final byte METHOD_DEFLATED = 1;
+
+    private static final byte[] MAGIC = {(byte) 0x8a, 'P', 'Z', 0x1a};
+
+    // The magic, the method and the original length.
+    static final int HEADER_SIZE = MAGIC.length + 1 + 4;
+
+    private static final int MAX_POOLED =
+            Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+    private static final ArrayDeque<Deflater> sDeflaters = new ArrayDeque<>();
+    private static final ArrayDeque<Inflater> sInflaters = new ArrayDeque<>();
+
+    /**
+     * @param data The raw data.
+     * @param isCompressing True to try compressing the data.
+     * @return The data to store, the given array itself if it's kept raw.
+     */
+    static byte[] encode(byte[] data, boolean isCompressing) {
+        if (data == null) {
+            return null;
+        }
+
+        if (isCompressing && data.length >= MIN_SIZE) {
+            byte[] compressed = deflate(data);
+            if (compressed != null) {
+                return compressed;
+            }
+        }
+
+        // Escape the raw data looking like a frame.
+        if (isFramed(data)) {
+            byte[] stored = new byte[HEADER_SIZE + data.length];
+            writeHeader(stored, METHOD_STORED, data.length);
+            System.arraycopy(data, 0, stored, HEADER_SIZE, data.length);
+            return stored;
+        }
+
+        return data;
+    }
+
+    /**
+     * @param data The stored data.
+     * @return The raw data, the given array itself if it's raw, or null if it's corrupted.
+     */
+    static byte[] decode(byte[] data) {
+        if (data == null || !isFramed(data)) {
+            return data;
+        }
+
+        return unframe(data);
+    }
+
+    /**
+     * @param data The view of the stored data.
+     * @return The read-only view of the raw data, the given view itself if it's raw, or null if
+     * it's corrupted.
+     */
+    static ByteBuffer decode(ByteBuffer data) {
+        if (data == null || data.remaining() < HEADER_SIZE) {
+            return data;
+        }
+
+        int position = data.position();
+        for (int i = 0; i < MAGIC.length; ++i) {
+            if (data.get(position + i) != MAGIC[i]) {
+                return data;
+            }
+        }
+
+        byte[] framed = new byte[data.remaining()];
+        data.duplicate().get(framed);
+
+        byte[] raw = unframe(framed);
+        return raw != null ? ByteBuffer.wrap(raw).asReadOnlyBuffer() : null;
+    }
+
+    /**
+     * @param in The stream of the stored data, closed along with the returned one.
+     * @return The stream of the raw data, inflated while being read if it's compressed.
+     */
+    static InputStream decode(InputStream in) throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        int count = 0;
+
+        while (count < HEADER_SIZE) {
+            int read = in.read(header, count, HEADER_SIZE - count);
+            if (read < 0) {
+                break;
+            }
+            count += read;
+        }
+
+        if (!isFramed(header, count)) {
+            // Put the bytes back in front of the raw data.
+            return new SequenceInputStream(new ByteArrayInputStream(header, 0, count), in);
+        }
+
+        int method = header[MAGIC.length];
+        if (method == METHOD_STORED) {
+            return in;
+        } else if (method != METHOD_DEFLATED) {
+            in.close();
+            throw new IOException("The data is corrupted.");
+        }
+
+        final Inflater inflater = obtainInflater();
+        return new InflaterInputStream(in, inflater, 8 << 10) {
+            private boolean mIsClosed = false;
+
+            @Override
+            public void close() throws IOException {
+                if (mIsClosed) {
+                    return;
+                }
+                mIsClosed = true;
+
+                try {
+                    super.close();
+                } finally {
+                    recycle(inflater);
+                }
+            }
+        };
+    }
+
+    /**
+     * @param data The raw data.
+     * @param length The number of the bytes at the start of the data.
+     * @return True if the raw data looks like a frame, so it must be framed as stored.
+     */
+    static boolean isFramed(byte[] data, int length) {
+        if (length < HEADER_SIZE) {
+            return false;
+        }
+
+        for (int i = 0; i < MAGIC.length; ++i) {
+            if (data[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @param length The length of the raw data.
+     * @return The header of the raw data framed as stored.
+     */
+    static byte[] storedHeader(int length) {
+        byte[] header = new byte[HEADER_SIZE];
+        writeHeader(header, METHOD_STORED, length);
+        return header;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Protected/Private ///////////////////////////////////////////////////////////////////////////
+
+    private static boolean isFramed(byte[] data) {
+        return isFramed(data, data.length);
+    }
+
+    private static void writeHeader(byte[] frame, byte method, int length) {
+        System.arraycopy(MAGIC, 0, frame, 0, MAGIC.length);
+        frame[MAGIC.length] = method;
+        frame[MAGIC.length + 1] = (byte) (length >>> 24);
+        frame[MAGIC.length + 2] = (byte) (length >>> 16);
+        frame[MAGIC.length + 3] = (byte) (length >>> 8);
+        frame[MAGIC.length + 4] = (byte) length;
+    }
+
+    /**
+     * @return The frame of the compressed data, or null if the ratio is poor.
+     */
+    private static byte[] deflate(byte[] data) {
+        int limit = (int) (data.length * MAX_RATIO);
+
+        // Deflate into a pooled buffer, only the compressed bytes are copied out.
+        ByteBuffer buffer = BufferPool.HEAP.acquire(HEADER_SIZE + limit);
+        byte[] frame = buffer.array();
+        Deflater deflater = obtainDeflater();
+        int length = 0;
+
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+
+            while (!deflater.finished() && length < limit) {
+                length += deflater.deflate(frame, HEADER_SIZE + length, limit - length);
+            }
+
+            if (!deflater.finished()) {
+                return null;
+            }
+
+            writeHeader(frame, METHOD_DEFLATED, data.length);
+            return Arrays.copyOf(frame, HEADER_SIZE + length);
+        } finally {
+            recycle(deflater);
+            BufferPool.HEAP.release(buffer);
+        }
+    }
+
+    private static byte[] unframe(byte[] frame) {
+        int method = frame[MAGIC.length];
+        int size = ((frame[MAGIC.length + 1] & 0xff) << 24) |
+                ((frame[MAGIC.length + 2] & 0xff) << 16) |
+                ((frame[MAGIC.length + 3] & 0xff) << 8) |
+                (frame[MAGIC.length + 4] & 0xff);
+
+        if (method == METHOD_STORED) {
+            return size == frame.length - HEADER_SIZE ?
+                    Arrays.copyOfRange(frame, HEADER_SIZE, frame.length) : null;
+        } else if (method != METHOD_DEFLATED || size < 0) {
+            return null;
+        }
+
+        byte[] raw = new byte[size];
+        Inflater inflater = obtainInflater();
+        int inflated = 0;
+
+        try {
+            inflater.setInput(frame, HEADER_SIZE, frame.length - HEADER_SIZE);
+
+            while (!inflater.finished() && inflated < size) {
+                int count = inflater.inflate(raw, inflated, size - inflated);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += count;
+            }
+
+            if (!inflater.finished() || inflated != size) {
+                return null;
+            }
+        } catch (DataFormatException e) {
+            return null;
+        } finally {
+            recycle(inflater);
+        }
+
+        return raw;
+    }
+
+    private static Deflater obtainDeflater() {
+        Deflater deflater;
+        synchronized (sDeflaters) {
+            deflater = sDeflaters.poll();
+        }
+
+        return deflater != null ? deflater : new Deflater(Deflater.BEST_SPEED);
+    }
+
+    private static void recycle(Deflater deflater) {
+        deflater.reset();
+
+        synchronized (sDeflaters) {
+            if (sDeflaters.size() < MAX_POOLED) {
+                sDeflaters.push(deflater);
+                return;
+            }
+        }
+
+        deflater.end();
+    }
+
+    private static Inflater obtainInflater() {
+        Inflater inflater;
+        synchronized (sInflaters) {
+            inflater = sInflaters.poll();
+        }
+
+        return inflater != null ? inflater : new Inflater();
+    }
+
+    private static void recycle(Inflater inflater) {
+        inflater.reset();
+
+        synchronized (sInflaters) {
+            if (sInflaters.size() < MAX_POOLED) {
+                sInflaters.push(inflater);
+                return;
+            }
+        }
+
+        inflater.end();
+    }
+}
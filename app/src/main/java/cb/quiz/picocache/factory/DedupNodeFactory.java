@@ -0,0 +1,353 @@
+package cb.quiz.picocache.factory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Create the nodes sharing one copy of the identical data.
+ *
+ * Every distinct value is held once in a blob, a node of the inner factory, found by the hash of
+ * the value and compared byte by byte. The nodes of the keys point at the blob, which is
+ * disposed when the last of them is. Only the owner of a blob, the first node pointing at it,
+ * has the size of the data, the others have none, so the store counts the unique data only.
+ * Once the owner goes away, the next node takes the blob over and is reported by
+ * drainTransfers, so the store weighs it again.
+ *
+ * The factory is only touched under the lock of the store, except the reads of the data.
+ */
+class DedupNodeFactory implements ICacheNodeFactory {
+
+    protected final ICacheNodeFactory mInner;
+
+    // The blobs by the hash of their data, the ones with the same hash are chained.
+    protected final HashMap<Integer, Blob> mBlobs = new HashMap<>();
+
+    // The blobs by their inner nodes.
+    protected final IdentityHashMap<ICacheNode, Blob> mBlobsByNode = new IdentityHashMap<>();
+
+    // The nodes taking a blob over since the last drain.
+    protected ArrayList<ICacheNode> mTransfers = new ArrayList<>();
+
+    // Share the data of the nodes created from now on.
+    protected boolean mIsEnabled = true;
+
+    public DedupNodeFactory(ICacheNodeFactory inner) {
+        mInner = inner;
+    }
+
+    public void setEnabled(boolean enabled) {
+        mIsEnabled = enabled;
+    }
+
+    @Override
+    public ICacheNode create(String key, byte[] value) {
+        if (!mIsEnabled) {
+            return mInner.create(key, value);
+        }
+
+        ICacheNode node = new SharedNode();
+
+        node.setKey(key);
+        node.setData(value);
+
+        return node;
+    }
+
+    /**
+     * The shared data is found by its hash, so it's never streamed.
+     */
+    @Override
+    public NodeOutputStream openOutputStream(String key) throws IOException {
+        return mIsEnabled ? null : mInner.openOutputStream(key);
+    }
+
+    @Override
+    public List<ICacheNode> restore() {
+        return mInner.restore();
+    }
+
+    @Override
+    public int backend() {
+        return mInner.backend();
+    }
+
+    /**
+     * Sort the nodes by the locations of their blobs.
+     */
+    @Override
+    public void sortByLocation(List<ICacheNode> nodes) {
+        IdentityHashMap<ICacheNode, List<ICacheNode>> referrers = new IdentityHashMap<>();
+        List<ICacheNode> inner = new ArrayList<>(nodes.size());
+
+        for (ICacheNode node : nodes) {
+            ICacheNode target = node;
+            if (node instanceof SharedNode && ((SharedNode) node).mBlob != null) {
+                target = ((SharedNode) node).mBlob.node;
+            }
+
+            List<ICacheNode> list = referrers.get(target);
+            if (list == null) {
+                list = new ArrayList<>(1);
+                referrers.put(target, list);
+                inner.add(target);
+            }
+            list.add(node);
+        }
+
+        mInner.sortByLocation(inner);
+
+        nodes.clear();
+        for (ICacheNode target : inner) {
+            nodes.addAll(referrers.get(target));
+        }
+    }
+
+    @Override
+    public void flush() {
+        mInner.flush();
+    }
+
+    @Override
+    public void awaitCapacity() {
+        mInner.awaitCapacity();
+    }
+
+    @Override
+    public void close() {
+        mInner.close();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return mInner.isClosed();
+    }
+
+    @Override
+    public long mappedSize() {
+        return mInner.mappedSize();
+    }
+
+    @Override
+    public void setCapacity(long bytes) {
+        mInner.setCapacity(bytes);
+    }
+
+    @Override
+    public SlabStats slabStats() {
+        return mInner.slabStats();
+    }
+
+    /**
+     * @return The nodes taking a blob over since the last call.
+     */
+    public List<ICacheNode> drainTransfers() {
+        if (mTransfers.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        List<ICacheNode> transfers = mTransfers;
+        mTransfers = new ArrayList<>();
+        return transfers;
+    }
+
+    /**
+     * @param node An inner node, e.g. reclaimed by the slab allocator.
+     * @return The nodes pointing at the blob of the inner node, empty if it's not a blob.
+     */
+    public List<ICacheNode> referrersOf(ICacheNode node) {
+        Blob blob = mBlobsByNode.get(node);
+        if (blob == null) {
+            return Collections.emptyList();
+        }
+
+        List<ICacheNode> referrers = new ArrayList<>(blob.refs);
+        for (SharedNode current = blob.owner; current != null; current = current.mNextShare) {
+            referrers.add(current);
+        }
+        return referrers;
+    }
+
+    /**
+     * @return The number of the distinct values held.
+     */
+    public int blobCount() {
+        return mBlobsByNode.size();
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Protected/Private ///////////////////////////////////////////////////////////////////////////
+
+    protected void acquire(SharedNode node, byte[] value) throws IllegalArgumentException {
+        int hash = Arrays.hashCode(value);
+        Blob head = mBlobs.get(hash);
+        Blob blob = head;
+
+        while (blob != null && !(blob.size == value.length &&
+                Arrays.equals(value, blob.node.getData()))) {
+            blob = blob.next;
+        }
+
+        if (blob == null) {
+            // The blob takes the key of its first node, which is only used by the inner node.
+            blob = new Blob(hash, value.length, mInner.create(node.getKey(), value));
+            blob.next = head;
+            mBlobs.put(hash, blob);
+            mBlobsByNode.put(blob.node, blob);
+        }
+
+        // Append the node, the first one is the owner.
+        if (blob.owner == null) {
+            blob.owner = node;
+        } else {
+            blob.last.mNextShare = node;
+            node.mPrevShare = blob.last;
+        }
+        blob.last = node;
+        ++blob.refs;
+
+        node.mBlob = blob;
+    }
+
+    protected void release(SharedNode node) {
+        Blob blob = node.mBlob;
+        if (blob == null) {
+            return;
+        }
+
+        node.mBlob = null;
+
+        // Unlink the node.
+        SharedNode prev = node.mPrevShare;
+        SharedNode next = node.mNextShare;
+        if (prev != null) {
+            prev.mNextShare = next;
+        } else {
+            blob.owner = next;
+        }
+        if (next != null) {
+            next.mPrevShare = prev;
+        } else {
+            blob.last = prev;
+        }
+        node.mPrevShare = null;
+        node.mNextShare = null;
+
+        if (--blob.refs > 0) {
+            // The next node takes the data over.
+            if (prev == null) {
+                mTransfers.add(next);
+            }
+            return;
+        }
+
+        // Unlink the blob from its chain.
+        Blob head = mBlobs.get(blob.hash);
+        if (head == blob) {
+            if (blob.next != null) {
+                mBlobs.put(blob.hash, blob.next);
+            } else {
+                mBlobs.remove(blob.hash);
+            }
+        } else {
+            while (head.next != blob) {
+                head = head.next;
+            }
+            head.next = blob.next;
+        }
+        mBlobsByNode.remove(blob.node);
+
+        blob.node.dispose();
+    }
+
+    protected static class Blob {
+        final int hash;
+        final int size;
+        final ICacheNode node;
+
+        // The nodes pointing at the blob, the first is the owner.
+        SharedNode owner = null;
+        SharedNode last = null;
+        int refs = 0;
+
+        // The next blob of the same hash.
+        Blob next = null;
+
+        Blob(int hash, int size, ICacheNode node) {
+            this.hash = hash;
+            this.size = size;
+            this.node = node;
+        }
+    }
+
+    protected class SharedNode extends BaseNode {
+
+        // Volatile so that the lock-free readers see the replaced blob.
+        protected volatile Blob mBlob = null;
+
+        // The other nodes pointing at the same blob.
+        protected SharedNode mPrevShare = null;
+        protected SharedNode mNextShare = null;
+
+        @Override
+        public void setData(byte[] value) throws IllegalArgumentException {
+            super.setData(value);
+
+            release(this);
+            acquire(this, value);
+        }
+
+        @Override
+        public byte[] getData() {
+            Blob blob = mBlob;
+            return blob != null ? blob.node.getData() : null;
+        }
+
+        @Override
+        public ByteBuffer getBuffer() {
+            Blob blob = mBlob;
+            return blob != null ? blob.node.getBuffer() : null;
+        }
+
+        @Override
+        public Pin pin() {
+            Blob blob = mBlob;
+            return blob != null ? blob.node.pin() : null;
+        }
+
+        @Override
+        public InputStream openInputStream() {
+            Blob blob = mBlob;
+            return blob != null ? blob.node.openInputStream() : null;
+        }
+
+        @Override
+        public ByteBuffer copyTo(BufferPool pool) {
+            Blob blob = mBlob;
+            return blob != null ? blob.node.copyTo(pool) : null;
+        }
+
+        /**
+         * @return The size of the data if it's the owner of the blob, otherwise 0.
+         */
+        @Override
+        public int size() {
+            Blob blob = mBlob;
+            return blob != null && blob.owner == this ? blob.node.size() : 0;
+        }
+
+        @Override
+        public void dispose() {
+            release(this);
+            super.dispose();
+        }
+
+    }
+
+}
@@ -0,0 +1,147 @@
+package cb.quiz.picocache.factory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Write an entry in chunks of CHUNK_SIZE, the entry is put when the stream is closed.
+ *
+ * The chunks go straight to the node stream of the factory if there's one, e.g. to the disk,
+ * so the memory taken is bounded by a chunk whatever the size of the entry. Otherwise the entry
+ * is collected on the heap, where it's held anyway. The chunk is a buffer of the BufferPool.
+ * The entry is never compressed, but a value looking like a frame of the Compressor is framed
+ * as stored, whose header is written over once the length is known. Not thread-safe.
+ */
+abstract class EntryOutputStream extends OutputStream {
+
+    static final int CHUNK_SIZE = 64 << 10;
+
+    // The stream of the node, or null to collect the entry on the heap.
+    protected final NodeOutputStream mNode;
+    protected final ByteArrayOutputStream mHeap;
+
+    // Taken from the pool, given back on close.
+    protected final ByteBuffer mBuffer = BufferPool.HEAP.acquire(CHUNK_SIZE);
+    protected final byte[] mChunk = mBuffer.array();
+    protected int mCount = 0;
+
+    // The bytes passed to the node stream, the header excluded.
+    protected long mLength = 0;
+    protected boolean mIsFramed = false;
+
+    protected boolean mIsClosed = false;
+
+    /**
+     * @param node The stream of the node, or null to collect the entry on the heap.
+     */
+    EntryOutputStream(NodeOutputStream node) {
+        mNode = node;
+        mHeap = node == null ? new ByteArrayOutputStream() : null;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (mIsClosed) {
+            throw new IOException("The stream is closed.");
+        }
+
+        while (len > 0) {
+            int count = Math.min(len, CHUNK_SIZE - mCount);
+            System.arraycopy(b, off, mChunk, mCount, count);
+            mCount += count;
+            off += count;
+            len -= count;
+
+            if (mCount == CHUNK_SIZE) {
+                writeChunk();
+            }
+        }
+    }
+
+    /**
+     * Put the entry, nothing is put if it's empty.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mIsClosed) {
+            return;
+        }
+        mIsClosed = true;
+
+        try {
+            writeChunk();
+        } finally {
+            BufferPool.HEAP.release(mBuffer);
+        }
+
+        if (mNode == null) {
+            if (mHeap.size() > 0) {
+                commit(Compressor.encode(mHeap.toByteArray(), false));
+            }
+            return;
+        }
+
+        try {
+            if (mIsFramed) {
+                if (mLength > Integer.MAX_VALUE - Compressor.HEADER_SIZE) {
+                    throw new IOException("The entry is too large.");
+                }
+                mNode.overwrite(Compressor.storedHeader((int) mLength), 0);
+            }
+
+            ICacheNode node = mNode.toNode();
+            if (node != null) {
+                commit(node);
+            }
+        } catch (IOException e) {
+            mNode.abort();
+            throw e;
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Protected/Private ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Put the node holding the entry.
+     */
+    protected abstract void commit(ICacheNode node);
+
+    /**
+     * Put the entry collected on the heap, as encoded by the Compressor.
+     */
+    protected abstract void commit(byte[] data);
+
+    protected void writeChunk() throws IOException {
+        if (mCount == 0) {
+            return;
+        }
+
+        if (mNode == null) {
+            mHeap.write(mChunk, 0, mCount);
+        } else {
+            // Only the first chunk can tell whether the entry looks like a frame.
+            if (mLength == 0 && Compressor.isFramed(mChunk, mCount)) {
+                mIsFramed = true;
+                mNode.write(Compressor.storedHeader(0));
+            }
+
+            try {
+                mNode.write(mChunk, 0, mCount);
+            } catch (IOException e) {
+                mNode.abort();
+                throw e;
+            }
+            mLength += mCount;
+        }
+
+        mCount = 0;
+    }
+}
@@ -0,0 +1,57 @@
+package cb.quiz.picocache.factory;
+
+import java.util.Map;
+
+/**
+ * Evict the nodes in insertion order, the oldest first.
+ */
+class FifoTrimmer implements ICacheStoreTrimmer {
+
+    // The nodes in insertion order.
+    protected CacheNodeList mList = new CacheNodeList();
+
+    @Override
+    public void onAdd(ICacheNode node) {
+        mList.addLast(node);
+    }
+
+    @Override
+    public void onAccess(ICacheNode node) {
+        // DO NOTHING.
+    }
+
+    @Override
+    public void onRemove(ICacheNode node) {
+        mList.remove(node);
+    }
+
+    @Override
+    public void clear() {
+        mList.clear();
+    }
+
+    @Override
+    public long trim(final Map<String, ICacheNode> index, long size, final long max,
+                     final ICacheEvictionListener listener) {
+        try {
+            while (size > max && !mList.isEmpty()) {
+                ICacheNode node = mList.first();
+                // Remove the node.
+                mList.remove(node);
+                index.remove(node.getKey());
+                // Subtract the node's weight.
+                size -= node.weight();
+                // Let the listener take it over, then dispose the node.
+                if (listener != null) {
+                    listener.onEvict(node);
+                }
+                node.dispose();
+            }
+        } catch (Exception e) {
+            // DO NOTHING.
+        }
+
+        return size;
+    }
+
+}
@@ -0,0 +1,126 @@
+package cb.quiz.picocache.factory;
+
+/**
+ * A count-min sketch estimating how often a key has been seen, used as the TinyLFU admission
+ * filter.
+ *
+ * Every counter is 4 bits so a long holds 16 of them, and a key maps to 4 counters, one per
+ * hash function. Each hash function picks its own long, and the counter inside it is taken
+ * from a group of 4 chosen by the key's hash. The estimate is the minimum of the 4 counters.
+ * Once the number of increments reaches the sample size, all the counters are halved so that
+ * the history ages out and the sketch follows the recent popularity.
+ */
+class FrequencySketch {
+
+    // The seeds of the 4 hash functions.
+    private static final long[] SEED = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+    // Clear the highest bit of every counter after shifting all the counters right by 1.
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private static final int MIN_TABLE_SIZE = 16;
+    private static final int MAX_TABLE_SIZE = 1 << 24;
+
+    // The counters.
+    protected long[] mTable = new long[MIN_TABLE_SIZE];
+
+    // The number of increments before aging the counters.
+    protected int mSampleSize = MIN_TABLE_SIZE * 10;
+
+    // The number of increments since the last aging.
+    protected int mAdditions = 0;
+
+    /**
+     * Grow the sketch so that it can tell apart the given number of entries.
+     * @param entries The number of entries in the cache.
+     */
+    public void ensureCapacity(int entries) {
+        while (entries > mTable.length && mTable.length < MAX_TABLE_SIZE) {
+            // A key at index i moves to either i or i + length after doubling, so copying the
+            // counters to both halves keeps the counted history.
+            long[] table = new long[mTable.length << 1];
+            System.arraycopy(mTable, 0, table, 0, mTable.length);
+            System.arraycopy(mTable, 0, table, mTable.length, mTable.length);
+
+            mTable = table;
+            mSampleSize = table.length * 10;
+        }
+    }
+
+    /**
+     * @param key The key.
+     * @return The estimated frequency of the key, at most 15.
+     */
+    public int frequency(String key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+
+        for (int i = 0; i < 4; ++i) {
+            int index = indexOf(hash, i);
+            int count = (int) ((mTable[index] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+
+        return frequency;
+    }
+
+    /**
+     * Increment the frequency of the key if it is not saturated yet.
+     * @param key The key.
+     */
+    public void increment(String key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        boolean isAdded = false;
+
+        for (int i = 0; i < 4; ++i) {
+            int index = indexOf(hash, i);
+            long offset = (start + i) << 2;
+            long mask = 0xfL << offset;
+
+            if ((mTable[index] & mask) != mask) {
+                mTable[index] += 1L << offset;
+                isAdded = true;
+            }
+        }
+
+        if (isAdded && ++mAdditions >= mSampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * Forget all the history.
+     */
+    public void clear() {
+        for (int i = 0; i < mTable.length; ++i) {
+            mTable[i] = 0L;
+        }
+        mAdditions = 0;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Protected/Private ///////////////////////////////////////////////////////////////////////////
+
+    // Halve all the counters.
+    protected void reset() {
+        for (int i = 0; i < mTable.length; ++i) {
+            mTable[i] = (mTable[i] >>> 1) & RESET_MASK;
+        }
+        mAdditions >>>= 1;
+    }
+
+    protected int indexOf(int hash, int i) {
+        long h = (hash + SEED[i]) * SEED[i];
+        h += h >>> 32;
+        return ((int) h) & (mTable.length - 1);
+    }
+
+    protected static int spread(int hash) {
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        return (hash >>> 16) ^ hash;
+    }
+}
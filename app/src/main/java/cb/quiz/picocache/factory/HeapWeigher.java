@@ -0,0 +1,36 @@
+package cb.quiz.picocache.factory;
+
+import cb.quiz.picocache.iface.IPicoWeigher;
+
+/**
+ * Weigh an entry by its footprint on the heap, as a heap dump shows it: the data array, the key
+ * string and the per-entry objects of the store. The sizes are of a 64-bit VM with compressed
+ * references, i.e. 12 bytes of object header and 4 bytes per reference, all aligned to 8 bytes.
+ */
+class HeapWeigher implements IPicoWeigher {
+
+    static final int OBJECT_ALIGNMENT = 8;
+
+    // The header of an array, including the length.
+    static final int ARRAY_HEADER = 16;
+
+    // The String object, i.e. header, value, offset, count and hash.
+    static final int STRING_SHALLOW = 24;
+
+    // The node (header, key, data and 2 links), the HashMap.Entry of the index (header, key,
+    // value, next and hash) and its slot in the table of a load factor of 0.75.
+    static final int ENTRY_OVERHEAD = 32 + 32 + 8;
+
+    @Override
+    public long weigh(String key, int size) {
+        long keyChars = key != null ? key.length() : 0;
+
+        return align(ARRAY_HEADER + (long) size) +
+                STRING_SHALLOW + align(ARRAY_HEADER + keyChars * 2) +
+                ENTRY_OVERHEAD;
+    }
+
+    static long align(long bytes) {
+        return (bytes + OBJECT_ALIGNMENT - 1) & ~(long) (OBJECT_ALIGNMENT - 1);
+    }
+}
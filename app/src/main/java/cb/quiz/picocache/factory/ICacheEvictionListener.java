@@ -0,0 +1,12 @@
+package cb.quiz.picocache.factory;
+
+/**
+ * Be told about the nodes trimmed from a store, e.g. to move them to another store.
+ */
+interface ICacheEvictionListener {
+    /**
+     * Called right before the trimmed node is disposed, so its key and data are still there.
+     * @param node The trimmed node.
+     */
+    void onEvict(ICacheNode node);
+}
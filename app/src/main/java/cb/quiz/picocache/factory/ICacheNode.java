@@ -0,0 +1,119 @@
+package cb.quiz.picocache.factory;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+// Node interface.
+interface ICacheNode {
+    /**
+     * Set the key.
+     * @param key The given key.
+     * @throws IllegalArgumentException, if the given key is an empty string.
+     */
+    void setKey(String key) throws IllegalArgumentException;
+
+    /**
+     * @return The key.
+     */
+    String getKey();
+
+    /**
+     * Set the data.
+     * @param value The given data.
+     * @throws IllegalArgumentException, if the given value is empty.
+     */
+    void setData(byte[] value) throws IllegalArgumentException;
+
+    /**
+     * @return The data.
+     */
+    byte[] getData();
+
+    /**
+     * @return The read-only view of the data, without copying it on the heap when possible.
+     */
+    ByteBuffer getBuffer();
+
+    /**
+     * Pin the data, so the view stays intact until the pin is released even if the node is
+     * replaced or disposed in between. The data is not copied.
+     * @return The pin, or null if there's no data.
+     */
+    Pin pin();
+
+    /**
+     * Open a stream of the data, which is read in chunks if it's on the disk. The stream must be
+     * closed.
+     * @return The stream, or null if there's no data.
+     */
+    InputStream openInputStream();
+
+    /**
+     * Copy the data into a buffer taken from the pool.
+     * @param pool The pool.
+     * @return The buffer holding the data between its position and limit, or null if there's
+     * no data.
+     */
+    ByteBuffer copyTo(BufferPool pool);
+
+    /**
+     * Compare the given key with the key of current cache node.
+     * @param key The given key.
+     * @return True if they are the same; false if not.
+     */
+    boolean isKey(String key);
+
+    /**
+     * @return The size of the data.
+     */
+    int size();
+
+    /**
+     * @return The weight of the node counted against the maximum size of the store.
+     */
+    long weight();
+
+    /**
+     * Set the weight, only used by the store holding the node.
+     * @param weight The weight in bytes.
+     */
+    void setWeight(long weight);
+
+    /**
+     * @return The timer expiring the node, null if the node never expires.
+     */
+    TimerWheel.Timer getTimer();
+
+    /**
+     * Set the timer, only used by the store holding the node.
+     * @param timer The timer.
+     */
+    void setTimer(TimerWheel.Timer timer);
+
+    /**
+     * Dispose the resources using by the cache node.
+     */
+    void dispose();
+
+    /**
+     * @return The previous node in the CacheNodeList holding this node.
+     */
+    ICacheNode getPrev();
+
+    /**
+     * Set the previous node, only used by CacheNodeList.
+     * @param node The previous node.
+     */
+    void setPrev(ICacheNode node);
+
+    /**
+     * @return The next node in the CacheNodeList holding this node.
+     */
+    ICacheNode getNext();
+
+    /**
+     * Set the next node, only used by CacheNodeList.
+     * @param node The next node.
+     */
+    void setNext(ICacheNode node);
+}
@@ -0,0 +1,13 @@
+package cb.quiz.picocache.factory;
+
+/**
+ * Evict a node from its store on behalf of the node itself, e.g. when the storage backing the
+ * node has to be reclaimed.
+ */
+interface ICacheNodeEvictor {
+    /**
+     * Remove the node from the store and dispose it.
+     * @param node The node to evict.
+     */
+    void evict(ICacheNode node);
+}
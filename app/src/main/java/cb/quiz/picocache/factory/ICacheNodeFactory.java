@@ -0,0 +1,81 @@
+package cb.quiz.picocache.factory;
+
+import java.io.IOException;
+import java.util.List;
+
+// Node factory interface.
+interface ICacheNodeFactory {
+    /**
+     * Create a cache node with given key and value.
+     * @param key Key.
+     * @param value Value or data.
+     * @return The node.
+     */
+    ICacheNode create(String key, byte[] value);
+
+    /**
+     * Open a stream writing the value of a new node in chunks, without holding it on the heap.
+     * @param key Key.
+     * @return The stream, or null if the data of the nodes is not streamed, e.g. in memory.
+     */
+    NodeOutputStream openOutputStream(String key) throws IOException;
+
+    /**
+     * Create the nodes of the data left on the disk, in the order of insertion.
+     * @return The nodes, empty if the data is not persistent.
+     */
+    List<ICacheNode> restore();
+
+    /**
+     * @return IPicoCacheStats.BACKEND_FILE if the data of the created nodes is on the disk,
+     * otherwise IPicoCacheStats.BACKEND_MEMORY.
+     */
+    int backend();
+
+    /**
+     * Sort the nodes created by the factory in the order of the locations of their data, so
+     * reading them in order is sequential. No-op if the data is not on the disk.
+     * @param nodes The nodes to sort in place.
+     */
+    void sortByLocation(List<ICacheNode> nodes);
+
+    /**
+     * Write the data of the created nodes still held in memory to the disk.
+     */
+    void flush();
+
+    /**
+     * Wait until there's room for more data, e.g. by writing the staged data to the disk. It's
+     * called by the putting thread before taking the lock of the store, so the readers are not
+     * stalled by the wait. No-op if the nodes never wait.
+     */
+    void awaitCapacity();
+
+    /**
+     * Release the files held for the created nodes, e.g. the reference to the SegmentLog. The
+     * nodes must not be used afterwards. No-op if the data is in memory.
+     */
+    void close();
+
+    /**
+     * @return True if the files are gone, e.g. the SegmentLog is taken over by another cache.
+     */
+    boolean isClosed();
+
+    /**
+     * @return The bytes of the memory-mapped files used by the created nodes.
+     */
+    long mappedSize();
+
+    /**
+     * Let the factory know the maximum size of the store, e.g. to bound the memory it allocates.
+     * @param bytes The maximum size in bytes.
+     */
+    void setCapacity(long bytes);
+
+    /**
+     * @return The snapshot of the slabs holding the data of the created nodes, or null if the
+     * data is not kept in slabs.
+     */
+    SlabStats slabStats();
+}
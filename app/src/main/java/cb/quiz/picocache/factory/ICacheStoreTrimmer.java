@@ -0,0 +1,43 @@
+package cb.quiz.picocache.factory;
+
+import java.util.Map;
+
+/**
+ * The trimmer keeps its own ordering of the nodes in the store and decides which nodes are
+ * evicted. A trimmer instance belongs to exactly one store.
+ */
+interface ICacheStoreTrimmer {
+    /**
+     * Called when a new node is inserted into the store.
+     * @param node The new node.
+     */
+    void onAdd(ICacheNode node);
+
+    /**
+     * Called when a node is hit by get or its data is replaced by put.
+     * @param node The accessed node.
+     */
+    void onAccess(ICacheNode node);
+
+    /**
+     * Called when a node is removed from the store by other means than trim.
+     * @param node The removed node.
+     */
+    void onRemove(ICacheNode node);
+
+    /**
+     * Called when the store is cleared.
+     */
+    void clear();
+
+    /**
+     * Trim the store so that its size is less or equal than the maximum size.
+     * @param index The hash index of the store, the trimmed nodes are removed from it too.
+     * @param size The current weight of the store in bytes.
+     * @param max The maximum weight of the store in bytes.
+     * @param listener Told about every trimmed node, could be null.
+     * @return The weight after trimming.
+     */
+    long trim(final Map<String, ICacheNode> index, long size, final long max,
+              final ICacheEvictionListener listener);
+}
@@ -0,0 +1,146 @@
+package cb.quiz.picocache.factory;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Evict the least frequently used nodes first, the least recently used one among the nodes with
+ * the same frequency.
+ *
+ * The nodes are grouped into frequency buckets which are kept in a list in ascending order of
+ * frequency, so that a hit only moves the node to the neighbour bucket and the victim is always
+ * the head of the first bucket. All the operations are O(1).
+ */
+class LfuTrimmer implements ICacheStoreTrimmer {
+
+    private static class FrequencyBucket {
+        int frequency;
+        CacheNodeList nodes = new CacheNodeList();
+        FrequencyBucket prev = null;
+        FrequencyBucket next = null;
+
+        FrequencyBucket(int frequency) {
+            this.frequency = frequency;
+        }
+    }
+
+    // The bucket with the lowest frequency.
+    protected FrequencyBucket mHead = null;
+
+    // The bucket of every node.
+    protected HashMap<ICacheNode, FrequencyBucket> mBuckets = new HashMap<>();
+
+    @Override
+    public void onAdd(ICacheNode node) {
+        FrequencyBucket bucket = mHead;
+
+        if (bucket == null || bucket.frequency != 1) {
+            bucket = insertBucketAfter(null, 1);
+        }
+
+        bucket.nodes.addLast(node);
+        mBuckets.put(node, bucket);
+    }
+
+    @Override
+    public void onAccess(ICacheNode node) {
+        FrequencyBucket bucket = mBuckets.get(node);
+
+        if (bucket == null || bucket.frequency == Integer.MAX_VALUE) {
+            return;
+        }
+
+        FrequencyBucket next = bucket.next;
+        if (next == null || next.frequency != bucket.frequency + 1) {
+            next = insertBucketAfter(bucket, bucket.frequency + 1);
+        }
+
+        bucket.nodes.remove(node);
+        next.nodes.addLast(node);
+        mBuckets.put(node, next);
+
+        if (bucket.nodes.isEmpty()) {
+            removeBucket(bucket);
+        }
+    }
+
+    @Override
+    public void onRemove(ICacheNode node) {
+        FrequencyBucket bucket = mBuckets.remove(node);
+
+        if (bucket != null) {
+            bucket.nodes.remove(node);
+            if (bucket.nodes.isEmpty()) {
+                removeBucket(bucket);
+            }
+        }
+    }
+
+    @Override
+    public void clear() {
+        mHead = null;
+        mBuckets.clear();
+    }
+
+    @Override
+    public long trim(final Map<String, ICacheNode> index, long size, final long max,
+                     final ICacheEvictionListener listener) {
+        try {
+            while (size > max && mHead != null) {
+                FrequencyBucket bucket = mHead;
+                ICacheNode node = bucket.nodes.first();
+                // Remove the node.
+                bucket.nodes.remove(node);
+                mBuckets.remove(node);
+                if (bucket.nodes.isEmpty()) {
+                    removeBucket(bucket);
+                }
+                index.remove(node.getKey());
+                // Subtract the node's weight.
+                size -= node.weight();
+                // Let the listener take it over, then dispose the node.
+                if (listener != null) {
+                    listener.onEvict(node);
+                }
+                node.dispose();
+            }
+        } catch (Exception e) {
+            // DO NOTHING.
+        }
+
+        return size;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Protected/Private ///////////////////////////////////////////////////////////////////////////
+
+    protected FrequencyBucket insertBucketAfter(FrequencyBucket prev, int frequency) {
+        FrequencyBucket bucket = new FrequencyBucket(frequency);
+        FrequencyBucket next = prev != null ? prev.next : mHead;
+
+        bucket.prev = prev;
+        bucket.next = next;
+        if (prev != null) {
+            prev.next = bucket;
+        } else {
+            mHead = bucket;
+        }
+        if (next != null) {
+            next.prev = bucket;
+        }
+
+        return bucket;
+    }
+
+    protected void removeBucket(FrequencyBucket bucket) {
+        if (bucket.prev != null) {
+            bucket.prev.next = bucket.next;
+        } else {
+            mHead = bucket.next;
+        }
+        if (bucket.next != null) {
+            bucket.next.prev = bucket.prev;
+        }
+    }
+
+}
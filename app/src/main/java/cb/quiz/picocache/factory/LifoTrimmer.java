@@ -0,0 +1,34 @@
+package cb.quiz.picocache.factory;
+
+import java.util.Map;
+
+/**
+ * Evict the nodes in reverse insertion order, the newest first.
+ */
+class LifoTrimmer extends FifoTrimmer {
+
+    @Override
+    public long trim(final Map<String, ICacheNode> index, long size, final long max,
+                     final ICacheEvictionListener listener) {
+        try {
+            while (size > max && !mList.isEmpty()) {
+                ICacheNode node = mList.last();
+                // Remove the node.
+                mList.remove(node);
+                index.remove(node.getKey());
+                // Subtract the node's weight.
+                size -= node.weight();
+                // Let the listener take it over, then dispose the node.
+                if (listener != null) {
+                    listener.onEvict(node);
+                }
+                node.dispose();
+            }
+        } catch (Exception e) {
+            // DO NOTHING.
+        }
+
+        return size;
+    }
+
+}
@@ -0,0 +1,742 @@
+package cb.quiz.picocache.factory;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import cb.quiz.picocache.iface.IPicoBuffer;
+import cb.quiz.picocache.iface.IPicoCache;
+import cb.quiz.picocache.iface.IPicoCacheStats;
+import cb.quiz.picocache.iface.IPicoLoader;
+import cb.quiz.picocache.iface.IPicoReader;
+import cb.quiz.picocache.iface.IPicoSlabStats;
+import cb.quiz.picocache.iface.IPicoWeigher;
+
+/**
+ * A cache whose get never takes a lock.
+ *
+ * The nodes are looked up in a ConcurrentHashMap. Since the trimmer is not thread-safe, a hit is
+ * not reported to it right away but recorded in a ring buffer picked by the calling thread. The
+ * buffers are lossy, a record is simply dropped if the buffer is full, which is fine because the
+ * access order is only a hint for the eviction. The buffers are drained in batches by whoever
+ * gets the eviction lock with tryLock, so readers never wait. Writes take the eviction lock,
+ * drain the buffers first and then update the trimmer as CacheStore does.
+ *
+ * The nodes must be safe to read without a lock, so this is only meant for TYPE_MEMORY.
+ */
+class LockFreeReadCacheStore implements IPicoCache {
+
+    // The number of slots of a read buffer, a power of 2.
+    private static final int BUFFER_SIZE = 16;
+    private static final int BUFFER_MASK = BUFFER_SIZE - 1;
+
+    // The number of pending records in a buffer that triggers a drain.
+    private static final int DRAIN_THRESHOLD = BUFFER_SIZE / 2;
+
+    private static final int MAX_BUFFERS = 64;
+
+    // Current total weight in bytes, only written under the eviction lock.
+    protected volatile long mSize;
+
+    // Maximum total weight in bytes.
+    protected long mSizeMax;
+
+    // The cost model, null to count the size of the data only. Guarded by the eviction lock.
+    protected IPicoWeigher mWeigher = null;
+
+    // The hash index of the nodes.
+    protected ConcurrentHashMap<String, ICacheNode> mIndex;
+
+    // The trimmer, only touched under the eviction lock.
+    protected ICacheStoreTrimmer mTrimmer = null;
+
+    // The node factory.
+    protected ICacheNodeFactory mNodeFactory = null;
+
+    // Guard the trimmer and the size accounting.
+    protected final ReentrantLock mEvictionLock = new ReentrantLock();
+
+    // Expire the nodes, guarded by the eviction lock. The deadlines are read without it.
+    protected final TimerWheel mWheel = new TimerWheel();
+
+    // Record the statistics, null if turned off.
+    protected volatile StatsRecorder mStats = null;
+
+    // Compress the data put from now on.
+    protected volatile boolean mIsCompressing = false;
+
+    // The pool of the buffers of getPooled.
+    protected volatile BufferPool mPool = BufferPool.HEAP;
+
+    // Closed by close, the store cannot be used afterwards.
+    protected volatile boolean mIsClosed = false;
+
+    // Share the identical data across the keys, null if it's never turned on. Guarded by the
+    // eviction lock.
+    protected DedupNodeFactory mDedup = null;
+
+    // The read buffers striped by thread.
+    protected final ReadBuffer[] mReadBuffers;
+
+    // Coalesce the loads of the missing keys.
+    protected final SingleFlight mSingleFlight = new SingleFlight();
+
+    public LockFreeReadCacheStore(ICacheNodeFactory factory, ICacheStoreTrimmer trimmer) {
+        mSize = 0;
+        mSizeMax = CacheStore.DEFAULT_CACHE_SIZE;
+        mIndex = new ConcurrentHashMap<>();
+        mTrimmer = trimmer;
+        mNodeFactory = factory;
+
+        int count = 1;
+        while (count < Runtime.getRuntime().availableProcessors() * 2 && count < MAX_BUFFERS) {
+            count <<= 1;
+        }
+        mReadBuffers = new ReadBuffer[count];
+        for (int i = 0; i < count; ++i) {
+            mReadBuffers[i] = new ReadBuffer();
+        }
+    }
+
+    @Override
+    public void setCacheSize(int kb) throws IllegalArgumentException {
+        if (kb <= 0) {
+            throw new IllegalArgumentException("The cache size is either less/equal than 0" +
+                    " or greater than Integer.MAX_VALUE");
+        }
+
+        mEvictionLock.lock();
+        try {
+            drainReadBuffers();
+
+            mSizeMax = (long) kb << 10;
+            mSize = trim(mSize);
+        } finally {
+            mEvictionLock.unlock();
+        }
+    }
+
+    @Override
+    public void put(String key, byte[] data) throws IllegalArgumentException {
+        put(key, data, 0);
+    }
+
+    @Override
+    public void put(String key, byte[] data, long ttl) throws IllegalArgumentException {
+        if (ttl < 0) {
+            throw new IllegalArgumentException("The time to live is less than 0");
+        }
+
+        StatsRecorder stats = mStats;
+        long start = stats != null ? System.nanoTime() : 0;
+
+        // Compress out of the lock.
+        putEncoded(key, Compressor.encode(data, mIsCompressing), ttl);
+
+        if (stats != null) {
+            stats.recordLatency(IPicoCacheStats.OP_PUT, start);
+        }
+    }
+
+    @Override
+    public void setWeigher(IPicoWeigher weigher) {
+        mEvictionLock.lock();
+        try {
+            drainReadBuffers();
+
+            mWeigher = weigher;
+
+            long size = 0;
+            for (ICacheNode node : mIndex.values()) {
+                size += CacheStore.weigh(mWeigher, node);
+            }
+
+            mSize = trim(size);
+        } finally {
+            mEvictionLock.unlock();
+        }
+    }
+
+    @Override
+    public void setExpireAfterAccess(long ms) throws IllegalArgumentException {
+        if (ms < 0) {
+            throw new IllegalArgumentException("The expiry time is less than 0");
+        }
+
+        mEvictionLock.lock();
+        try {
+            drainReadBuffers();
+
+            long now = TimerWheel.now();
+            mWheel.setExpireAfterAccess(ms);
+
+            // Reschedule all the nodes, the access time starts from now.
+            for (ICacheNode node : mIndex.values()) {
+                TimerWheel.Timer timer = node.getTimer();
+                mWheel.schedule(node, timer != null && timer.ttlDeadline != Long.MAX_VALUE ?
+                        Math.max(1, timer.ttlDeadline - now) : 0, now);
+            }
+
+            expire();
+        } finally {
+            mEvictionLock.unlock();
+        }
+    }
+
+    @Override
+    public void putAll(Map<String, byte[]> entries) throws IllegalArgumentException {
+        checkOpen();
+
+        StatsRecorder stats = mStats;
+        long start = stats != null ? System.nanoTime() : 0;
+
+        // Compress out of the lock.
+        boolean isCompressing = mIsCompressing;
+        Map<String, byte[]> encoded = new HashMap<>();
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            encoded.put(entry.getKey(), Compressor.encode(entry.getValue(), isCompressing));
+        }
+
+        mEvictionLock.lock();
+        try {
+            drainReadBuffers();
+
+            long now = expire();
+            long size = mSize;
+            for (Map.Entry<String, byte[]> entry : encoded.entrySet()) {
+                try {
+                    size = insert(entry.getKey(), entry.getValue(), size, 0, now);
+                } catch (Exception e) {
+                    // DO NOTHING.
+                }
+            }
+
+            // Trim once for the whole batch.
+            mSize = trim(size);
+        } finally {
+            mEvictionLock.unlock();
+        }
+
+        // The batch is timed as a single put.
+        if (stats != null) {
+            stats.recordLatency(IPicoCacheStats.OP_PUT, start);
+        }
+    }
+
+    /**
+     * The reads never take the lock, so the batch is just a loop of get.
+     */
+    @Override
+    public Map<String, byte[]> getAll(Collection<String> keys) {
+        Map<String, byte[]> result = new HashMap<>();
+
+        for (String key : keys) {
+            byte[] data = get(key);
+
+            if (data != null) {
+                result.put(key, data);
+            }
+        }
+
+        return result;
+    }
+
+    @Override
+    public byte[] get(String key) {
+        checkOpen();
+
+        StatsRecorder stats = mStats;
+        long start = stats != null ? System.nanoTime() : 0;
+        byte[] data = null;
+
+        try {
+            ICacheNode current = mIndex.get(key);
+
+            // An expired node is a miss, the wheel removes it later.
+            if (current != null && current.getTimer() != null &&
+                    !mWheel.touch(current, TimerWheel.now())) {
+                current = null;
+            }
+
+            if (current != null) {
+                data = Compressor.decode(current.getData());
+
+                // The node could be evicted in between, treat it as a miss then.
+                if (data != null) {
+                    recordRead(current);
+                }
+            }
+        } catch (Exception e) {
+            // DO NOTHING.
+        }
+
+        if (stats != null) {
+            stats.record(data != null ? StatsRecorder.HIT : StatsRecorder.MISS);
+            stats.recordLatency(IPicoCacheStats.OP_GET, start);
+        }
+
+        return data;
+    }
+
+    @Override
+    public byte[] get(String key, IPicoLoader loader) {
+        return mSingleFlight.get(this, key, loader, mStats);
+    }
+
+    @Override
+    public ByteBuffer getBuffer(String key) {
+        checkOpen();
+
+        StatsRecorder stats = mStats;
+        long start = stats != null ? System.nanoTime() : 0;
+        ByteBuffer buffer = null;
+
+        try {
+            ICacheNode current = mIndex.get(key);
+
+            // An expired node is a miss, the wheel removes it later.
+            if (current != null && current.getTimer() != null &&
+                    !mWheel.touch(current, TimerWheel.now())) {
+                current = null;
+            }
+
+            if (current != null) {
+                buffer = Compressor.decode(current.getBuffer());
+
+                // The node could be evicted in between, treat it as a miss then.
+                if (buffer != null) {
+                    recordRead(current);
+                }
+            }
+        } catch (Exception e) {
+            // DO NOTHING.
+        }
+
+        if (stats != null) {
+            stats.record(buffer != null ? StatsRecorder.HIT : StatsRecorder.MISS);
+            stats.recordLatency(IPicoCacheStats.OP_GET, start);
+        }
+
+        return buffer;
+    }
+
+    @Override
+    public <T> T read(String key, IPicoReader<T> reader) {
+        ByteBuffer buffer = getBuffer(key);
+
+        // The memory nodes never write the data in place, so the view needs no pin.
+        return buffer != null ? reader.read(key, buffer) : null;
+    }
+
+    @Override
+    public IPicoBuffer getPooled(String key) {
+        // The decoded view is copied as it is.
+        return PooledBuffer.copyOf(mPool, getBuffer(key));
+    }
+
+    @Override
+    public void setDirectBuffersEnabled(boolean enabled) {
+        mPool = enabled ? BufferPool.DIRECT : BufferPool.HEAP;
+    }
+
+    /**
+     * The entry is collected on the heap, the nodes are in memory anyway.
+     */
+    @Override
+    public OutputStream openOutputStream(final String key) {
+        if (key.length() <= 0) {
+            throw new IllegalArgumentException("Key cannot be empty.");
+        }
+
+        return new EntryOutputStream(null) {
+            @Override
+            protected void commit(ICacheNode node) {
+                // DO NOTHING, there's no node stream.
+            }
+
+            @Override
+            protected void commit(byte[] data) {
+                putEncoded(key, data, 0);
+            }
+        };
+    }
+
+    @Override
+    public InputStream openInputStream(String key) {
+        ByteBuffer buffer = getBuffer(key);
+
+        // The memory nodes never write the data in place, so the view needs no pin.
+        return buffer != null ? new PinInputStream(new Pin(buffer)) : null;
+    }
+
+    @Override
+    public long size() {
+        // The expired nodes don't count, unless a writer is busy anyway.
+        if (mEvictionLock.tryLock()) {
+            try {
+                expire();
+            } finally {
+                mEvictionLock.unlock();
+            }
+        }
+
+        return mSize;
+    }
+
+    @Override
+    public void setStatsEnabled(boolean enabled) {
+        mEvictionLock.lock();
+        try {
+            if (!enabled) {
+                mStats = null;
+            } else if (mStats == null) {
+                mStats = new StatsRecorder(mNodeFactory.backend());
+            }
+        } finally {
+            mEvictionLock.unlock();
+        }
+    }
+
+    @Override
+    public void setCompressionEnabled(boolean enabled) {
+        mIsCompressing = enabled;
+    }
+
+    @Override
+    public void setDedupEnabled(boolean enabled) {
+        mEvictionLock.lock();
+        try {
+            if (mDedup == null) {
+                if (!enabled) {
+                    return;
+                }
+
+                mDedup = new DedupNodeFactory(mNodeFactory);
+                mNodeFactory = mDedup;
+            }
+
+            mDedup.setEnabled(enabled);
+        } finally {
+            mEvictionLock.unlock();
+        }
+    }
+
+    @Override
+    public CacheStats getStats() {
+        StatsRecorder stats = mStats;
+        return stats != null ? stats.snapshot() : CacheStats.empty();
+    }
+
+    @Override
+    public long mappedSize() {
+        return mNodeFactory.mappedSize();
+    }
+
+    @Override
+    public IPicoSlabStats getSlabStats() {
+        return mNodeFactory.slabStats();
+    }
+
+    @Override
+    public void flush() {
+        mNodeFactory.flush();
+    }
+
+    @Override
+    public void clear() {
+        mSingleFlight.clear();
+
+        mEvictionLock.lock();
+        try {
+            drainReadBuffers();
+
+            if (!mIndex.isEmpty()) {
+                for (ICacheNode node : mIndex.values()) {
+                    node.dispose();
+                }
+                mIndex.clear();
+                mSize = 0;
+                settle(0);
+
+                if (mTrimmer != null) {
+                    mTrimmer.clear();
+                }
+            }
+        } finally {
+            mEvictionLock.unlock();
+        }
+    }
+
+    /**
+     * The nodes are in memory, so it's clear plus the store cannot be used afterwards.
+     */
+    @Override
+    public void close() {
+        mIsClosed = true;
+        clear();
+    }
+
+    @Override
+    public String toString() {
+        String ret = super.toString().concat("\n");
+
+        for (ICacheNode current : mIndex.values()) {
+            ret = ret.concat("key=" + current.getKey()
+                    + "; data size=" + current.size() + "\n");
+        }
+
+        return ret;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Protected/Private ///////////////////////////////////////////////////////////////////////////
+
+    protected void checkOpen() throws IllegalStateException {
+        if (mIsClosed) {
+            throw new IllegalStateException("The cache is closed.");
+        }
+    }
+
+    /**
+     * Put the data as encoded by the Compressor.
+     */
+    protected void putEncoded(String key, byte[] data, long ttl) {
+        checkOpen();
+
+        mEvictionLock.lock();
+        try {
+            drainReadBuffers();
+
+            long now = expire();
+            long size = insert(key, data, mSize, ttl, now);
+
+            // Trim the cache if it is overflowed.
+            mSize = trim(size);
+        } catch (Exception e) {
+            // DO NOTHING.
+        } finally {
+            mEvictionLock.unlock();
+        }
+    }
+
+    /**
+     * Insert or replace the node of the key without trimming, under the eviction lock.
+     * @param ttl The time to live in milliseconds, 0 if it never expires.
+     * @param now The current time of the wheel.
+     * @return The total size after the insertion.
+     */
+    protected long insert(String key, byte[] data, long size, long ttl, long now)
+            throws IllegalArgumentException {
+        ICacheNode current = mIndex.get(key);
+
+        if (current != null) {
+            // Replace the data in place, the trimmer decides whether it is an access.
+            size -= current.weight();
+            current.setData(data);
+            size += CacheStore.weigh(mWeigher, current);
+            mWheel.schedule(current, ttl, now);
+
+            if (mTrimmer != null) {
+                mTrimmer.onAccess(current);
+            }
+
+            StatsRecorder stats = mStats;
+            if (stats != null) {
+                stats.record(StatsRecorder.PUT);
+                stats.record(StatsRecorder.REPLACE);
+            }
+        } else {
+            // Use node factory to create responsive cache node.
+            ICacheNode node = mNodeFactory.create(key, data);
+
+            mIndex.put(key, node);
+            size += CacheStore.weigh(mWeigher, node);
+            mWheel.schedule(node, ttl, now);
+
+            if (mTrimmer != null) {
+                mTrimmer.onAdd(node);
+            }
+
+            StatsRecorder stats = mStats;
+            if (stats != null) {
+                stats.record(StatsRecorder.PUT);
+            }
+        }
+
+        return size;
+    }
+
+    protected void recordRead(ICacheNode node) {
+        long id = Thread.currentThread().getId();
+        int hash = (int) (id ^ (id >>> 32)) * 0x9e3779b9;
+        ReadBuffer buffer = mReadBuffers[(hash >>> 16) & (mReadBuffers.length - 1)];
+
+        int pending = buffer.offer(node);
+        if (pending >= DRAIN_THRESHOLD && mEvictionLock.tryLock()) {
+            try {
+                drainReadBuffers();
+                expire();
+            } finally {
+                mEvictionLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Advance the wheel and remove the expired nodes, must be called with the eviction lock held.
+     * @return The current time of the wheel.
+     */
+    protected long expire() {
+        long now = TimerWheel.now();
+        StatsRecorder stats = mStats;
+
+        for (ICacheNode node : mWheel.advance(now)) {
+            String key = node.getKey();
+
+            if (key != null && mIndex.remove(key, node)) {
+                if (mTrimmer != null) {
+                    mTrimmer.onRemove(node);
+                }
+
+                long weight = node.weight();
+                mSize -= weight;
+                node.dispose();
+
+                if (stats != null) {
+                    stats.recordEviction(IPicoCacheStats.CAUSE_EXPIRED, 1, weight);
+                }
+            }
+        }
+
+        mSize = settle(mSize);
+
+        return now;
+    }
+
+    /**
+     * Trim the store to the maximum size and count the evictions, must be called with the
+     * eviction lock held.
+     * @return The total size after the trimming.
+     */
+    protected long trim(long size) {
+        size = settle(size);
+
+        if (mTrimmer == null) {
+            return size;
+        }
+
+        // Trim again if the trimmed nodes handed their shared data over.
+        long trimmed;
+        do {
+            int count = mIndex.size();
+            trimmed = mTrimmer.trim(mIndex, size, mSizeMax, null);
+
+            StatsRecorder stats = mStats;
+            if (stats != null && mIndex.size() < count) {
+                stats.recordEviction(IPicoCacheStats.CAUSE_SIZE, count - mIndex.size(),
+                        size - trimmed);
+            }
+
+            size = settle(trimmed);
+        } while (size != trimmed && size > mSizeMax);
+
+        return size;
+    }
+
+    /**
+     * Weigh the nodes again which have taken the shared data over from the removed ones, must
+     * be called with the eviction lock held.
+     * @return The total size after the weighing.
+     */
+    protected long settle(long size) {
+        if (mDedup == null) {
+            return size;
+        }
+
+        for (ICacheNode node : mDedup.drainTransfers()) {
+            String key = node.getKey();
+
+            if (key != null && mIndex.get(key) == node) {
+                size -= node.weight();
+                size += CacheStore.weigh(mWeigher, node);
+            }
+        }
+
+        return size;
+    }
+
+    // Must be called with the eviction lock held.
+    protected void drainReadBuffers() {
+        for (ReadBuffer buffer : mReadBuffers) {
+            buffer.drainTo(this);
+        }
+    }
+
+    // Must be called with the eviction lock held.
+    protected void onRead(ICacheNode node) {
+        // Skip the nodes evicted after the read was recorded.
+        String key = node.getKey();
+
+        if (mTrimmer != null && key != null && mIndex.get(key) == node) {
+            mTrimmer.onAccess(node);
+        }
+    }
+
+    /**
+     * A lossy multiple-producer ring buffer, drained by the eviction lock holder.
+     */
+    protected static class ReadBuffer {
+
+        final AtomicReferenceArray<ICacheNode> mSlots =
+                new AtomicReferenceArray<>(BUFFER_SIZE);
+        final AtomicLong mWriteCount = new AtomicLong();
+        volatile long mReadCount = 0;
+
+        /**
+         * Record the read, or drop it if the buffer is full or another reader wins the slot.
+         * @return The number of pending records.
+         */
+        int offer(ICacheNode node) {
+            long head = mReadCount;
+            long tail = mWriteCount.get();
+            int pending = (int) (tail - head);
+
+            if (pending < BUFFER_SIZE && mWriteCount.compareAndSet(tail, tail + 1)) {
+                mSlots.lazySet((int) (tail & BUFFER_MASK), node);
+                ++pending;
+            }
+
+            return pending;
+        }
+
+        void drainTo(LockFreeReadCacheStore store) {
+            long head = mReadCount;
+            long tail = mWriteCount.get();
+
+            while (head < tail) {
+                int index = (int) (head & BUFFER_MASK);
+                ICacheNode node = mSlots.get(index);
+
+                // The writer has claimed the slot but not published it yet.
+                if (node == null) {
+                    break;
+                }
+
+                mSlots.lazySet(index, null);
+                store.onRead(node);
+                ++head;
+            }
+
+            mReadCount = head;
+        }
+    }
+
+}
@@ -0,0 +1,14 @@
+package cb.quiz.picocache.factory;
+
+/**
+ * Evict the least recently used nodes first. A hit moves the node to the tail of the list so
+ * the head is always the coldest one.
+ */
+class LruTrimmer extends FifoTrimmer {
+
+    @Override
+    public void onAccess(ICacheNode node) {
+        mList.moveToLast(node);
+    }
+
+}
@@ -0,0 +1,70 @@
+package cb.quiz.picocache.factory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Write the data of a new node straight into the SegmentLog, see
+ * ICacheNodeFactory.openOutputStream. The data is written as it is, the caller frames it if
+ * needed. Not thread-safe.
+ */
+abstract class NodeOutputStream extends OutputStream {
+
+    protected final String mKey;
+    protected final SegmentLog.Writer mWriter;
+
+    NodeOutputStream(String key, SegmentLog.Writer writer) {
+        mKey = key;
+        mWriter = writer;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        mWriter.write(ByteBuffer.wrap(b, off, len));
+    }
+
+    /**
+     * Overwrite the bytes already written at the position, e.g. a header.
+     */
+    void overwrite(byte[] b, long position) throws IOException {
+        mWriter.write(ByteBuffer.wrap(b), position);
+    }
+
+    /**
+     * Put the data into the log and create the node holding it.
+     * @return The node, or null if nothing is written.
+     */
+    ICacheNode toNode() throws IOException {
+        SegmentLog.Record record = mWriter.commit(mKey);
+        return record != null ? createNode(record) : null;
+    }
+
+    /**
+     * Give the written data up.
+     */
+    void abort() {
+        mWriter.abort();
+    }
+
+    /**
+     * Discard the data if it's never committed.
+     */
+    @Override
+    public void close() {
+        abort();
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Protected/Private ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @return The node of the committed record.
+     */
+    protected abstract ICacheNode createNode(SegmentLog.Record record);
+}
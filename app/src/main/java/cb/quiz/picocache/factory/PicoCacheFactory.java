@@ -1,14 +1,11 @@
 package cb.quiz.picocache.factory;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.util.LinkedList;
-import java.util.ListIterator;
-import java.util.UUID;
 
+import cb.quiz.picocache.iface.IPicoAsyncCache;
 import cb.quiz.picocache.iface.IPicoCache;
+import cb.quiz.picocache.iface.IPicoTieredCache;
+import cb.quiz.picocache.iface.IPicoWeigher;
 
 /**
  * Author: boyw165
@@ -20,487 +17,258 @@ import cb.quiz.picocache.iface.IPicoCache;
  *                            PicoCacheFactory
  * ----------------------------------------------------------------------------
  *           create() => IPicoCache (implemented by CacheStore)
+ * createConcurrent() => IPicoCache (implemented by SegmentedCacheStore, N x CacheStore)
+ * createLockFreeRead() => IPicoCache (implemented by LockFreeReadCacheStore)
+ *     createTiered() => IPicoTieredCache (implemented by TieredCacheStore, 2 x CacheStore)
+ * createWriteBehind() => IPicoCache (implemented by CacheStore with WriteBehindNodeFactory)
+ *      createAsync() => IPicoAsyncCache (implemented by AsyncCacheStore, over any IPicoCache)
+ *    createCompact() => IPicoCache (implemented by CompactCacheStore, no object per entry)
  *
  * CacheStore
- * - Use ICacheNodeFactory to create node in linked-list according to node type.
- * - Use ICacheStoreTrimmer to trim linked-list according to strategy.
+ * - Use ICacheNodeFactory to create node according to node type.
+ * - Use a hash index (key => node) for O(1) lookup.
+ * - Use ICacheStoreTrimmer to order the nodes and trim them according to strategy. Every store
+ *   has its own trimmer instance.
+ * - The TYPE_FILE stores are restored from the journal of the SegmentLog on creation.
  *
- *            ICacheStoreTrimmer             ICacheNodeFactory
- *                   |                              |
- *           .-------+-------.              .-------+--------.
- *           |               |              |                |
- *     FifoTrimmer      LifoTrimmer     MemoNode          FileNode
+ *                       ICacheStoreTrimmer                           ICacheNodeFactory
+ *                               |                                           |
+ *        .---------+-----------+-+---------+-------------.      .-----------+-----------.
+ *        |         |             |         |             |      |           |           |
+ *   FifoTrimmer LifoTrimmer LruTrimmer LfuTrimmer TinyLfuTrimmer MemoNode  FileNode    SlabNode
+ *                                                        |                  |           |
+ *                                                 FrequencySketch       SegmentLog SlabAllocator
  *
  */
 public class PicoCacheFactory {
 
     public static final int TYPE_MEMORY     = 0x00000001;
     public static final int TYPE_FILE       = 0x00000002;
+    // Memory cache keeping the data off the heap in slabs.
+    public static final int TYPE_OFFHEAP    = 0x00000003;
+    // Memory tier in front of a file tier, see createTiered.
+    public static final int TYPE_TIERED     = 0x00000004;
 
     public static final int STRATEGY_FIFO   = 0x10000001;
     public static final int STRATEGY_LIFO   = 0x10000002;
+    public static final int STRATEGY_LRU    = 0x10000003;
+    public static final int STRATEGY_LFU    = 0x10000004;
+    // LRU guarded by a TinyLFU admission filter (W-TinyLFU).
+    public static final int STRATEGY_TINYLFU = 0x10000005;
+    // LRU approximated by sampling, without any ordered structure (Redis-style).
+    public static final int STRATEGY_SAMPLED = 0x10000006;
 
-    private static final int DEFAULT_CACHE_SIZE = 20;
+    private static final int MAX_SEGMENTS = 1 << 16;
 
-    // Trimmer worker in respect of STRATEGY_FIFO/LIFO.
-    private static final ICacheStoreTrimmer mFifoTrimmer = new FifoTrimmer();
-    private static final ICacheStoreTrimmer mLifoTrimmer = new LifoTrimmer();
+    // The directory and the file name prefix of the segment files and the journal of TYPE_FILE.
+    private static final File FILE_CACHE_DIR = new File("/var/tmp");
+    private static final String FILE_CACHE_PREFIX = "picocache";
 
-    // Node factory.
+    // Node factory, the file node factory is created per store since it refers to a SegmentLog.
     private static final ICacheNodeFactory mMemoNodeFactory = new CacheNodeFactory(TYPE_MEMORY);
-    private static final ICacheNodeFactory mFileNodeFactory = new CacheNodeFactory(TYPE_FILE);
 
     public PicoCacheFactory() {
         throw new RuntimeException("Cannot be constructed!");
     }
 
+    /**
+     * Create a cache. TYPE_FILE survives a restart: the cache is restored from the files left by
+     * the last TYPE_FILE cache. Only one file cache owns the files at a time, so creating
+     * another one closes the open one, whose puts and gets throw IllegalStateException
+     * afterwards.
+     */
     public static IPicoCache create(int cacheType, int cacheStrategy) {
-        ICacheStoreTrimmer trimmer = null;
-        ICacheNodeFactory factory = null;
-
-        // Cache type.
-        switch (cacheType) {
-            case TYPE_MEMORY:
-                factory = mMemoNodeFactory;
-                break;
-            case TYPE_FILE:
-                factory = mFileNodeFactory;
-                break;
-        }
-
-        // Cache strategy.
-        switch (cacheStrategy) {
-            case STRATEGY_FIFO:
-                trimmer = mFifoTrimmer;
-                break;
-            case STRATEGY_LIFO:
-                trimmer = mLifoTrimmer;
-                break;
-        }
-
-        if (factory == null) {
-            throw new RuntimeException("Wrong cache type.");
+        if (cacheType == TYPE_TIERED) {
+            return createTiered(cacheStrategy, cacheStrategy);
         }
 
-        return new CacheStore(factory, trimmer);
+        return createRestoredStore(cacheType, cacheStrategy);
     }
 
-    ////////////////////////////////////////////////////////////////////////////////////////////////
-    // Store ///////////////////////////////////////////////////////////////////////////////////////
-
-    private static class CacheStore implements IPicoCache {
-
-        // Current total size in bytes.
-        protected int mSize;
-
-        // Maximum total size in bytes.
-        protected int mSizeMax;
-
-        // The linked-list store.
-        protected LinkedList<ICacheNode> mList;
-
-        // The trimmer.
-        protected ICacheStoreTrimmer mTrimmer = null;
-
-        // The node factory.
-        protected ICacheNodeFactory mNodeFactory = null;
-
-        public CacheStore(ICacheNodeFactory factory, ICacheStoreTrimmer trimmer) {
-            mSize = 0;
-            mSizeMax = DEFAULT_CACHE_SIZE;
-            mList = new LinkedList<>();
-            mTrimmer = trimmer;
-            mNodeFactory = factory;
+    /**
+     * Create a cache partitioning the keys into independent segments, each with its own lock,
+     * size accounting and trimmer. The maximum cache size is split evenly across the segments.
+     * @param concurrencyLevel The expected number of concurrent threads, rounded up to a power
+     *                         of 2 as the number of segments.
+     */
+    public static IPicoCache createConcurrent(int cacheType, int cacheStrategy,
+                                              int concurrencyLevel) {
+        if (concurrencyLevel <= 0 || concurrencyLevel > MAX_SEGMENTS) {
+            throw new IllegalArgumentException("The concurrency level is either less/equal than" +
+                    " 0 or greater than " + MAX_SEGMENTS);
         }
 
-        @Override
-        public synchronized void setCacheSize(int kb) throws IllegalArgumentException {
-            if (kb <= 0) {
-                throw new IllegalArgumentException("The cache size is either less/equal than 0" +
-                        " or greater than Integer.MAX_VALUE");
-            }
-
-            mSizeMax = kb << 10;
-
-            if (mTrimmer != null) {
-                mSize = mTrimmer.trim(mList, mSize, mSizeMax);
-            }
+        int count = 1;
+        while (count < concurrencyLevel) {
+            count <<= 1;
         }
 
-        @Override
-        public synchronized void put(String key, byte[] data) throws IllegalArgumentException {
-            try {
-                boolean isFound = false;
-                ListIterator<ICacheNode> it = mList.listIterator();
-
-                // Check whether the given key is already in the store.
-                while (it.hasNext()) {
-                    ICacheNode current = it.next();
-                    if (current.isKey(key)) {
-
-                        mSize -= current.size();
-                        current.setData(data);
-                        mSize += current.size();
-
-                        isFound = true;
-                        break;
-                    }
-                }
-
-                // Create new node if it is new.
-                if (!isFound) {
-                    // Use node factory to create responsive cache node.
-                    ICacheNode node = mNodeFactory.create(key, data);
-
-                    mList.add(node);
-                    mSize += node.size();
-                }
-
-                // Trim the cache if it is overflowed.
-                if (mTrimmer != null) {
-                    mSize = mTrimmer.trim(mList, mSize, mSizeMax);
-                }
-
-            } catch (Exception e) {
-                // DO NOTHING.
-            }
+        // The segments share the log of TYPE_FILE, each holds a reference to it.
+        SegmentLog log = openLog(cacheType);
+        CacheStore[] segments = new CacheStore[count];
+        for (int i = 0; i < count; ++i) {
+            segments[i] = createStore(cacheType, cacheStrategy,
+                    i == 0 || log == null ? log : log.retain());
         }
 
-        @Override
-        public synchronized byte[] get(String key) {
-            try {
-                ListIterator<ICacheNode> it = mList.listIterator();
-
-                while (it.hasNext()) {
-                    ICacheNode current = it.next();
-                    if (current.isKey(key)) {
-                        return current.getData();
-                    }
-                }
-            } catch (Exception e) {
-                // DO NOTHING.
-            }
-
-            return null;
-        }
+        SegmentedCacheStore store = new SegmentedCacheStore(segments);
+        store.restore();
 
-        @Override
-        public synchronized int size() {
-            return mSize;
-        }
+        return store;
+    }
 
-        @Override
-        public synchronized void clear() {
-            if (!mList.isEmpty()) {
-                mList.clear();
-                mSize = 0;
-            }
+    /**
+     * Create a TYPE_FILE cache whose puts are staged in memory and written to the disk in the
+     * background, see flush. The putting thread writes itself once the staged data exceeds the
+     * staging size.
+     * @param stagingKb The maximum staged data in KB.
+     */
+    public static IPicoCache createWriteBehind(int cacheStrategy, int stagingKb) {
+        if (stagingKb <= 0) {
+            throw new IllegalArgumentException("The staging size is less/equal than 0");
         }
 
-        @Override
-        public synchronized String toString() {
-            String ret = super.toString().concat("\n");
-            ListIterator<ICacheNode> it = mList.listIterator();
-
-            while (it.hasNext()) {
-                ICacheNode current = it.next();
-                ret = ret.concat("key=" + current.getKey()
-                        + "; data size=" + current.size() + "\n");
-            }
+        CacheStore store = new CacheStore(
+                new WriteBehindNodeFactory(openLog(TYPE_FILE), (long) stagingKb << 10),
+                createTrimmer(cacheStrategy));
+        store.restore();
 
-            return ret;
-        }
+        return store;
     }
 
-    ////////////////////////////////////////////////////////////////////////////////////////////////
-    // Store Trimmer ///////////////////////////////////////////////////////////////////////////////
-
-    private interface ICacheStoreTrimmer {
-        /**
-         * Trim the list so that its size is less or equal than the maximum size.
-         * @param list The given list.
-         * @param size The current size of the list in bytes.
-         * @param max The maximum size of the list in bytes.
-         * @return The size after trimming.
-         */
-        int trim(final LinkedList<ICacheNode> list, int size, final int max);
-    }
+    /**
+     * Create a memory cache in front of a file cache, each with its own strategy and size. The
+     * entries trimmed from the memory tier are demoted to the file tier and the hits in the file
+     * tier are promoted back. The file tier is restored like TYPE_FILE.
+     */
+    public static IPicoTieredCache createTiered(int memoryStrategy, int fileStrategy) {
+        CacheStore memory = createStore(TYPE_MEMORY, memoryStrategy, null);
+        CacheStore file = createRestoredStore(TYPE_FILE, fileStrategy);
 
-    private static class FifoTrimmer implements ICacheStoreTrimmer {
-
-        @Override
-        public int trim(final LinkedList<ICacheNode> list, int size, final int max) {
-            ListIterator<ICacheNode> it = list.listIterator();
-
-            try {
-                while (size > max && it.hasNext()) {
-                    ICacheNode node = it.next();
-                    // Remove the node.
-                    it.remove();
-                    // Subtract the node's size.
-                    size -= node.size();
-                    // Dispose the node.
-                    node.dispose();
-                }
-            } catch (Exception e) {
-                // DO NOTHING.
-            }
-
-            return size;
-        }
+        return new TieredCacheStore(memory, file);
+    }
 
+    /**
+     * Create a weigher counting the heap footprint of an entry, i.e. the data plus the key and
+     * the per-entry objects, for IPicoCache.setWeigher.
+     */
+    public static IPicoWeigher createHeapWeigher() {
+        return new HeapWeigher();
     }
 
-    private static class LifoTrimmer implements ICacheStoreTrimmer {
-
-        @Override
-        public int trim(final LinkedList<ICacheNode> list, int size, final int max) {
-            ListIterator<ICacheNode> it = list.listIterator(list.size());
-
-            try {
-                while (size > max && it.hasPrevious()) {
-                    ICacheNode node = it.previous();
-                    // Remove the node.
-                    it.remove();
-                    // Subtract the node's size.
-                    size -= node.size();
-                    // Dispose the node.
-                    node.dispose();
-                }
-            } catch (Exception e) {
-                // DO NOTHING.
-            }
-
-            return size;
+    /**
+     * Wrap the cache with an asynchronous API running on its own I/O executor, whose threads
+     * are shut down by IPicoAsyncCache.close.
+     * @param parallelism The number of the I/O threads.
+     */
+    public static IPicoAsyncCache createAsync(IPicoCache cache, int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("The parallelism is less/equal than 0");
         }
 
+        return new AsyncCacheStore(cache, parallelism);
     }
 
-    ////////////////////////////////////////////////////////////////////////////////////////////////
-    // Store Node //////////////////////////////////////////////////////////////////////////////////
-
-    // Node factory interface.
-    private interface ICacheNodeFactory {
-        /**
-         * Create a cache node with given key and value.
-         * @param key Key.
-         * @param value Value or data.
-         * @return The node.
-         */
-        ICacheNode create(String key, byte[] value);
-    }
+    /**
+     * Create a memory cache whose get never takes a lock. The hits are recorded in lossy
+     * buffers and replayed to the trimmer in batches, so the eviction order of LRU/LFU/TINYLFU
+     * is approximated under heavy reads.
+     * @param cacheType Only TYPE_MEMORY is supported.
+     */
+    public static IPicoCache createLockFreeRead(int cacheType, int cacheStrategy) {
+        if (cacheType != TYPE_MEMORY) {
+            throw new RuntimeException("Wrong cache type.");
+        }
 
-    // Node interface.
-    private interface ICacheNode {
-        /**
-         * Set the key.
-         * @param key The given key.
-         * @throws IllegalArgumentException, if the given key is an empty string.
-         */
-        void setKey(String key) throws IllegalArgumentException;
-
-        /**
-         * @return The key.
-         */
-        String getKey();
-
-        /**
-         * Set the data.
-         * @param value The given data.
-         * @throws IllegalArgumentException, if the given value is empty.
-         */
-        void setData(byte[] value) throws IllegalArgumentException;
-
-        /**
-         * @return The data.
-         */
-        byte[] getData();
-
-        /**
-         * Compare the given key with the key of current cache node.
-         * @param key The given key.
-         * @return True if they are the same; false if not.
-         */
-        boolean isKey(String key);
-
-        /**
-         * @return The size of the data.
-         */
-        int size();
-
-        /**
-         * Dispose the resources using by the cache node.
-         */
-        void dispose();
+        return new LockFreeReadCacheStore(mMemoNodeFactory, createTrimmer(cacheStrategy));
     }
 
-    private static class CacheNodeFactory implements ICacheNodeFactory {
-
-        private int mType;
-
-        public CacheNodeFactory(int type) {
-            mType = type;
-        }
-
-        @Override
-        public ICacheNode create(String key, byte[] value) {
-            ICacheNode node = null;
-
-            switch (mType) {
-                case TYPE_MEMORY:
-                    node = new MemoNode();
-                    break;
-                case TYPE_FILE:
-                    node = new FileNode();
-                    break;
-            }
-
-            if (node != null) {
-                node.setKey(key);
-                node.setData(value);
-            }
-
-            return node;
+    /**
+     * Create a memory cache for millions of small entries. The index is made of primitive arrays
+     * and the keys and data are packed in byte pages, so there's no object per entry. The
+     * eviction samples SAMPLES entries like STRATEGY_SAMPLED, whatever the strategy.
+     * @param cacheType Only TYPE_MEMORY is supported.
+     */
+    public static IPicoCache createCompact(int cacheType) {
+        if (cacheType != TYPE_MEMORY) {
+            throw new RuntimeException("Wrong cache type.");
         }
 
-        private static abstract class BaseNode implements ICacheNode {
-
-            protected String mKey = null;
-
-            @Override
-            public void setKey(String key) throws IllegalArgumentException {
-                if (key.length() <= 0) {
-                    throw new IllegalArgumentException("Key cannot be empty.");
-                }
-
-                mKey = key;
-            }
-
-            @Override
-            public String getKey() {
-                return mKey;
-            }
+        return new CompactCacheStore();
+    }
 
-            @Override
-            public void setData(byte[] value) throws IllegalArgumentException {
-                if (value.length == 0) {
-                    throw new IllegalArgumentException("The given byte array is empty.");
-                }
-            }
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Protected/Private ///////////////////////////////////////////////////////////////////////////
 
-            @Override
-            public byte[] getData() {
-                return null;
-            }
+    private static CacheStore createRestoredStore(int cacheType, int cacheStrategy) {
+        CacheStore store = createStore(cacheType, cacheStrategy, openLog(cacheType));
+        store.restore();
 
-            @Override
-            public int size() {
-                return 0;
-            }
+        return store;
+    }
 
-            @Override
-            public boolean isKey(String key) {
-                return mKey.compareTo(key) == 0;
-            }
+    private static SegmentLog openLog(int cacheType) {
+        return cacheType == TYPE_FILE ? SegmentLog.open(FILE_CACHE_DIR, FILE_CACHE_PREFIX) : null;
+    }
 
-            @Override
-            public void dispose() {
-                mKey = null;
-            }
+    private static CacheStore createStore(int cacheType, int cacheStrategy, SegmentLog log) {
+        ICacheNodeFactory factory = null;
+        SlabAllocator allocator = null;
 
+        // Cache type.
+        switch (cacheType) {
+            case TYPE_MEMORY:
+                factory = mMemoNodeFactory;
+                break;
+            case TYPE_FILE:
+                factory = new CacheNodeFactory(TYPE_FILE, log);
+                break;
+            case TYPE_OFFHEAP:
+                allocator = new SlabAllocator();
+                factory = new SlabNodeFactory(allocator);
+                break;
         }
 
-        private static class MemoNode extends BaseNode {
-
-            private byte[] mValue = null;
-
-            @Override
-            public void setData(byte[] value) throws IllegalArgumentException {
-                super.setData(value);
-                mValue = value;
-            }
-
-            @Override
-            public byte[] getData() {
-                return mValue;
-            }
-
-            @Override
-            public int size() {
-                return mValue != null ? mValue.length : 0;
-            }
-
-            @Override
-            public void dispose() {
-                super.dispose();
-                mValue = null;
-            }
-
+        if (factory == null) {
+            throw new RuntimeException("Wrong cache type.");
         }
 
-        private static class FileNode extends BaseNode {
-
-            private int mSize = 0;
-            private String mFilePath = "/var/tmp/picocache-".concat(UUID.randomUUID().toString());
-
-            @Override
-            public void setData(byte[] value) throws IllegalArgumentException {
-                super.setData(value);
-
-                try {
-                    FileOutputStream os = new FileOutputStream(mFilePath);
-
-                    os.write(value);
-                    os.close();
-
-                    mSize = value.length;
-//                mFile = Environment.getDownloadCacheDirectory();
-                } catch (IOException e) {
-                    // DO NOTHING.
-                }
-            }
-
-            @Override
-            public byte[] getData() {
-                try {
-                    File file = new File(mFilePath);
-                    byte[] buffer = new byte[(int) file.length()];
-                    FileInputStream is = new FileInputStream(file);
-                    int readSize = 0;
-
-                    readSize = is.read(buffer, 0, buffer.length);
-                    is.close();
-
-                    if (readSize == mSize) {
-                        return buffer;
-                    }
-                } catch (IOException e) {
-                    // DO NOTHING.
-                }
-
-                return null;
-            }
-
-            @Override
-            public int size() {
-                return mSize;
-            }
+        CacheStore store = new CacheStore(factory, createTrimmer(cacheStrategy));
 
-            @Override
-            public void dispose() {
-                super.dispose();
+        // The slabs evict the nodes of the store when a size class runs out of chunks.
+        if (allocator != null) {
+            allocator.setEvictor(store);
+        }
 
-                File file = new File(mFilePath);
-                boolean isKilled = file.delete();
+        return store;
+    }
 
-                if (isKilled) {
-                    mSize = 0;
-                    mFilePath = null;
-                }
-            }
+    private static ICacheStoreTrimmer createTrimmer(int cacheStrategy) {
+        ICacheStoreTrimmer trimmer = null;
 
+        // Cache strategy, the trimmer keeps per-store state so it cannot be shared.
+        switch (cacheStrategy) {
+            case STRATEGY_FIFO:
+                trimmer = new FifoTrimmer();
+                break;
+            case STRATEGY_LIFO:
+                trimmer = new LifoTrimmer();
+                break;
+            case STRATEGY_LRU:
+                trimmer = new LruTrimmer();
+                break;
+            case STRATEGY_LFU:
+                trimmer = new LfuTrimmer();
+                break;
+            case STRATEGY_TINYLFU:
+                trimmer = new TinyLfuTrimmer();
+                break;
+            case STRATEGY_SAMPLED:
+                trimmer = new SampledTrimmer();
+                break;
         }
 
+        return trimmer;
     }
 
 }
@@ -0,0 +1,23 @@
+package cb.quiz.picocache.factory;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The read-only view of the data of a node, which stays intact until the pin is released even
+ * if the node is replaced or disposed in between.
+ */
+class Pin {
+
+    final ByteBuffer buffer;
+
+    Pin(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Let the data go, the view must not be used afterwards.
+     */
+    void release() {
+        // DO NOTHING.
+    }
+}
@@ -0,0 +1,57 @@
+package cb.quiz.picocache.factory;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Read the pinned data, the pin is released when the stream is closed. Not thread-safe.
+ */
+class PinInputStream extends InputStream {
+
+    protected final Pin mPin;
+    protected final ByteBuffer mBuffer;
+    protected boolean mIsClosed = false;
+
+    PinInputStream(Pin pin) {
+        mPin = pin;
+        mBuffer = pin.buffer.duplicate();
+    }
+
+    @Override
+    public int read() {
+        return mBuffer.hasRemaining() ? mBuffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (len == 0) {
+            return 0;
+        } else if (!mBuffer.hasRemaining()) {
+            return -1;
+        }
+
+        int count = Math.min(len, mBuffer.remaining());
+        mBuffer.get(b, off, count);
+        return count;
+    }
+
+    @Override
+    public long skip(long n) {
+        int count = (int) Math.max(0, Math.min(n, mBuffer.remaining()));
+        mBuffer.position(mBuffer.position() + count);
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return mBuffer.remaining();
+    }
+
+    @Override
+    public void close() {
+        if (!mIsClosed) {
+            mIsClosed = true;
+            mPin.release();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package cb.quiz.picocache.factory;
+
+import java.nio.ByteBuffer;
+
+import cb.quiz.picocache.iface.IPicoBuffer;
+
+/**
+ * A buffer of a BufferPool handed to the user, released back to the pool at most once.
+ */
+class PooledBuffer implements IPicoBuffer {
+
+    protected final BufferPool mPool;
+
+    // Null once released.
+    protected ByteBuffer mBuffer;
+
+    PooledBuffer(BufferPool pool, ByteBuffer buffer) {
+        mPool = pool;
+        mBuffer = buffer;
+    }
+
+    @Override
+    public synchronized ByteBuffer buffer() throws IllegalStateException {
+        if (mBuffer == null) {
+            throw new IllegalStateException("The buffer is released.");
+        }
+
+        return mBuffer;
+    }
+
+    @Override
+    public void release() {
+        ByteBuffer buffer;
+        synchronized (this) {
+            buffer = mBuffer;
+            mBuffer = null;
+        }
+
+        mPool.release(buffer);
+    }
+
+    /**
+     * Copy the data of the node into a buffer of the pool and decode it. The compressed data is
+     * inflated on the heap and copied into another buffer of the pool.
+     * @return The copy, or null if there's no data or it's corrupted.
+     */
+    static PooledBuffer copyOf(BufferPool pool, ICacheNode node) {
+        ByteBuffer buffer = node.copyTo(pool);
+        if (buffer == null) {
+            return null;
+        }
+
+        ByteBuffer data = Compressor.decode(buffer);
+        if (data == buffer) {
+            return new PooledBuffer(pool, buffer);
+        }
+
+        pool.release(buffer);
+        return copyOf(pool, data);
+    }
+
+    /**
+     * Copy the data into a buffer of the pool.
+     * @param data The data between the position and the limit.
+     * @return The copy, or null if there's no data.
+     */
+    static PooledBuffer copyOf(BufferPool pool, ByteBuffer data) {
+        if (data == null) {
+            return null;
+        }
+
+        ByteBuffer buffer = pool.acquire(data.remaining());
+        buffer.put(data.duplicate());
+        buffer.flip();
+
+        return new PooledBuffer(pool, buffer);
+    }
+}
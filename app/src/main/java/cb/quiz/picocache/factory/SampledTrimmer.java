@@ -0,0 +1,258 @@
+package cb.quiz.picocache.factory;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Evict the least recently used of SAMPLES random nodes, like the approximated LRU of Redis.
+ *
+ * There's no ordered structure at all. The nodes are packed in a dense array with their access
+ * ticks in a parallel primitive array, so a sample is a few random reads and a hit only writes
+ * a tick, no links are chased or moved. A node is found by an open-addressing table of the
+ * dense positions keyed by the hash of its key, with linear probing and backward-shift deletion.
+ * A removed node is replaced by the last one, so the array stays dense.
+ */
+class SampledTrimmer implements ICacheStoreTrimmer {
+
+    // The number of the candidates per eviction.
+    static final int SAMPLES = 5;
+
+    private static final int MIN_CAPACITY = 16;
+
+    // The nodes, their key hashes and access ticks at the same dense positions.
+    protected ICacheNode[] mNodes = new ICacheNode[MIN_CAPACITY];
+    protected int[] mHashes = new int[MIN_CAPACITY];
+    protected long[] mTicks = new long[MIN_CAPACITY];
+    protected int mCount = 0;
+
+    // The dense positions plus 1 by the hashes, 0 for an empty slot. At most half full.
+    protected int[] mTable = new int[MIN_CAPACITY * 2];
+
+    protected long mClock = 0;
+
+    // The state of the xorshift generator picking the samples.
+    protected long mSeed = 0x9e3779b97f4a7c15L;
+
+    @Override
+    public void onAdd(ICacheNode node) {
+        if (mCount == mNodes.length) {
+            grow();
+        }
+
+        int position = mCount++;
+        int hash = node.getKey().hashCode();
+
+        mNodes[position] = node;
+        mHashes[position] = hash;
+        mTicks[position] = ++mClock;
+
+        int mask = mTable.length - 1;
+        int slot = mix(hash) & mask;
+        while (mTable[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        mTable[slot] = position + 1;
+    }
+
+    @Override
+    public void onAccess(ICacheNode node) {
+        int slot = find(node);
+        if (slot >= 0) {
+            mTicks[mTable[slot] - 1] = ++mClock;
+        }
+    }
+
+    @Override
+    public void onRemove(ICacheNode node) {
+        int slot = find(node);
+        if (slot >= 0) {
+            remove(slot);
+        }
+    }
+
+    @Override
+    public void clear() {
+        mNodes = new ICacheNode[MIN_CAPACITY];
+        mHashes = new int[MIN_CAPACITY];
+        mTicks = new long[MIN_CAPACITY];
+        mTable = new int[MIN_CAPACITY * 2];
+        mCount = 0;
+    }
+
+    @Override
+    public long trim(final Map<String, ICacheNode> index, long size, final long max,
+                     final ICacheEvictionListener listener) {
+        try {
+            while (size > max && mCount > 0) {
+                int position = sample();
+                ICacheNode node = mNodes[position];
+                // Remove the node.
+                remove(slotOf(position));
+                index.remove(node.getKey());
+                // Subtract the node's weight.
+                size -= node.weight();
+                // Let the listener take it over, then dispose the node.
+                if (listener != null) {
+                    listener.onEvict(node);
+                }
+                node.dispose();
+            }
+        } catch (Exception e) {
+            // DO NOTHING.
+        }
+
+        return size;
+    }
+
+    /**
+     * @return The number of the nodes held.
+     */
+    int count() {
+        return mCount;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Protected/Private ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @return The dense position of the least recently used of the samples, all the nodes are
+     * the samples if there are no more than SAMPLES of them.
+     */
+    protected int sample() {
+        int victim = -1;
+
+        if (mCount <= SAMPLES) {
+            for (int i = 0; i < mCount; ++i) {
+                if (victim < 0 || mTicks[i] < mTicks[victim]) {
+                    victim = i;
+                }
+            }
+            return victim;
+        }
+
+        for (int i = 0; i < SAMPLES; ++i) {
+            int position = (int) ((nextRandom() >>> 33) % mCount);
+            if (victim < 0 || mTicks[position] < mTicks[victim]) {
+                victim = position;
+            }
+        }
+
+        return victim;
+    }
+
+    /**
+     * @return The slot of the node in the table, or -1 if it's not held.
+     */
+    protected int find(ICacheNode node) {
+        String key = node.getKey();
+        if (key == null) {
+            return -1;
+        }
+
+        int mask = mTable.length - 1;
+        int slot = mix(key.hashCode()) & mask;
+
+        while (mTable[slot] != 0) {
+            if (mNodes[mTable[slot] - 1] == node) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Remove the node of the slot and move the last node into its dense position.
+     */
+    protected void remove(int slot) {
+        int position = mTable[slot] - 1;
+        int last = mCount - 1;
+
+        deleteSlot(slot);
+
+        if (position != last) {
+            // Point the slot of the last node at its new position.
+            mTable[slotOf(last)] = position + 1;
+
+            mNodes[position] = mNodes[last];
+            mHashes[position] = mHashes[last];
+            mTicks[position] = mTicks[last];
+        }
+
+        mNodes[last] = null;
+        mCount = last;
+    }
+
+    /**
+     * @return The slot pointing at the dense position.
+     */
+    protected int slotOf(int position) {
+        int mask = mTable.length - 1;
+        int slot = mix(mHashes[position]) & mask;
+
+        while (mTable[slot] != position + 1) {
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+
+    /**
+     * Empty the slot and shift the following slots of the probe sequence back, so the lookups
+     * never stop at a hole.
+     */
+    protected void deleteSlot(int slot) {
+        int mask = mTable.length - 1;
+        int hole = slot;
+        int current = (slot + 1) & mask;
+
+        while (mTable[current] != 0) {
+            int home = mix(mHashes[mTable[current] - 1]) & mask;
+
+            // Move the entry into the hole unless its home lies cyclically in (hole, current].
+            if (((current - home) & mask) >= ((current - hole) & mask)) {
+                mTable[hole] = mTable[current];
+                hole = current;
+            }
+            current = (current + 1) & mask;
+        }
+
+        mTable[hole] = 0;
+    }
+
+    protected void grow() {
+        int capacity = mNodes.length * 2;
+
+        mNodes = Arrays.copyOf(mNodes, capacity);
+        mHashes = Arrays.copyOf(mHashes, capacity);
+        mTicks = Arrays.copyOf(mTicks, capacity);
+
+        // Rebuild the table at twice the capacity.
+        mTable = new int[capacity * 2];
+        int mask = mTable.length - 1;
+
+        for (int position = 0; position < mCount; ++position) {
+            int slot = mix(mHashes[position]) & mask;
+            while (mTable[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            mTable[slot] = position + 1;
+        }
+    }
+
+    protected long nextRandom() {
+        mSeed ^= mSeed << 13;
+        mSeed ^= mSeed >>> 7;
+        mSeed ^= mSeed << 17;
+        return mSeed;
+    }
+
+    /**
+     * Spread the bits of the hash, the keys often differ in the low bits only.
+     */
+    protected static int mix(int hash) {
+        hash *= 0x9e3779b9;
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,1109 @@
+package cb.quiz.picocache.factory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A log-structured store of values in a few large segment files.
+ *
+ * Values are always appended to the active segment, which is sealed once it grows over
+ * SEGMENT_SIZE and a new one is opened. A Record tells where a value lives. Freeing a record only
+ * marks its bytes dead; a segment without any live bytes is deleted right away, and a sealed one
+ * whose live ratio falls below COMPACT_RATIO is compacted in the background by copying its live
+ * records to the active segment.
+ *
+ * The file channels are kept open, so a read or write is a single positional I/O instead of an
+ * open/close pair. The sealed segments never change, so they are memory-mapped on the first
+ * read and served without any system call.
+ *
+ * Every append and free is also recorded in an append-only journal of key => location, so the
+ * log survives a restart. Opening the log replays the journal in a single sequential read and
+ * rewrites it compactly; the segment files are only opened on the first read, so a lost or
+ * truncated file just turns its records into misses. The segment files not referred by the
+ * journal are deleted in the background. The records belong to a single cache, so only one
+ * log is open on a journal at a time: opening it again closes the open one, and the cache of
+ * the closed log fails rather than sharing its records. The parts of one cache share the log
+ * by retain, and it's closed once every reference is released.
+ *
+ * A value of unknown length is streamed by a Writer into a segment of its own, which is sealed
+ * as soon as the value is committed, and streamed back by a Reader, so a large value never
+ * passes through the heap as a whole.
+ */
+class SegmentLog {
+
+    // The size at which the active segment is sealed.
+    static final long SEGMENT_SIZE = 4 << 20;
+
+    // Compact a sealed segment if the live bytes are less than this ratio.
+    static final float COMPACT_RATIO = 0.5f;
+
+    static final int JOURNAL_MAGIC = 0x5049434f;
+    // The version 1 wrote the keys with writeUTF, which cannot take the keys over 64KB.
+    static final int JOURNAL_VERSION = 2;
+
+    // Rewrite the journal once it has this many times more operations than live records.
+    static final int JOURNAL_REWRITE_RATIO = 2;
+    static final int JOURNAL_REWRITE_MIN_OPS = 1024;
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_DEL = 2;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // The open logs by their journal files.
+    private static final HashMap<File, SegmentLog> sOpenLogs = new HashMap<>();
+
+    // Shared by all the logs, compaction is rare and I/O bound anyway.
+    private static final ExecutorService sCompactor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "picocache-compactor");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * The location of a value. The fields are only touched under the lock of the log since the
+     * compactor moves the records around.
+     */
+    static class Record {
+        protected String mKey = null;
+        protected Segment mSegment = null;
+        protected long mOffset = 0;
+        protected int mLength = 0;
+    }
+
+    /**
+     * Tell whether a value is still wanted, asked under the lock of the log while appending.
+     */
+    interface AppendFilter {
+        /**
+         * @param index The index of the value.
+         */
+        boolean accept(int index);
+    }
+
+    /**
+     * Write a value in chunks into a segment of its own, without holding the lock of the log.
+     * The value is not in the log until committed.
+     */
+    class Writer {
+        protected final Segment mSegment;
+        protected long mLength = 0;
+        protected boolean mIsDone = false;
+
+        Writer(Segment segment) {
+            mSegment = segment;
+        }
+
+        /**
+         * Append the bytes to the value.
+         */
+        public void write(ByteBuffer buffer) throws IOException {
+            write(buffer, mLength);
+            mLength = Math.max(mLength, mSegment.length);
+        }
+
+        /**
+         * Overwrite the bytes of the value at the position, e.g. a header.
+         */
+        public void write(ByteBuffer buffer, long position) throws IOException {
+            if (mIsDone) {
+                throw new IOException("The writer is done.");
+            }
+
+            FileChannel channel = mSegment.channel();
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            mSegment.length = Math.max(mSegment.length, position);
+        }
+
+        /**
+         * Put the value into the log.
+         * @return The record of the value, or null if nothing is written.
+         */
+        public Record commit(String key) throws IOException {
+            synchronized (SegmentLog.this) {
+                if (mIsDone) {
+                    throw new IOException("The writer is done.");
+                }
+                if (mIsClosed) {
+                    abort();
+                    throw new IOException("The log is closed.");
+                }
+                if (mLength == 0 || mLength > Integer.MAX_VALUE) {
+                    abort();
+                    return null;
+                }
+                mIsDone = true;
+
+                Record record = new Record();
+                record.mKey = key;
+                record.mSegment = mSegment;
+                record.mOffset = 0;
+                record.mLength = (int) mLength;
+
+                mSegment.length = mLength;
+                mSegment.liveBytes = mLength;
+                mSegment.records.add(record);
+                mSegments.add(mSegment);
+
+                mLive.put(key, record);
+                journalPut(record);
+                flushJournal();
+
+                return record;
+            }
+        }
+
+        /**
+         * Give up the value and delete its segment.
+         */
+        public void abort() {
+            synchronized (SegmentLog.this) {
+                if (mIsDone) {
+                    return;
+                }
+                mIsDone = true;
+            }
+
+            mSegment.close();
+
+            //noinspection ResultOfMethodCallIgnored
+            mSegment.file.delete();
+        }
+    }
+
+    /**
+     * Read a value straight from its segment file, the lock of the log is taken per read rather
+     * than for the whole value. The record is followed when it's moved by the compaction, but
+     * the stream fails once the value is freed, e.g. replaced.
+     */
+    class Reader extends InputStream {
+        protected final Record mRecord;
+        protected long mPosition = 0;
+
+        Reader(Record record) {
+            mRecord = record;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            synchronized (SegmentLog.this) {
+                Segment segment = mRecord.mSegment;
+                if (segment == null || mIsClosed) {
+                    throw new IOException("The value is gone.");
+                }
+
+                if (mPosition >= mRecord.mLength) {
+                    return -1;
+                } else if (len == 0) {
+                    return 0;
+                }
+
+                int count = (int) Math.min(len, mRecord.mLength - mPosition);
+                int read = segment.channel().read(ByteBuffer.wrap(b, off, count),
+                        mRecord.mOffset + mPosition);
+                if (read < 0) {
+                    throw new EOFException("The file is shorter than the journal says.");
+                }
+
+                mPosition += read;
+                return read;
+            }
+        }
+
+        @Override
+        public long skip(long n) {
+            synchronized (SegmentLog.this) {
+                long skipped = Math.max(0, Math.min(n, mRecord.mLength - mPosition));
+                mPosition += skipped;
+                return skipped;
+            }
+        }
+
+        @Override
+        public int available() {
+            synchronized (SegmentLog.this) {
+                return (int) (mRecord.mLength - mPosition);
+            }
+        }
+    }
+
+    protected static class Segment {
+        final int id;
+        final File file;
+
+        // Opened on the first I/O.
+        RandomAccessFile raf = null;
+        FileChannel channel = null;
+
+        // Restored from the journal, the file must already exist.
+        final boolean isRestored;
+
+        // The write position, i.e. the total bytes in the file.
+        long length = 0;
+
+        // The bytes of the live records.
+        long liveBytes = 0;
+
+        boolean isCompacting = false;
+        boolean isDeleted = false;
+
+        // The read-only mapping of the whole segment, only for the sealed segments.
+        MappedByteBuffer mapping = null;
+
+        // The live records in the segment.
+        final HashSet<Record> records = new HashSet<>();
+
+        Segment(int id, File file, boolean isRestored) {
+            this.id = id;
+            this.file = file;
+            this.isRestored = isRestored;
+        }
+
+        FileChannel channel() throws IOException {
+            if (channel == null) {
+                if (isRestored && !file.exists()) {
+                    throw new FileNotFoundException(file.getPath());
+                }
+
+                raf = new RandomAccessFile(file, "rw");
+                channel = raf.getChannel();
+            }
+
+            return channel;
+        }
+
+        void close() {
+            try {
+                if (channel != null) {
+                    channel.close();
+                    raf.close();
+                }
+            } catch (IOException e) {
+                // DO NOTHING.
+            }
+        }
+    }
+
+    protected final File mDirectory;
+    protected final String mPrefix;
+
+    protected final ArrayList<Segment> mSegments = new ArrayList<>();
+    protected Segment mActive = null;
+    protected int mNextId = 0;
+
+    // The bytes of the memory-mapped segments.
+    protected long mMappedBytes = 0;
+
+    // The live records by their keys, in the order of appending.
+    protected final LinkedHashMap<String, Record> mLive = new LinkedHashMap<>();
+
+    protected final File mJournalFile;
+    protected DataOutputStream mJournal = null;
+    protected int mJournalOps = 0;
+
+    // Volatile so that the caches can check it without the lock.
+    protected volatile boolean mIsClosed = false;
+
+    // The references taken by open and retain, guarded by sOpenLogs.
+    protected int mRefs = 0;
+
+    /**
+     * Open the log and restore the records from its journal, the log already open on the same
+     * journal is closed first. Give the reference back by release.
+     * @param directory The directory holding the segment files and the journal.
+     * @param prefix The prefix of the file names.
+     */
+    public static SegmentLog open(File directory, String prefix) {
+        File journal = new File(directory, prefix + ".journal").getAbsoluteFile();
+
+        synchronized (sOpenLogs) {
+            SegmentLog old = sOpenLogs.remove(journal);
+            if (old != null) {
+                old.close();
+            }
+
+            SegmentLog log = new SegmentLog(directory, prefix);
+            log.load();
+            sOpenLogs.put(journal, log);
+
+            log.mRefs = 1;
+            return log;
+        }
+    }
+
+    /**
+     * Take another reference to the open log, for another part of the same cache.
+     */
+    public SegmentLog retain() {
+        synchronized (sOpenLogs) {
+            ++mRefs;
+            return this;
+        }
+    }
+
+    /**
+     * @return True if the log is closed, e.g. taken over by another log opened on its journal.
+     */
+    public boolean isClosed() {
+        return mIsClosed;
+    }
+
+    /**
+     * Give back a reference taken by open or retain, the log is closed with the last one.
+     */
+    public void release() {
+        synchronized (sOpenLogs) {
+            if (mRefs <= 0 || --mRefs > 0) {
+                return;
+            }
+
+            // The journal may be open by a newer log already.
+            File journal = mJournalFile.getAbsoluteFile();
+            if (sOpenLogs.get(journal) == this) {
+                sOpenLogs.remove(journal);
+            }
+            close();
+        }
+    }
+
+    protected SegmentLog(File directory, String prefix) {
+        mDirectory = directory;
+        mPrefix = prefix;
+        mJournalFile = new File(directory, prefix + ".journal");
+    }
+
+    /**
+     * Append the value to the active segment.
+     * @param record The record to fill in, it must not refer to any value.
+     * @param key The key of the value.
+     * @param value The value.
+     */
+    public synchronized void append(Record record, String key, byte[] value) throws IOException {
+        append(new Record[]{record}, new String[]{key}, new byte[][]{value});
+    }
+
+    /**
+     * Append the values to the active segment with a single write.
+     * @param records The records to fill in, they must not refer to any value.
+     * @param keys The keys of the values.
+     * @param values The values.
+     */
+    public synchronized void append(Record[] records, String[] keys, byte[][] values)
+            throws IOException {
+        ByteBuffer[] buffers = new ByteBuffer[values.length];
+        for (int i = 0; i < values.length; ++i) {
+            buffers[i] = ByteBuffer.wrap(values[i]);
+        }
+
+        append(records, keys, buffers);
+    }
+
+    /**
+     * Append the values accepted by the filter, the records of the others are left untouched.
+     * The filter is asked under the lock, so nothing is appended in between.
+     */
+    public synchronized void append(Record[] records, String[] keys, byte[][] values,
+                                    AppendFilter filter) throws IOException {
+        ArrayList<Integer> accepted = new ArrayList<>(values.length);
+        for (int i = 0; i < values.length; ++i) {
+            if (filter.accept(i)) {
+                accepted.add(i);
+            }
+        }
+
+        int count = accepted.size();
+        if (count == 0) {
+            return;
+        }
+
+        Record[] acceptedRecords = new Record[count];
+        String[] acceptedKeys = new String[count];
+        ByteBuffer[] buffers = new ByteBuffer[count];
+        for (int i = 0; i < count; ++i) {
+            int index = accepted.get(i);
+            acceptedRecords[i] = records[index];
+            acceptedKeys[i] = keys[index];
+            buffers[i] = ByteBuffer.wrap(values[index]);
+        }
+
+        append(acceptedRecords, acceptedKeys, buffers);
+    }
+
+    /**
+     * Append the values between the positions and the limits of the buffers, see append.
+     */
+    protected synchronized void append(Record[] records, String[] keys, ByteBuffer[] values)
+            throws IOException {
+        if (mIsClosed) {
+            throw new IOException("The log is closed.");
+        }
+
+        Segment segment = activeSegment();
+        int[] lengths = new int[values.length];
+        for (int i = 0; i < values.length; ++i) {
+            lengths[i] = values[i].remaining();
+        }
+
+        write(segment, values, segment.length);
+
+        for (int i = 0; i < records.length; ++i) {
+            Record record = records[i];
+
+            record.mKey = keys[i];
+            record.mSegment = segment;
+            record.mOffset = segment.length;
+            record.mLength = lengths[i];
+
+            segment.length += record.mLength;
+            segment.liveBytes += record.mLength;
+            segment.records.add(record);
+
+            mLive.put(record.mKey, record);
+            journalPut(record);
+        }
+        flushJournal();
+    }
+
+    /**
+     * Open a writer of a value of unknown length, see Writer.
+     */
+    public synchronized Writer openWriter() throws IOException {
+        if (mIsClosed) {
+            throw new IOException("The log is closed.");
+        }
+
+        int id = mNextId++;
+        return new Writer(new Segment(id, segmentFile(id), false));
+    }
+
+    /**
+     * @return The records restored from the journal in the order of appending.
+     */
+    public synchronized List<Record> records() {
+        return new ArrayList<>(mLive.values());
+    }
+
+    /**
+     * Sort the nodes by the locations of their records, so reading them in order goes through
+     * the segments sequentially. The nodes without any record come first.
+     * @param nodes The nodes to sort.
+     * @param records The records of the nodes at the same indexes, null if a node has none.
+     */
+    public void sortByLocation(List<ICacheNode> nodes, List<Record> records) {
+        int count = nodes.size();
+        final long[] locations = new long[count];
+
+        synchronized (this) {
+            for (int i = 0; i < count; ++i) {
+                Record record = records.get(i);
+                locations[i] = record == null || record.mSegment == null ? -1 :
+                        ((long) record.mSegment.id << 32) | record.mOffset;
+            }
+        }
+
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; ++i) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(locations[a], locations[b]);
+            }
+        });
+
+        ArrayList<ICacheNode> sorted = new ArrayList<>(count);
+        for (Integer i : order) {
+            sorted.add(nodes.get(i));
+        }
+        for (int i = 0; i < count; ++i) {
+            nodes.set(i, sorted.get(i));
+        }
+    }
+
+    /**
+     * Read the value of the record.
+     * @return The value or null if the record doesn't refer to any value.
+     */
+    public synchronized byte[] read(Record record) throws IOException {
+        if (record.mSegment == null || mIsClosed) {
+            return null;
+        }
+
+        byte[] value = new byte[record.mLength];
+        return read(record, ByteBuffer.wrap(value)) ? value : null;
+    }
+
+    /**
+     * Read the value of the record into the buffer at its position, e.g. a pooled buffer.
+     * @param dst The buffer with room for the value.
+     * @return False if the record doesn't refer to any value.
+     */
+    public synchronized boolean read(Record record, ByteBuffer dst) throws IOException {
+        if (record.mSegment == null || mIsClosed) {
+            return false;
+        }
+
+        ByteBuffer mapped = mapSealed(record);
+
+        if (mapped != null) {
+            dst.put(mapped);
+            return true;
+        }
+
+        ByteBuffer buffer = dst.duplicate();
+        buffer.limit(buffer.position() + record.mLength);
+        FileChannel channel = record.mSegment.channel();
+        long position = record.mOffset;
+
+        // A single read is not guaranteed to fill the buffer.
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                return false;
+            }
+            position += read;
+        }
+
+        dst.position(buffer.position());
+        return true;
+    }
+
+    /**
+     * Get a read-only view of the value of the record. The view of a value in a sealed segment
+     * is backed by the memory-mapped file, so there's no heap copy. The active segment is still
+     * growing and not mapped, so its values are copied.
+     * @return The view or null if the record doesn't refer to any value.
+     */
+    public synchronized ByteBuffer readBuffer(Record record) throws IOException {
+        ByteBuffer mapped = mapSealed(record);
+        if (mapped != null) {
+            return mapped;
+        }
+
+        byte[] value = read(record);
+        return value != null ? ByteBuffer.wrap(value).asReadOnlyBuffer() : null;
+    }
+
+    /**
+     * Open a stream reading the value of the record in chunks, see Reader.
+     * @return The stream or null if the record doesn't refer to any value.
+     */
+    public synchronized Reader openReader(Record record) {
+        return record.mSegment != null && !mIsClosed ? new Reader(record) : null;
+    }
+
+    /**
+     * Mark the bytes of the record dead.
+     */
+    public synchronized void free(Record record) {
+        Segment segment = record.mSegment;
+        if (segment == null || mIsClosed) {
+            record.mSegment = null;
+            return;
+        }
+
+        record.mSegment = null;
+        segment.records.remove(record);
+        segment.liveBytes -= record.mLength;
+
+        if (mLive.get(record.mKey) == record) {
+            mLive.remove(record.mKey);
+            journalDelete(record.mKey);
+        }
+
+        if (segment.liveBytes <= 0) {
+            if (segment == mActive) {
+                mActive = null;
+            }
+            deleteSegment(segment);
+        } else if (segment != mActive && !segment.isCompacting &&
+                segment.liveBytes < segment.length * COMPACT_RATIO) {
+            segment.isCompacting = true;
+            scheduleCompaction(segment);
+        }
+    }
+
+    /**
+     * @return The bytes of the live records.
+     */
+    public synchronized long liveBytes() {
+        long bytes = 0;
+        for (Segment segment : mSegments) {
+            bytes += segment.liveBytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return The bytes of all the segment files, including the dead ones.
+     */
+    public synchronized long diskBytes() {
+        long bytes = 0;
+        for (Segment segment : mSegments) {
+            bytes += segment.length;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return The bytes of the memory-mapped segments.
+     */
+    public synchronized long mappedBytes() {
+        return mMappedBytes;
+    }
+
+    /**
+     * @return The number of segment files.
+     */
+    public synchronized int segmentCount() {
+        return mSegments.size();
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Protected/Private ///////////////////////////////////////////////////////////////////////////
+
+    protected Segment activeSegment() throws IOException {
+        if (mActive == null || mActive.length >= SEGMENT_SIZE) {
+            int id = mNextId++;
+            File file = new File(mDirectory, mPrefix + "-" + id + ".seg");
+
+            mActive = new Segment(id, file, false);
+            mSegments.add(mActive);
+        }
+
+        return mActive;
+    }
+
+    /**
+     * @return The read-only view of the record in its mapped segment, or null if the segment is
+     * still active.
+     */
+    protected ByteBuffer mapSealed(Record record) throws IOException {
+        Segment segment = record.mSegment;
+        if (segment == null || segment == mActive || mIsClosed) {
+            return null;
+        }
+
+        // A sealed segment never grows, so it is mapped only once.
+        if (segment.mapping == null) {
+            segment.mapping = segment.channel().map(FileChannel.MapMode.READ_ONLY, 0,
+                    segment.length);
+            mMappedBytes += segment.length;
+        }
+
+        // The file is shorter than the journal says.
+        if (record.mOffset + record.mLength > segment.mapping.capacity()) {
+            return null;
+        }
+
+        ByteBuffer view = segment.mapping.duplicate();
+        view.position((int) record.mOffset);
+        view.limit((int) (record.mOffset + record.mLength));
+
+        return view.slice();
+    }
+
+    protected void deleteSegment(Segment segment) {
+        segment.isDeleted = true;
+        mSegments.remove(segment);
+
+        // Unmap the segment. There's no public API to unmap it eagerly, and doing so would crash
+        // whoever still holds a view, so the pages are released once the views are collected.
+        if (segment.mapping != null) {
+            mMappedBytes -= segment.length;
+            segment.mapping = null;
+        }
+
+        segment.close();
+
+        //noinspection ResultOfMethodCallIgnored
+        segment.file.delete();
+    }
+
+    protected void scheduleCompaction(final Segment segment) {
+        sCompactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                compact(segment);
+            }
+        });
+    }
+
+    /**
+     * Move the live records of the segment to the active segment and delete it. The lock is
+     * taken per record so that the readers are not stalled for the whole segment.
+     */
+    protected void compact(Segment segment) {
+        ArrayList<Record> records;
+        synchronized (this) {
+            if (segment.isDeleted || mIsClosed) {
+                return;
+            }
+            records = new ArrayList<>(segment.records);
+        }
+
+        for (Record record : records) {
+            synchronized (this) {
+                // The record has been freed or replaced in between.
+                if (record.mSegment != segment || mIsClosed) {
+                    continue;
+                }
+
+                // The value is moved through a pooled direct buffer, which the channel writes
+                // without another copy.
+                ByteBuffer value = BufferPool.DIRECT.acquire(record.mLength);
+                try {
+                    if (!read(record, value)) {
+                        continue;
+                    }
+                    value.flip();
+
+                    segment.records.remove(record);
+                    segment.liveBytes -= record.mLength;
+                    record.mSegment = null;
+
+                    append(new Record[]{record}, new String[]{record.mKey},
+                            new ByteBuffer[]{value});
+                } catch (IOException e) {
+                    // Keep it where it is.
+                    segment.records.add(record);
+                    segment.liveBytes += record.mLength;
+                    record.mSegment = segment;
+                } finally {
+                    BufferPool.DIRECT.release(value);
+                }
+            }
+        }
+
+        synchronized (this) {
+            segment.isCompacting = false;
+
+            if (!segment.isDeleted && !mIsClosed && segment.records.isEmpty()) {
+                deleteSegment(segment);
+            }
+        }
+    }
+
+    protected static void write(Segment segment, ByteBuffer[] buffers, long position)
+            throws IOException {
+        FileChannel channel = segment.channel();
+        ByteBuffer last = buffers[buffers.length - 1];
+
+        // A gathering write at the position, the channel is only used under the lock.
+        channel.position(position);
+        while (last.hasRemaining()) {
+            channel.write(buffers);
+        }
+    }
+
+    protected File segmentFile(int id) {
+        return new File(mDirectory, mPrefix + "-" + id + ".seg");
+    }
+
+    /**
+     * Replay the journal, then rewrite it and sweep the orphan segment files.
+     */
+    protected synchronized void load() {
+        HashMap<Integer, Segment> segments = new HashMap<>();
+        DataInputStream in = null;
+
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mJournalFile),
+                    64 << 10));
+
+            int version = in.readInt() == JOURNAL_MAGIC ? in.readInt() : 0;
+            if (version == 1 || version == JOURNAL_VERSION) {
+                while (true) {
+                    byte op = in.readByte();
+                    String key = version == 1 ? in.readUTF() : readKey(in, mJournalFile.length());
+                    Record old = mLive.remove(key);
+
+                    if (old != null) {
+                        old.mSegment.records.remove(old);
+                        old.mSegment.liveBytes -= old.mLength;
+                    }
+
+                    if (op == OP_PUT) {
+                        int id = in.readInt();
+                        Segment segment = segments.get(id);
+                        if (segment == null) {
+                            File file = segmentFile(id);
+                            segment = new Segment(id, file, true);
+                            segment.length = file.length();
+                            segments.put(id, segment);
+                        }
+
+                        Record record = new Record();
+                        record.mKey = key;
+                        record.mSegment = segment;
+                        record.mOffset = in.readInt();
+                        record.mLength = in.readInt();
+
+                        segment.records.add(record);
+                        segment.liveBytes += record.mLength;
+                        mLive.put(key, record);
+                    } else if (op != OP_DEL) {
+                        break;
+                    }
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // A new log.
+        } catch (EOFException e) {
+            // The end of the journal, the last operation may be incomplete.
+        } catch (IOException e) {
+            // DO NOTHING.
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // DO NOTHING.
+                }
+            }
+        }
+
+        // The segments without any live record are orphans.
+        for (Segment segment : segments.values()) {
+            if (!segment.records.isEmpty()) {
+                mSegments.add(segment);
+                mNextId = Math.max(mNextId, segment.id + 1);
+            }
+        }
+
+        sweepOrphans();
+        rewriteJournal();
+    }
+
+    /**
+     * Delete the segment files that are not referred by the journal in the background.
+     */
+    protected void sweepOrphans() {
+        String[] names = mDirectory.list();
+        if (names == null) {
+            return;
+        }
+
+        HashSet<String> live = new HashSet<>();
+        for (Segment segment : mSegments) {
+            live.add(segment.file.getName());
+        }
+
+        final ArrayList<File> orphans = new ArrayList<>();
+        String head = mPrefix + "-";
+
+        for (String name : names) {
+            if (!name.startsWith(head) || !name.endsWith(".seg") || live.contains(name)) {
+                continue;
+            }
+            orphans.add(new File(mDirectory, name));
+
+            // Never reuse the id of a file being deleted.
+            try {
+                int id = Integer.parseInt(name.substring(head.length(), name.length() - 4));
+                mNextId = Math.max(mNextId, id + 1);
+            } catch (NumberFormatException e) {
+                // DO NOTHING.
+            }
+        }
+
+        if (!orphans.isEmpty()) {
+            sCompactor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (File file : orphans) {
+                        //noinspection ResultOfMethodCallIgnored
+                        file.delete();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Write the live records to a new journal and replace the old one with it.
+     */
+    protected void rewriteJournal() {
+        closeJournal();
+
+        File temp = new File(mDirectory, mJournalFile.getName() + ".tmp");
+        DataOutputStream out = null;
+
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp),
+                    64 << 10));
+            out.writeInt(JOURNAL_MAGIC);
+            out.writeInt(JOURNAL_VERSION);
+
+            for (Record record : mLive.values()) {
+                writePut(out, record);
+            }
+            out.close();
+            out = null;
+
+            if (!temp.renameTo(mJournalFile)) {
+                throw new IOException("Cannot replace " + mJournalFile);
+            }
+
+            mJournal = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(mJournalFile, true)));
+            mJournalOps = mLive.size();
+        } catch (IOException e) {
+            // Carry on without the journal, the log is lost on a restart.
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                    // DO NOTHING.
+                }
+            }
+        }
+    }
+
+    protected void journalPut(Record record) {
+        if (mJournal == null) {
+            return;
+        }
+
+        try {
+            writePut(mJournal, record);
+        } catch (IOException e) {
+            closeJournal();
+            return;
+        }
+
+        onJournalWritten();
+    }
+
+    protected void journalDelete(String key) {
+        if (mJournal == null) {
+            return;
+        }
+
+        try {
+            mJournal.writeByte(OP_DEL);
+            writeKey(mJournal, key);
+            mJournal.flush();
+        } catch (IOException e) {
+            closeJournal();
+            return;
+        }
+
+        onJournalWritten();
+    }
+
+    protected void flushJournal() {
+        if (mJournal == null) {
+            return;
+        }
+
+        try {
+            mJournal.flush();
+        } catch (IOException e) {
+            closeJournal();
+        }
+    }
+
+    protected void onJournalWritten() {
+        ++mJournalOps;
+
+        if (mJournalOps >= JOURNAL_REWRITE_MIN_OPS &&
+                mJournalOps > JOURNAL_REWRITE_RATIO * mLive.size()) {
+            rewriteJournal();
+        }
+    }
+
+    protected void closeJournal() {
+        if (mJournal != null) {
+            try {
+                mJournal.close();
+            } catch (IOException e) {
+                // DO NOTHING.
+            }
+            mJournal = null;
+        }
+    }
+
+    protected static void writePut(DataOutputStream out, Record record) throws IOException {
+        out.writeByte(OP_PUT);
+        writeKey(out, record.mKey);
+        out.writeInt(record.mSegment.id);
+        out.writeInt((int) record.mOffset);
+        out.writeInt(record.mLength);
+    }
+
+    // The byte length then the UTF-8 bytes, a key of any length fits.
+    protected static void writeKey(DataOutputStream out, String key) throws IOException {
+        byte[] bytes = key.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    // A length over the journal's is a torn write.
+    protected static String readKey(DataInputStream in, long limit) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > limit) {
+            throw new EOFException("Corrupted key length " + length);
+        }
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Close the files, the segment files and the journal are kept for the next log opened on
+     * them. The records refer to nothing afterwards. See release.
+     */
+    protected synchronized void close() {
+        mIsClosed = true;
+
+        for (Segment segment : mSegments) {
+            segment.mapping = null;
+            segment.close();
+        }
+        mSegments.clear();
+        mActive = null;
+        mMappedBytes = 0;
+        mLive.clear();
+
+        closeJournal();
+    }
+}
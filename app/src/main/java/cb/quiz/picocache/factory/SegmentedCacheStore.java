@@ -0,0 +1,287 @@
+package cb.quiz.picocache.factory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import cb.quiz.picocache.iface.IPicoBuffer;
+import cb.quiz.picocache.iface.IPicoCache;
+import cb.quiz.picocache.iface.IPicoLoader;
+import cb.quiz.picocache.iface.IPicoReader;
+import cb.quiz.picocache.iface.IPicoSlabStats;
+import cb.quiz.picocache.iface.IPicoWeigher;
+
+/**
+ * A cache partitioning the keys into N independent CacheStore segments. Every segment has its
+ * own lock, size accounting and trimmer, so threads working on different segments never wait
+ * for each other.
+ *
+ * The maximum cache size is split evenly across the segments, so an entry larger than the
+ * share of one segment cannot be held, and the eviction order is only kept within a segment.
+ */
+class SegmentedCacheStore implements IPicoCache {
+
+    // The segments, the number is a power of 2.
+    protected CacheStore[] mSegments;
+
+    public SegmentedCacheStore(CacheStore[] segments) {
+        if (segments.length == 0 || Integer.bitCount(segments.length) != 1) {
+            throw new IllegalArgumentException("The number of segments must be a power of 2.");
+        }
+
+        mSegments = segments;
+    }
+
+    @Override
+    public void put(String key, byte[] data) throws IllegalArgumentException {
+        segmentFor(key).put(key, data);
+    }
+
+    @Override
+    public byte[] get(String key) {
+        return segmentFor(key).get(key);
+    }
+
+    @Override
+    public void put(String key, byte[] data, long ttl) throws IllegalArgumentException {
+        segmentFor(key).put(key, data, ttl);
+    }
+
+    @Override
+    public void putAll(Map<String, byte[]> entries) throws IllegalArgumentException {
+        List<Map<String, byte[]>> batches = new ArrayList<>(mSegments.length);
+        for (int i = 0; i < mSegments.length; ++i) {
+            batches.add(new HashMap<String, byte[]>());
+        }
+
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            batches.get(indexFor(entry.getKey())).put(entry.getKey(), entry.getValue());
+        }
+
+        for (int i = 0; i < mSegments.length; ++i) {
+            if (!batches.get(i).isEmpty()) {
+                mSegments[i].putAll(batches.get(i));
+            }
+        }
+    }
+
+    @Override
+    public Map<String, byte[]> getAll(Collection<String> keys) {
+        List<List<String>> batches = new ArrayList<>(mSegments.length);
+        for (int i = 0; i < mSegments.length; ++i) {
+            batches.add(new ArrayList<String>());
+        }
+
+        for (String key : keys) {
+            batches.get(indexFor(key)).add(key);
+        }
+
+        Map<String, byte[]> result = new HashMap<>();
+        for (int i = 0; i < mSegments.length; ++i) {
+            if (!batches.get(i).isEmpty()) {
+                result.putAll(mSegments[i].getAll(batches.get(i)));
+            }
+        }
+
+        return result;
+    }
+
+    @Override
+    public byte[] get(String key, IPicoLoader loader) {
+        // The segments coalesce the loads, a key always goes to the same one.
+        return segmentFor(key).get(key, loader);
+    }
+
+    @Override
+    public ByteBuffer getBuffer(String key) {
+        return segmentFor(key).getBuffer(key);
+    }
+
+    @Override
+    public <T> T read(String key, IPicoReader<T> reader) {
+        return segmentFor(key).read(key, reader);
+    }
+
+    @Override
+    public IPicoBuffer getPooled(String key) {
+        return segmentFor(key).getPooled(key);
+    }
+
+    @Override
+    public OutputStream openOutputStream(String key) throws IOException {
+        return segmentFor(key).openOutputStream(key);
+    }
+
+    @Override
+    public InputStream openInputStream(String key) throws IOException {
+        return segmentFor(key).openInputStream(key);
+    }
+
+    @Override
+    public long size() {
+        long size = 0;
+        for (CacheStore segment : mSegments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    @Override
+    public long mappedSize() {
+        long size = 0;
+        for (CacheStore segment : mSegments) {
+            size += segment.mappedSize();
+        }
+        return size;
+    }
+
+    @Override
+    public IPicoSlabStats getSlabStats() {
+        SlabStats[] all = new SlabStats[mSegments.length];
+
+        for (int i = 0; i < mSegments.length; ++i) {
+            all[i] = mSegments[i].mNodeFactory.slabStats();
+            if (all[i] == null) {
+                return null;
+            }
+        }
+
+        return SlabStats.sum(all);
+    }
+
+    @Override
+    public void flush() {
+        for (CacheStore segment : mSegments) {
+            segment.flush();
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (CacheStore segment : mSegments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * Close every segment, each holds its own reference to the shared log of TYPE_FILE.
+     */
+    @Override
+    public void close() {
+        for (CacheStore segment : mSegments) {
+            segment.close();
+        }
+    }
+
+    @Override
+    public void setCacheSize(int kb) throws IllegalArgumentException {
+        if (kb <= 0) {
+            throw new IllegalArgumentException("The cache size is either less/equal than 0" +
+                    " or greater than Integer.MAX_VALUE");
+        }
+
+        long share = ((long) kb << 10) / mSegments.length;
+        for (CacheStore segment : mSegments) {
+            segment.setMaxSize(share);
+        }
+    }
+
+    @Override
+    public void setExpireAfterAccess(long ms) throws IllegalArgumentException {
+        for (CacheStore segment : mSegments) {
+            segment.setExpireAfterAccess(ms);
+        }
+    }
+
+    @Override
+    public void setWeigher(IPicoWeigher weigher) {
+        for (CacheStore segment : mSegments) {
+            segment.setWeigher(weigher);
+        }
+    }
+
+    @Override
+    public void setStatsEnabled(boolean enabled) {
+        for (CacheStore segment : mSegments) {
+            segment.setStatsEnabled(enabled);
+        }
+    }
+
+    @Override
+    public void setCompressionEnabled(boolean enabled) {
+        for (CacheStore segment : mSegments) {
+            segment.setCompressionEnabled(enabled);
+        }
+    }
+
+    @Override
+    public void setDirectBuffersEnabled(boolean enabled) {
+        for (CacheStore segment : mSegments) {
+            segment.setDirectBuffersEnabled(enabled);
+        }
+    }
+
+    /**
+     * The data is only shared within a segment.
+     */
+    @Override
+    public void setDedupEnabled(boolean enabled) {
+        for (CacheStore segment : mSegments) {
+            segment.setDedupEnabled(enabled);
+        }
+    }
+
+    @Override
+    public CacheStats getStats() {
+        CacheStats[] all = new CacheStats[mSegments.length];
+
+        for (int i = 0; i < mSegments.length; ++i) {
+            all[i] = mSegments[i].getStats();
+        }
+
+        return CacheStats.sum(all);
+    }
+
+    @Override
+    public String toString() {
+        String ret = super.toString().concat("\n");
+
+        for (CacheStore segment : mSegments) {
+            ret = ret.concat(segment.toString());
+        }
+
+        return ret;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Protected/Private ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Put back the data left on the disk to the segments of the keys. The segments share the
+     * same storage, so it is restored once.
+     */
+    void restore() {
+        for (ICacheNode node : mSegments[0].mNodeFactory.restore()) {
+            segmentFor(node.getKey()).restore(node);
+        }
+    }
+
+    protected CacheStore segmentFor(String key) {
+        return mSegments[indexFor(key)];
+    }
+
+    protected int indexFor(String key) {
+        int hash = key != null ? key.hashCode() : 0;
+        // Spread the higher bits down since only the lower bits pick the segment.
+        hash ^= (hash >>> 16);
+
+        return hash & (mSegments.length - 1);
+    }
+
+}
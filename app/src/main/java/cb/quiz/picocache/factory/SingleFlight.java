@@ -0,0 +1,184 @@
+package cb.quiz.picocache.factory;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import cb.quiz.picocache.iface.IPicoCache;
+import cb.quiz.picocache.iface.IPicoLoader;
+
+/**
+ * Read through a cache and run the loader once per missing key, the other callers of the same
+ * key wait for the load in flight and share its result. A key whose loader returned null is
+ * remembered as missing for NEGATIVE_TTL_MS, so it is not loaded again right away.
+ *
+ * The loader runs without any lock of the cache, so it works with any IPicoCache.
+ */
+class SingleFlight {
+
+    static final long NEGATIVE_TTL_MS = 5000;
+
+    // The number of the missing keys that triggers a sweep of the expired ones.
+    private static final int SWEEP_THRESHOLD = 256;
+
+    static class Flight {
+        final CountDownLatch done = new CountDownLatch(1);
+        byte[] value = null;
+        Exception error = null;
+    }
+
+    // The time to remember the missing keys in milliseconds.
+    protected final long mNegativeTtl;
+
+    // The loads in flight by their keys, guarded by this.
+    protected final HashMap<String, Flight> mFlights = new HashMap<>();
+
+    // The expiry time of the missing keys, guarded by this.
+    protected final HashMap<String, Long> mMisses = new HashMap<>();
+
+    public SingleFlight() {
+        this(NEGATIVE_TTL_MS);
+    }
+
+    public SingleFlight(long negativeTtl) {
+        mNegativeTtl = negativeTtl;
+    }
+
+    /**
+     * Get the data from the cache, or load and insert it if the key is missing.
+     * @param stats Told about the loads, could be null.
+     * @return The data, or null if the loader has nothing for the key.
+     * @throws RuntimeException wrapping the failure of the loader.
+     */
+    public byte[] get(IPicoCache cache, String key, IPicoLoader loader, StatsRecorder stats) {
+        byte[] data = cache.get(key);
+        if (data != null) {
+            return data;
+        }
+
+        Flight flight;
+        boolean isLeader = false;
+
+        synchronized (this) {
+            Long expiry = mMisses.get(key);
+            if (expiry != null) {
+                if (expiry > System.currentTimeMillis()) {
+                    return null;
+                }
+                mMisses.remove(key);
+            }
+
+            flight = mFlights.get(key);
+            if (flight == null) {
+                flight = new Flight();
+                mFlights.put(key, flight);
+                isLeader = true;
+            }
+        }
+
+        if (isLeader) {
+            load(cache, key, loader, flight, stats);
+        } else {
+            await(flight);
+        }
+
+        if (flight.error instanceof RuntimeException) {
+            throw (RuntimeException) flight.error;
+        } else if (flight.error != null) {
+            throw new RuntimeException(flight.error);
+        }
+
+        return flight.value;
+    }
+
+    /**
+     * Forget the missing keys, e.g. when the cache is cleared.
+     */
+    public synchronized void clear() {
+        mMisses.clear();
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Protected/Private ///////////////////////////////////////////////////////////////////////////
+
+    protected void load(IPicoCache cache, String key, IPicoLoader loader, Flight flight,
+                        StatsRecorder stats) {
+        boolean isLoaded = false;
+
+        try {
+            // The previous flight could have put it in between.
+            byte[] data = cache.get(key);
+
+            if (data == null) {
+                try {
+                    data = loader.load(key);
+                } catch (Exception e) {
+                    if (stats != null) {
+                        stats.record(StatsRecorder.LOAD_FAILURE);
+                    }
+                    throw e;
+                }
+
+                if (stats != null) {
+                    stats.record(StatsRecorder.LOAD_SUCCESS);
+                }
+
+                if (data != null) {
+                    try {
+                        cache.put(key, data);
+                    } catch (IllegalArgumentException e) {
+                        // DO NOTHING, the data is returned anyway.
+                    }
+                }
+            }
+
+            flight.value = data;
+            isLoaded = true;
+        } catch (Exception e) {
+            flight.error = e;
+        } finally {
+            synchronized (this) {
+                mFlights.remove(key);
+
+                if (isLoaded && flight.value == null) {
+                    remember(key);
+                }
+            }
+
+            flight.done.countDown();
+        }
+    }
+
+    protected void remember(String key) {
+        long now = System.currentTimeMillis();
+
+        if (mMisses.size() >= SWEEP_THRESHOLD) {
+            Iterator<Map.Entry<String, Long>> it = mMisses.entrySet().iterator();
+            while (it.hasNext()) {
+                if (it.next().getValue() <= now) {
+                    it.remove();
+                }
+            }
+        }
+
+        mMisses.put(key, now + mNegativeTtl);
+    }
+
+    protected void await(Flight flight) {
+        boolean isInterrupted = false;
+
+        while (true) {
+            try {
+                flight.done.await();
+                break;
+            } catch (InterruptedException e) {
+                isInterrupted = true;
+            }
+        }
+
+        if (isInterrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
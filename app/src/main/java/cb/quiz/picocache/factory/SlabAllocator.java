@@ -0,0 +1,446 @@
+package cb.quiz.picocache.factory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A memcached-style slab allocator of off-heap memory.
+ *
+ * The memory is allocated in pages of direct ByteBuffers. Every page belongs to a size class and
+ * is carved into chunks of the chunk size of its class, the chunk sizes grow by GROWTH_FACTOR
+ * from MIN_CHUNK_SIZE to MAX_CHUNK_SIZE. A value is copied into a chunk of the smallest class
+ * that fits. The freed chunks go back to the free list of their class.
+ *
+ * Once the pages reach the limit, a page without any used chunk is taken from whichever class
+ * holds it; if there is none, the least recently used chunk of the same class is evicted through
+ * the ICacheNodeEvictor. A class without any chunk yet takes a page over from the class holding
+ * the most pages, evicting the values in it, so the memory is not stuck in the classes that were
+ * filled first.
+ *
+ * A chunk could be pinned by the readers of its value in place. Freeing a pinned chunk only
+ * takes it out of the LRU order, it goes back to the free list once the last pin is released,
+ * so the value is never overwritten under a reader.
+ */
+class SlabAllocator {
+
+    static final int MIN_CHUNK_SIZE = 64;
+    static final int MAX_CHUNK_SIZE = 8 << 20;
+    static final int PAGE_SIZE = 1 << 20;
+    static final float GROWTH_FACTOR = 1.25f;
+
+    // The minimum number of pages fitting in the limit.
+    static final int PAGES_PER_LIMIT = 16;
+
+    static class Chunk {
+        final Page page;
+        final int offset;
+
+        // The length of the value, 0 if the chunk is free.
+        int length = 0;
+
+        // The node owning the chunk, null if the chunk is free.
+        ICacheNode owner = null;
+
+        // The number of the readers holding the chunk.
+        int pins = 0;
+
+        // Freed while pinned, it is freed for real by the last unpin.
+        boolean isRetired = false;
+
+        Chunk(Page page, int offset) {
+            this.page = page;
+            this.offset = offset;
+        }
+    }
+
+    static class Page {
+        final SlabClass slabClass;
+        final ByteBuffer buffer;
+        final Chunk[] chunks;
+
+        // The number of used chunks.
+        int used = 0;
+
+        Page(SlabClass slabClass, ByteBuffer buffer) {
+            this.slabClass = slabClass;
+            this.buffer = buffer;
+            this.chunks = new Chunk[buffer.capacity() / slabClass.chunkSize];
+
+            for (int i = 0; i < chunks.length; ++i) {
+                chunks[i] = new Chunk(this, i * slabClass.chunkSize);
+            }
+        }
+    }
+
+    static class SlabClass {
+        final int id;
+        final int chunkSize;
+        final ArrayList<Page> pages = new ArrayList<>();
+        final ArrayDeque<Chunk> free = new ArrayDeque<>();
+
+        // The used chunks in LRU order.
+        final LinkedHashMap<Chunk, Chunk> used = new LinkedHashMap<>(16, 0.75f, true);
+
+        long requestedBytes = 0;
+        long evictions = 0;
+
+        SlabClass(int id, int chunkSize) {
+            this.id = id;
+            this.chunkSize = chunkSize;
+        }
+    }
+
+    protected final SlabClass[] mClasses;
+
+    // The maximum bytes of all the pages.
+    protected long mLimit = 0;
+
+    // The bytes of all the pages.
+    protected long mAllocatedBytes = 0;
+
+    // Evict the owner of a chunk reclaimed from its class.
+    protected ICacheNodeEvictor mEvictor = null;
+
+    public SlabAllocator() {
+        ArrayList<SlabClass> classes = new ArrayList<>();
+        int size = MIN_CHUNK_SIZE;
+
+        while (size < MAX_CHUNK_SIZE) {
+            classes.add(new SlabClass(classes.size(), size));
+
+            // Grow by the factor below a page and double above, aligned to 8 bytes.
+            int next = size < PAGE_SIZE ? (int) (size * GROWTH_FACTOR) : size << 1;
+            size = Math.min(MAX_CHUNK_SIZE, (next + 7) & ~7);
+        }
+        classes.add(new SlabClass(classes.size(), MAX_CHUNK_SIZE));
+
+        mClasses = classes.toArray(new SlabClass[classes.size()]);
+    }
+
+    public synchronized void setEvictor(ICacheNodeEvictor evictor) {
+        mEvictor = evictor;
+    }
+
+    /**
+     * Set the maximum bytes of all the pages, the empty pages over the limit are released.
+     */
+    public synchronized void setLimit(long bytes) {
+        mLimit = bytes;
+        releaseEmptyPages(0);
+    }
+
+    /**
+     * Copy the value into a chunk owned by the given node.
+     * @throws IllegalArgumentException if the value is larger than MAX_CHUNK_SIZE.
+     * @throws IllegalStateException if there's no chunk left for the value.
+     */
+    public synchronized Chunk allocate(ICacheNode owner, byte[] value)
+            throws IllegalArgumentException, IllegalStateException {
+        SlabClass slabClass = classFor(value.length);
+        if (slabClass == null) {
+            throw new IllegalArgumentException("The value is larger than " + MAX_CHUNK_SIZE);
+        }
+
+        Chunk chunk = slabClass.free.poll();
+
+        if (chunk == null) {
+            int pageSize = pageSizeOf(slabClass);
+            if (mAllocatedBytes + pageSize > mLimit) {
+                releaseEmptyPages(pageSize);
+            }
+            if (mAllocatedBytes + pageSize > mLimit && pageSize <= mLimit &&
+                    slabClass.used.isEmpty()) {
+                reassignPages(pageSize);
+            }
+            if (addPage(slabClass, pageSize)) {
+                chunk = slabClass.free.poll();
+            }
+        }
+
+        // Evict within the class.
+        while (chunk == null && !slabClass.used.isEmpty()) {
+            Chunk victim = slabClass.used.keySet().iterator().next();
+            ++slabClass.evictions;
+
+            evict(victim);
+            chunk = slabClass.free.poll();
+        }
+
+        if (chunk == null) {
+            throw new IllegalStateException("Out of slab memory.");
+        }
+
+        ByteBuffer buffer = chunk.page.buffer.duplicate();
+        buffer.position(chunk.offset);
+        buffer.put(value);
+
+        chunk.owner = owner;
+        chunk.length = value.length;
+        ++chunk.page.used;
+        slabClass.used.put(chunk, chunk);
+        slabClass.requestedBytes += value.length;
+
+        return chunk;
+    }
+
+    /**
+     * Copy the value out of the chunk.
+     * @return The value, or null if the chunk is not owned by the given node any more.
+     */
+    public synchronized byte[] read(Chunk chunk, ICacheNode owner) {
+        if (chunk.owner != owner || owner == null) {
+            return null;
+        }
+
+        byte[] value = new byte[chunk.length];
+        ByteBuffer buffer = chunk.page.buffer.duplicate();
+        buffer.position(chunk.offset);
+        buffer.get(value);
+
+        // Update the LRU order of the class.
+        chunk.page.slabClass.used.get(chunk);
+
+        return value;
+    }
+
+    /**
+     * Pin the chunk, so it's not reused until unpinned.
+     * @return The read-only view of the value, or null if the chunk is not owned by the given
+     * node any more.
+     */
+    public synchronized ByteBuffer pin(Chunk chunk, ICacheNode owner) {
+        if (chunk.owner != owner || owner == null) {
+            return null;
+        }
+
+        ++chunk.pins;
+
+        // Update the LRU order of the class.
+        chunk.page.slabClass.used.get(chunk);
+
+        ByteBuffer view = chunk.page.buffer.duplicate();
+        view.position(chunk.offset);
+        view.limit(chunk.offset + chunk.length);
+
+        return view.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Release a pin of the chunk, the chunk freed while pinned is freed for real by the last one.
+     */
+    public synchronized void unpin(Chunk chunk) {
+        if (--chunk.pins == 0 && chunk.isRetired) {
+            chunk.isRetired = false;
+            recycle(chunk);
+        }
+    }
+
+    /**
+     * Give the chunk back to its class if it is still owned by the given node.
+     */
+    public synchronized void free(Chunk chunk, ICacheNode owner) {
+        if (chunk.owner != owner || owner == null) {
+            return;
+        }
+
+        SlabClass slabClass = chunk.page.slabClass;
+
+        slabClass.used.remove(chunk);
+        slabClass.requestedBytes -= chunk.length;
+        chunk.owner = null;
+
+        // The readers still hold the value.
+        if (chunk.pins > 0) {
+            chunk.isRetired = true;
+            return;
+        }
+
+        recycle(chunk);
+    }
+
+    /**
+     * @return The chunk size of the class which the chunk belongs to.
+     */
+    public int chunkSize(Chunk chunk) {
+        return chunk.page.slabClass.chunkSize;
+    }
+
+    /**
+     * @return The snapshot of the utilization of the slabs.
+     */
+    public synchronized SlabStats stats() {
+        int count = mClasses.length;
+        int[] chunkSizes = new int[count];
+        int[] totalChunks = new int[count];
+        int[] usedChunks = new int[count];
+        long[] requestedBytes = new long[count];
+        long[] evictions = new long[count];
+
+        for (int i = 0; i < count; ++i) {
+            SlabClass slabClass = mClasses[i];
+
+            chunkSizes[i] = slabClass.chunkSize;
+            for (Page page : slabClass.pages) {
+                totalChunks[i] += page.chunks.length;
+            }
+            usedChunks[i] = slabClass.used.size();
+            requestedBytes[i] = slabClass.requestedBytes;
+            evictions[i] = slabClass.evictions;
+        }
+
+        return new SlabStats(chunkSizes, totalChunks, usedChunks, requestedBytes, evictions,
+                mAllocatedBytes);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Protected/Private ///////////////////////////////////////////////////////////////////////////
+
+    protected SlabClass classFor(int length) {
+        int low = 0;
+        int high = mClasses.length - 1;
+
+        if (length > mClasses[high].chunkSize) {
+            return null;
+        }
+
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (mClasses[middle].chunkSize < length) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        return mClasses[low];
+    }
+
+    protected int pageSizeOf(SlabClass slabClass) {
+        if (slabClass.chunkSize >= PAGE_SIZE) {
+            return slabClass.chunkSize;
+        }
+
+        // Small limits get smaller pages so that a few classes can coexist.
+        long size = Math.max(slabClass.chunkSize, Math.min(PAGE_SIZE, mLimit / PAGES_PER_LIMIT));
+        return (int) (size / slabClass.chunkSize * slabClass.chunkSize);
+    }
+
+    protected boolean addPage(SlabClass slabClass, int pageSize) {
+        if (mAllocatedBytes + pageSize > mLimit) {
+            return false;
+        }
+
+        ByteBuffer buffer;
+        try {
+            buffer = ByteBuffer.allocateDirect(pageSize);
+        } catch (OutOfMemoryError e) {
+            return false;
+        }
+
+        Page page = new Page(slabClass, buffer);
+        for (Chunk chunk : page.chunks) {
+            slabClass.free.add(chunk);
+        }
+        slabClass.pages.add(page);
+        mAllocatedBytes += pageSize;
+
+        return true;
+    }
+
+    /**
+     * Release the empty pages until there's room for the given bytes under the limit.
+     */
+    protected void releaseEmptyPages(int needed) {
+        for (SlabClass slabClass : mClasses) {
+            for (int i = slabClass.pages.size() - 1; i >= 0; --i) {
+                if (mAllocatedBytes + needed <= mLimit) {
+                    return;
+                }
+
+                Page page = slabClass.pages.get(i);
+                if (page.used == 0) {
+                    releasePage(page);
+                }
+            }
+        }
+    }
+
+    /**
+     * Evict the values in the pages of the class holding the most pages until there's room for
+     * the given bytes under the limit. The donor class loses its least recently used page.
+     */
+    protected void reassignPages(int needed) {
+        while (mAllocatedBytes + needed > mLimit) {
+            SlabClass donor = null;
+            for (SlabClass slabClass : mClasses) {
+                if (donor == null || slabClass.pages.size() > donor.pages.size()) {
+                    donor = slabClass;
+                }
+            }
+            if (donor == null || donor.pages.isEmpty()) {
+                return;
+            }
+
+            // Take the page holding the least recently used chunk of the class.
+            Page page = donor.used.isEmpty() ?
+                    donor.pages.get(donor.pages.size() - 1) :
+                    donor.used.keySet().iterator().next().page;
+            for (Chunk chunk : page.chunks) {
+                if (chunk.owner != null) {
+                    ++donor.evictions;
+                    evict(chunk);
+                }
+            }
+
+            // The pinned chunks stay until unpinned, give up on the page for now.
+            if (page.used > 0) {
+                return;
+            }
+
+            // Freeing the last chunk releases the page if it is still over the limit.
+            if (donor.pages.contains(page)) {
+                releasePage(page);
+            }
+        }
+    }
+
+    protected void evict(Chunk chunk) {
+        if (mEvictor != null) {
+            mEvictor.evict(chunk.owner);
+        }
+
+        // The owner is not in the store, take the chunk anyway.
+        if (chunk.owner != null) {
+            free(chunk, chunk.owner);
+        }
+    }
+
+    protected void recycle(Chunk chunk) {
+        Page page = chunk.page;
+
+        page.slabClass.free.push(chunk);
+        chunk.length = 0;
+        --page.used;
+
+        if (page.used == 0 && mAllocatedBytes > mLimit) {
+            releasePage(page);
+        }
+    }
+
+    protected void releasePage(Page page) {
+        SlabClass slabClass = page.slabClass;
+        Iterator<Chunk> it = slabClass.free.iterator();
+
+        while (it.hasNext()) {
+            if (it.next().page == page) {
+                it.remove();
+            }
+        }
+
+        slabClass.pages.remove(page);
+        mAllocatedBytes -= page.buffer.capacity();
+    }
+}
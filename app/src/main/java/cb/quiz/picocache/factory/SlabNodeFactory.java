@@ -0,0 +1,155 @@
+package cb.quiz.picocache.factory;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+
+import cb.quiz.picocache.iface.IPicoCacheStats;
+
+/**
+ * Create the nodes keeping their data off the heap in the chunks of a SlabAllocator. Every store
+ * has its own allocator so that the allocator can evict the nodes of the store.
+ */
+class SlabNodeFactory implements ICacheNodeFactory {
+
+    private final SlabAllocator mAllocator;
+
+    public SlabNodeFactory(SlabAllocator allocator) {
+        mAllocator = allocator;
+    }
+
+    @Override
+    public ICacheNode create(String key, byte[] value) {
+        ICacheNode node = new SlabNode(mAllocator);
+
+        node.setKey(key);
+        node.setData(value);
+
+        return node;
+    }
+
+    @Override
+    public NodeOutputStream openOutputStream(String key) {
+        return null;
+    }
+
+    @Override
+    public List<ICacheNode> restore() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public int backend() {
+        return IPicoCacheStats.BACKEND_MEMORY;
+    }
+
+    @Override
+    public void sortByLocation(List<ICacheNode> nodes) {
+        // DO NOTHING.
+    }
+
+    @Override
+    public void flush() {
+        // DO NOTHING.
+    }
+
+    @Override
+    public void awaitCapacity() {
+        // DO NOTHING.
+    }
+
+    @Override
+    public void close() {
+        // DO NOTHING.
+    }
+
+    @Override
+    public boolean isClosed() {
+        return false;
+    }
+
+    @Override
+    public long mappedSize() {
+        return 0;
+    }
+
+    @Override
+    public void setCapacity(long bytes) {
+        mAllocator.setLimit(bytes);
+    }
+
+    @Override
+    public SlabStats slabStats() {
+        return mAllocator.stats();
+    }
+
+    private static class SlabNode extends BaseNode {
+
+        private final SlabAllocator mAllocator;
+        private SlabAllocator.Chunk mChunk = null;
+
+        // The chunk size rather than the value size, so the store accounts for the waste.
+        private int mSize = 0;
+
+        SlabNode(SlabAllocator allocator) {
+            mAllocator = allocator;
+        }
+
+        @Override
+        public void setData(byte[] value) throws IllegalArgumentException {
+            super.setData(value);
+
+            // Free the old chunk first so that it can be reused for the new value.
+            release();
+
+            mChunk = mAllocator.allocate(this, value);
+            mSize = mAllocator.chunkSize(mChunk);
+        }
+
+        @Override
+        public byte[] getData() {
+            return mChunk != null ? mAllocator.read(mChunk, this) : null;
+        }
+
+        /**
+         * Pin the chunk, so it's not reused for another value until the pin is released.
+         */
+        @Override
+        public Pin pin() {
+            final SlabAllocator.Chunk chunk = mChunk;
+            ByteBuffer buffer = chunk != null ? mAllocator.pin(chunk, this) : null;
+
+            if (buffer == null) {
+                return null;
+            }
+
+            return new Pin(buffer) {
+                @Override
+                void release() {
+                    mAllocator.unpin(chunk);
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return mSize;
+        }
+
+        @Override
+        public void dispose() {
+            super.dispose();
+            release();
+        }
+
+        private void release() {
+            if (mChunk != null) {
+                mAllocator.free(mChunk, this);
+                mChunk = null;
+            }
+            mSize = 0;
+        }
+
+    }
+
+}
@@ -0,0 +1,115 @@
+package cb.quiz.picocache.factory;
+
+import cb.quiz.picocache.iface.IPicoSlabStats;
+
+/**
+ * An immutable snapshot of a SlabAllocator.
+ */
+class SlabStats implements IPicoSlabStats {
+
+    protected final int[] mChunkSizes;
+    protected final int[] mTotalChunks;
+    protected final int[] mUsedChunks;
+    protected final long[] mRequestedBytes;
+    protected final long[] mEvictions;
+    protected final long mAllocatedBytes;
+
+    SlabStats(int[] chunkSizes,
+              int[] totalChunks,
+              int[] usedChunks,
+              long[] requestedBytes,
+              long[] evictions,
+              long allocatedBytes) {
+        mChunkSizes = chunkSizes;
+        mTotalChunks = totalChunks;
+        mUsedChunks = usedChunks;
+        mRequestedBytes = requestedBytes;
+        mEvictions = evictions;
+        mAllocatedBytes = allocatedBytes;
+    }
+
+    /**
+     * Sum up the snapshots of the allocators with the same classes, e.g. of the segments of a
+     * concurrent cache.
+     */
+    static SlabStats sum(SlabStats[] all) {
+        int count = all[0].getClassCount();
+        int[] totalChunks = new int[count];
+        int[] usedChunks = new int[count];
+        long[] requestedBytes = new long[count];
+        long[] evictions = new long[count];
+        long allocatedBytes = 0;
+
+        for (SlabStats stats : all) {
+            for (int i = 0; i < count; ++i) {
+                totalChunks[i] += stats.mTotalChunks[i];
+                usedChunks[i] += stats.mUsedChunks[i];
+                requestedBytes[i] += stats.mRequestedBytes[i];
+                evictions[i] += stats.mEvictions[i];
+            }
+            allocatedBytes += stats.mAllocatedBytes;
+        }
+
+        return new SlabStats(all[0].mChunkSizes, totalChunks, usedChunks, requestedBytes,
+                evictions, allocatedBytes);
+    }
+
+    @Override
+    public int getClassCount() {
+        return mChunkSizes.length;
+    }
+
+    @Override
+    public int getChunkSize(int slabClass) {
+        return mChunkSizes[slabClass];
+    }
+
+    @Override
+    public int getTotalChunks(int slabClass) {
+        return mTotalChunks[slabClass];
+    }
+
+    @Override
+    public int getUsedChunks(int slabClass) {
+        return mUsedChunks[slabClass];
+    }
+
+    @Override
+    public long getEvictions(int slabClass) {
+        return mEvictions[slabClass];
+    }
+
+    @Override
+    public long getAllocatedBytes() {
+        return mAllocatedBytes;
+    }
+
+    @Override
+    public long getUsedBytes() {
+        long bytes = 0;
+        for (int i = 0; i < mChunkSizes.length; ++i) {
+            bytes += (long) mChunkSizes[i] * mUsedChunks[i];
+        }
+        return bytes;
+    }
+
+    @Override
+    public long getRequestedBytes() {
+        long bytes = 0;
+        for (long requested : mRequestedBytes) {
+            bytes += requested;
+        }
+        return bytes;
+    }
+
+    @Override
+    public float getUtilization() {
+        return mAllocatedBytes > 0 ? (float) getUsedBytes() / mAllocatedBytes : 0f;
+    }
+
+    @Override
+    public float getFragmentation() {
+        long used = getUsedBytes();
+        return used > 0 ? 1f - (float) getRequestedBytes() / used : 0f;
+    }
+}
@@ -0,0 +1,125 @@
+package cb.quiz.picocache.factory;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import cb.quiz.picocache.iface.IPicoCacheStats;
+
+/**
+ * Record the statistics of a store in striped counters.
+ *
+ * Every thread counts in the stripe picked by its id, so the threads hardly ever touch the same
+ * counter or even the same cache line. The stripes live in a single AtomicLongArray, padded so
+ * that the neighbouring stripes don't share a cache line. A snapshot sums up all the stripes, so
+ * it's not atomic across the counters.
+ */
+class StatsRecorder {
+
+    static final int HIT = 0;
+    static final int MISS = 1;
+    static final int PUT = 2;
+    static final int REPLACE = 3;
+    // By the causes.
+    static final int EVICTION = 4;
+    static final int EVICTED_BYTES = EVICTION + 3;
+    static final int LOAD_SUCCESS = EVICTED_BYTES + 3;
+    static final int LOAD_FAILURE = LOAD_SUCCESS + 1;
+    static final int COUNTERS = LOAD_FAILURE + 1;
+
+    static final int HISTOGRAMS = 4;
+
+    // The longs of a cache line.
+    private static final int PADDING = 16;
+
+    // The counters first, then the histograms by op and backend.
+    private static final int HISTOGRAM_BASE = PADDING;
+    private static final int STRIDE = HISTOGRAM_BASE +
+            HISTOGRAMS * IPicoCacheStats.LATENCY_BUCKETS + PADDING;
+
+    private static final int MAX_STRIPES = 64;
+
+    protected final AtomicLongArray mCells;
+    protected final int mStripeMask;
+
+    // The backend of the store, BACKEND_MEMORY or BACKEND_FILE.
+    protected final int mBackend;
+
+    public StatsRecorder(int backend) {
+        int count = 1;
+        while (count < Runtime.getRuntime().availableProcessors() * 2 && count < MAX_STRIPES) {
+            count <<= 1;
+        }
+
+        mCells = new AtomicLongArray(count * STRIDE);
+        mStripeMask = count - 1;
+        mBackend = backend;
+    }
+
+    public int backend() {
+        return mBackend;
+    }
+
+    public void record(int counter) {
+        mCells.getAndIncrement(stripe() + counter);
+    }
+
+    public void record(int counter, long delta) {
+        mCells.getAndAdd(stripe() + counter, delta);
+    }
+
+    public void recordEviction(int cause, long count, long bytes) {
+        int stripe = stripe();
+        mCells.getAndAdd(stripe + EVICTION + cause, count);
+        mCells.getAndAdd(stripe + EVICTED_BYTES + cause, bytes);
+    }
+
+    /**
+     * Record the latency of an operation served by the backend of the store.
+     * @param start The System.nanoTime() at the start of the operation.
+     */
+    public void recordLatency(int op, long start) {
+        recordLatency(op, mBackend, start);
+    }
+
+    public void recordLatency(int op, int backend, long start) {
+        long nanos = System.nanoTime() - start;
+        int bucket = nanos <= 1 ? 0 : 63 - Long.numberOfLeadingZeros(nanos);
+        bucket = Math.min(bucket, IPicoCacheStats.LATENCY_BUCKETS - 1);
+
+        mCells.getAndIncrement(stripe() + HISTOGRAM_BASE +
+                (op * 2 + backend) * IPicoCacheStats.LATENCY_BUCKETS + bucket);
+    }
+
+    /**
+     * @return The sum of all the stripes.
+     */
+    public CacheStats snapshot() {
+        long[] counters = new long[COUNTERS];
+        long[][] histograms = new long[HISTOGRAMS][IPicoCacheStats.LATENCY_BUCKETS];
+
+        for (int stripe = 0; stripe <= mStripeMask; ++stripe) {
+            int base = stripe * STRIDE;
+
+            for (int i = 0; i < COUNTERS; ++i) {
+                counters[i] += mCells.get(base + i);
+            }
+            for (int h = 0; h < HISTOGRAMS; ++h) {
+                for (int i = 0; i < IPicoCacheStats.LATENCY_BUCKETS; ++i) {
+                    histograms[h][i] += mCells.get(base + HISTOGRAM_BASE +
+                            h * IPicoCacheStats.LATENCY_BUCKETS + i);
+                }
+            }
+        }
+
+        return new CacheStats(counters, histograms);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Protected/Private ///////////////////////////////////////////////////////////////////////////
+
+    protected int stripe() {
+        long id = Thread.currentThread().getId();
+        int hash = (int) (id ^ (id >>> 32)) * 0x9e3779b9;
+
+        return ((hash >>> 16) & mStripeMask) * STRIDE;
+    }
+}
@@ -0,0 +1,588 @@
+package cb.quiz.picocache.factory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import cb.quiz.picocache.iface.IPicoBuffer;
+import cb.quiz.picocache.iface.IPicoCacheStats;
+import cb.quiz.picocache.iface.IPicoLoader;
+import cb.quiz.picocache.iface.IPicoReader;
+import cb.quiz.picocache.iface.IPicoSlabStats;
+import cb.quiz.picocache.iface.IPicoTieredCache;
+import cb.quiz.picocache.iface.IPicoWeigher;
+
+/**
+ * A memory CacheStore in front of a file CacheStore, see IPicoTieredCache. The tiers are
+ * exclusive, so the file tier is only written when an entry is demoted and the capacity is the
+ * sum of both tiers.
+ *
+ * The whole cache is guarded by its own lock, so an entry is never seen in both or neither of
+ * the tiers while it moves. The lock of the memory tier is taken before the one of the file
+ * tier when an entry is demoted.
+ *
+ * The statistics of the gets and puts are recorded by the tiered cache itself and timed by the
+ * tier serving them, a miss is timed as the file tier. The evictions are the ones of the file
+ * tier plus the expired and lost entries of the memory tier, since an entry trimmed from the
+ * memory tier is demoted rather than evicted.
+ */
+class TieredCacheStore implements IPicoTieredCache, ICacheEvictionListener {
+
+    // The share of the memory tier when both tiers are set by setCacheSize.
+    static final int MEMORY_SHARE_DIVISOR = 8;
+
+    protected final CacheStore mMemory;
+    protected final CacheStore mFile;
+
+    // Coalesce the loads of the missing keys.
+    protected final SingleFlight mSingleFlight = new SingleFlight();
+
+    // Record the statistics, null if turned off.
+    protected volatile StatsRecorder mStats = null;
+
+    public TieredCacheStore(CacheStore memory, CacheStore file) {
+        mMemory = memory;
+        mFile = file;
+        mMemory.setEvictionListener(this);
+    }
+
+    @Override
+    public synchronized void put(String key, byte[] data) throws IllegalArgumentException {
+        put(key, data, 0);
+    }
+
+    @Override
+    public synchronized void put(String key, byte[] data, long ttl)
+            throws IllegalArgumentException {
+        StatsRecorder stats = mStats;
+        long start = stats != null ? System.nanoTime() : 0;
+
+        // Drop the stale copy, the entry lives in one tier only.
+        boolean isReplaced = mFile.remove(key);
+        int backend;
+
+        if (fitsInMemory(key, data)) {
+            isReplaced |= mMemory.contains(key);
+            mMemory.put(key, data, ttl);
+            backend = IPicoCacheStats.BACKEND_MEMORY;
+        } else {
+            isReplaced |= mMemory.remove(key);
+            mFile.put(key, data, ttl);
+            backend = IPicoCacheStats.BACKEND_FILE;
+        }
+
+        if (stats != null) {
+            stats.record(StatsRecorder.PUT);
+            if (isReplaced) {
+                stats.record(StatsRecorder.REPLACE);
+            }
+            stats.recordLatency(IPicoCacheStats.OP_PUT, backend, start);
+        }
+    }
+
+    @Override
+    public synchronized byte[] get(String key) {
+        StatsRecorder stats = mStats;
+        long start = stats != null ? System.nanoTime() : 0;
+        int backend = IPicoCacheStats.BACKEND_MEMORY;
+
+        byte[] data = mMemory.get(key);
+
+        if (data == null) {
+            backend = IPicoCacheStats.BACKEND_FILE;
+            data = mFile.get(key);
+
+            if (data != null) {
+                promote(key, data);
+            }
+        }
+
+        if (stats != null) {
+            stats.record(data != null ? StatsRecorder.HIT : StatsRecorder.MISS);
+            stats.recordLatency(IPicoCacheStats.OP_GET, backend, start);
+        }
+
+        return data;
+    }
+
+    @Override
+    public synchronized void putAll(Map<String, byte[]> entries) throws IllegalArgumentException {
+        StatsRecorder stats = mStats;
+        long start = stats != null ? System.nanoTime() : 0;
+
+        Map<String, byte[]> memory = new HashMap<>();
+        Map<String, byte[]> file = new HashMap<>();
+        int replaced = 0;
+
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            String key = entry.getKey();
+
+            // Drop the stale copy, the entry lives in one tier only.
+            boolean isReplaced = mFile.remove(key);
+
+            if (fitsInMemory(key, entry.getValue())) {
+                isReplaced |= mMemory.contains(key);
+                memory.put(key, entry.getValue());
+            } else {
+                isReplaced |= mMemory.remove(key);
+                file.put(key, entry.getValue());
+            }
+
+            if (isReplaced) {
+                ++replaced;
+            }
+        }
+
+        mMemory.putAll(memory);
+        mFile.putAll(file);
+
+        // The batch is timed as a single put of the slower tier it touches.
+        if (stats != null) {
+            stats.record(StatsRecorder.PUT, entries.size());
+            stats.record(StatsRecorder.REPLACE, replaced);
+            stats.recordLatency(IPicoCacheStats.OP_PUT, file.isEmpty() ?
+                    IPicoCacheStats.BACKEND_MEMORY : IPicoCacheStats.BACKEND_FILE, start);
+        }
+    }
+
+    @Override
+    public synchronized Map<String, byte[]> getAll(Collection<String> keys) {
+        StatsRecorder stats = mStats;
+        long start = stats != null ? System.nanoTime() : 0;
+
+        Map<String, byte[]> result = mMemory.getAll(keys);
+
+        List<String> missing = new ArrayList<>();
+        for (String key : keys) {
+            if (!result.containsKey(key)) {
+                missing.add(key);
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            Map<String, byte[]> promoted = mFile.getAll(missing);
+
+            for (Map.Entry<String, byte[]> entry : promoted.entrySet()) {
+                promote(entry.getKey(), entry.getValue());
+            }
+            result.putAll(promoted);
+        }
+
+        // The batch is timed as a single get of the slower tier it touches.
+        if (stats != null) {
+            stats.record(StatsRecorder.HIT, result.size());
+            stats.record(StatsRecorder.MISS, keys.size() - result.size());
+            stats.recordLatency(IPicoCacheStats.OP_GET, missing.isEmpty() ?
+                    IPicoCacheStats.BACKEND_MEMORY : IPicoCacheStats.BACKEND_FILE, start);
+        }
+
+        return result;
+    }
+
+    @Override
+    public byte[] get(String key, IPicoLoader loader) {
+        // Not synchronized, the loader must not hold the store.
+        return mSingleFlight.get(this, key, loader, mStats);
+    }
+
+    @Override
+    public synchronized ByteBuffer getBuffer(String key) {
+        StatsRecorder stats = mStats;
+        long start = stats != null ? System.nanoTime() : 0;
+        int backend = IPicoCacheStats.BACKEND_MEMORY;
+
+        ByteBuffer buffer = mMemory.getBuffer(key);
+
+        if (buffer == null) {
+            backend = IPicoCacheStats.BACKEND_FILE;
+            byte[] data = mFile.get(key);
+
+            if (data != null) {
+                promote(key, data);
+                buffer = ByteBuffer.wrap(data).asReadOnlyBuffer();
+            }
+        }
+
+        if (stats != null) {
+            stats.record(buffer != null ? StatsRecorder.HIT : StatsRecorder.MISS);
+            stats.recordLatency(IPicoCacheStats.OP_GET, backend, start);
+        }
+
+        return buffer;
+    }
+
+    /**
+     * Not synchronized, the data is pinned rather than the cache locked while being read.
+     */
+    @Override
+    public <T> T read(String key, IPicoReader<T> reader) {
+        Pin pin = pin(key);
+
+        if (pin == null) {
+            return null;
+        }
+
+        try {
+            return reader.read(key, pin.buffer);
+        } finally {
+            pin.release();
+        }
+    }
+
+    /**
+     * The data read from the file tier is not promoted, it's in a pooled buffer rather than an
+     * array to keep.
+     */
+    @Override
+    public synchronized IPicoBuffer getPooled(String key) {
+        StatsRecorder stats = mStats;
+        long start = stats != null ? System.nanoTime() : 0;
+        int backend = IPicoCacheStats.BACKEND_MEMORY;
+
+        IPicoBuffer buffer = mMemory.getPooled(key);
+
+        if (buffer == null) {
+            backend = IPicoCacheStats.BACKEND_FILE;
+            buffer = mFile.getPooled(key);
+        }
+
+        if (stats != null) {
+            stats.record(buffer != null ? StatsRecorder.HIT : StatsRecorder.MISS);
+            stats.recordLatency(IPicoCacheStats.OP_GET, backend, start);
+        }
+
+        return buffer;
+    }
+
+    /**
+     * Not synchronized, the chunks are written to the file tier out of the lock. The streamed
+     * entry goes to the file tier whatever its size and is promoted on the next get.
+     */
+    @Override
+    public OutputStream openOutputStream(final String key) throws IOException {
+        if (key.length() <= 0) {
+            throw new IllegalArgumentException("Key cannot be empty.");
+        }
+
+        return new EntryOutputStream(mFile.openNodeStream(key)) {
+            @Override
+            protected void commit(ICacheNode node) {
+                synchronized (TieredCacheStore.this) {
+                    boolean isReplaced = mMemory.remove(key);
+                    isReplaced |= mFile.putNode(node);
+                    onStreamed(isReplaced);
+                }
+            }
+
+            @Override
+            protected void commit(byte[] data) {
+                synchronized (TieredCacheStore.this) {
+                    boolean isReplaced = mMemory.remove(key);
+                    isReplaced |= mFile.remove(key);
+                    mFile.putEncoded(key, data, 0);
+                    onStreamed(isReplaced);
+                }
+            }
+        };
+    }
+
+    /**
+     * Not synchronized, the data is read in chunks out of the lock. The data read from the file
+     * tier is not promoted.
+     */
+    @Override
+    public InputStream openInputStream(String key) throws IOException {
+        StatsRecorder stats = mStats;
+        long start = stats != null ? System.nanoTime() : 0;
+        int backend = IPicoCacheStats.BACKEND_MEMORY;
+        InputStream in;
+
+        synchronized (this) {
+            in = mMemory.openNodeInput(key);
+
+            if (in == null) {
+                backend = IPicoCacheStats.BACKEND_FILE;
+                in = mFile.openNodeInput(key);
+            }
+        }
+
+        if (stats != null) {
+            stats.record(in != null ? StatsRecorder.HIT : StatsRecorder.MISS);
+            stats.recordLatency(IPicoCacheStats.OP_GET, backend, start);
+        }
+
+        if (in == null) {
+            return null;
+        }
+
+        try {
+            return Compressor.decode(in);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public synchronized long size() {
+        return mMemory.size() + mFile.size();
+    }
+
+    @Override
+    public synchronized long memorySize() {
+        return mMemory.size();
+    }
+
+    @Override
+    public synchronized long fileSize() {
+        return mFile.size();
+    }
+
+    @Override
+    public long mappedSize() {
+        return mFile.mappedSize();
+    }
+
+    @Override
+    public IPicoSlabStats getSlabStats() {
+        return mMemory.getSlabStats();
+    }
+
+    /**
+     * Turn the statistics on or off, also for both tiers, which count the evictions.
+     */
+    @Override
+    public synchronized void setStatsEnabled(boolean enabled) {
+        mMemory.setStatsEnabled(enabled);
+        mFile.setStatsEnabled(enabled);
+
+        if (!enabled) {
+            mStats = null;
+        } else if (mStats == null) {
+            mStats = new StatsRecorder(IPicoCacheStats.BACKEND_MEMORY);
+        }
+    }
+
+    @Override
+    public synchronized void setCompressionEnabled(boolean enabled) {
+        mMemory.setCompressionEnabled(enabled);
+        mFile.setCompressionEnabled(enabled);
+    }
+
+    @Override
+    public synchronized void setDirectBuffersEnabled(boolean enabled) {
+        mMemory.setDirectBuffersEnabled(enabled);
+        mFile.setDirectBuffersEnabled(enabled);
+    }
+
+    /**
+     * Only the memory tier shares the data, the file tier keeps its data by key.
+     */
+    @Override
+    public synchronized void setDedupEnabled(boolean enabled) {
+        mMemory.setDedupEnabled(enabled);
+    }
+
+    @Override
+    public CacheStats getStats() {
+        StatsRecorder stats = mStats;
+        if (stats == null) {
+            return CacheStats.empty();
+        }
+
+        CacheStats snapshot = stats.snapshot();
+        CacheStats memory = mMemory.getStats();
+        CacheStats file = mFile.getStats();
+
+        for (int cause = IPicoCacheStats.CAUSE_SIZE; cause <= IPicoCacheStats.CAUSE_LOST;
+             ++cause) {
+            snapshot.mCounters[StatsRecorder.EVICTION + cause] +=
+                    file.mCounters[StatsRecorder.EVICTION + cause];
+            snapshot.mCounters[StatsRecorder.EVICTED_BYTES + cause] +=
+                    file.mCounters[StatsRecorder.EVICTED_BYTES + cause];
+
+            // The memory tier demotes the trimmed entries.
+            if (cause != IPicoCacheStats.CAUSE_SIZE) {
+                snapshot.mCounters[StatsRecorder.EVICTION + cause] +=
+                        memory.mCounters[StatsRecorder.EVICTION + cause];
+                snapshot.mCounters[StatsRecorder.EVICTED_BYTES + cause] +=
+                        memory.mCounters[StatsRecorder.EVICTED_BYTES + cause];
+            }
+        }
+
+        return snapshot;
+    }
+
+    @Override
+    public void flush() {
+        mFile.flush();
+    }
+
+    @Override
+    public synchronized void clear() {
+        mSingleFlight.clear();
+        mMemory.clear();
+        mFile.clear();
+    }
+
+    /**
+     * Close both tiers, the file tier keeps its data on the disk.
+     */
+    @Override
+    public synchronized void close() {
+        mSingleFlight.clear();
+        mMemory.close();
+        mFile.close();
+    }
+
+    /**
+     * Set the maximum size of both tiers, 1/MEMORY_SHARE_DIVISOR of it goes to the memory tier.
+     * @param kb Numbers in KB.
+     */
+    @Override
+    public synchronized void setCacheSize(int kb) throws IllegalArgumentException {
+        if (kb <= 0) {
+            throw new IllegalArgumentException("The cache size is either less/equal than 0" +
+                    " or greater than Integer.MAX_VALUE");
+        }
+
+        int memory = Math.max(1, kb / MEMORY_SHARE_DIVISOR);
+        mMemory.setCacheSize(memory);
+        mFile.setCacheSize(Math.max(1, kb - memory));
+    }
+
+    @Override
+    public synchronized void setMemoryCacheSize(int kb) throws IllegalArgumentException {
+        mMemory.setCacheSize(kb);
+    }
+
+    @Override
+    public synchronized void setFileCacheSize(int kb) throws IllegalArgumentException {
+        mFile.setCacheSize(kb);
+    }
+
+    @Override
+    public synchronized void setExpireAfterAccess(long ms) throws IllegalArgumentException {
+        mMemory.setExpireAfterAccess(ms);
+        mFile.setExpireAfterAccess(ms);
+    }
+
+    @Override
+    public synchronized void setWeigher(IPicoWeigher weigher) {
+        mMemory.setWeigher(weigher);
+        mFile.setWeigher(weigher);
+    }
+
+    /**
+     * Demote the node trimmed from the memory tier to the file tier.
+     */
+    @Override
+    public void onEvict(ICacheNode node) {
+        // Keep the time to live left, an expired node is just dropped.
+        TimerWheel.Timer timer = node.getTimer();
+        long ttl = 0;
+
+        if (timer != null && timer.ttlDeadline != Long.MAX_VALUE) {
+            ttl = timer.ttlDeadline - TimerWheel.now();
+            if (ttl <= 0) {
+                return;
+            }
+        }
+
+        // Move the data as it is, compressed or not.
+        byte[] data = node.getData();
+
+        if (data != null) {
+            mFile.putEncoded(node.getKey(), data, ttl);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return super.toString().concat("\n")
+                .concat(mMemory.toString())
+                .concat(mFile.toString());
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Protected/Private ///////////////////////////////////////////////////////////////////////////
+
+    protected void onStreamed(boolean isReplaced) {
+        StatsRecorder stats = mStats;
+        if (stats != null) {
+            stats.record(StatsRecorder.PUT);
+            if (isReplaced) {
+                stats.record(StatsRecorder.REPLACE);
+            }
+        }
+    }
+
+    protected boolean fitsInMemory(String key, byte[] data) {
+        return mMemory.weightOf(key, data.length) <= mMemory.maxSize();
+    }
+
+    /**
+     * @return The pin of the raw data of either tier, or null if it's missing.
+     */
+    protected synchronized Pin pin(String key) {
+        StatsRecorder stats = mStats;
+        long start = stats != null ? System.nanoTime() : 0;
+        int backend = IPicoCacheStats.BACKEND_MEMORY;
+
+        Pin pin = decode(mMemory.pin(key));
+
+        if (pin == null) {
+            backend = IPicoCacheStats.BACKEND_FILE;
+            byte[] data = mFile.get(key);
+
+            // The promoted data is read off the copy in hand, which is decoded already.
+            if (data != null) {
+                promote(key, data);
+                pin = new Pin(ByteBuffer.wrap(data).asReadOnlyBuffer());
+            }
+        }
+
+        if (stats != null) {
+            stats.record(pin != null ? StatsRecorder.HIT : StatsRecorder.MISS);
+            stats.recordLatency(IPicoCacheStats.OP_GET, backend, start);
+        }
+
+        return pin;
+    }
+
+    /**
+     * Decode the data pinned from the memory tier, which is stored encoded.
+     * @return The pin of the raw data, or null if it's corrupted.
+     */
+    protected static Pin decode(Pin pin) {
+        if (pin == null) {
+            return null;
+        }
+
+        ByteBuffer data = Compressor.decode(pin.buffer);
+        if (data == pin.buffer) {
+            return pin;
+        }
+
+        // The raw data is a copy, the stored data is let go right away.
+        pin.release();
+        return data != null ? new Pin(data) : null;
+    }
+
+    protected void promote(String key, byte[] data) {
+        // Too large for the memory tier, it would be demoted right away.
+        if (!fitsInMemory(key, data)) {
+            return;
+        }
+
+        long ttl = mFile.timeToLive(key);
+        mFile.remove(key);
+        mMemory.put(key, data, ttl);
+    }
+}
@@ -0,0 +1,263 @@
+package cb.quiz.picocache.factory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A hierarchical timer wheel expiring the nodes of a store.
+ *
+ * Every level is a ring of buckets, a bucket of level i spans 2^SHIFTS[i] milliseconds and the
+ * whole ring spans one bucket of the next level. A timer goes to the finest level whose ring
+ * covers its delay, so scheduling and cancelling are O(1). Advancing the wheel only visits the
+ * buckets whose ticks passed; the timers of a coarser bucket are either expired or cascaded down
+ * to a finer level, so reaping is amortized O(1) per timer instead of a scan of all the nodes.
+ *
+ * A deadline is checked lazily. An access only updates the time of the timer, the timer is moved
+ * when its bucket comes due and its deadline turns out to be later.
+ *
+ * The wheel is not thread-safe, it's guarded by the lock of the store. The deadline of a timer
+ * could be read without the lock though.
+ */
+class TimerWheel {
+
+    // The bucket of level 0 spans 64ms, level 1 4s, level 2 4min, level 3 4.6h and the last
+    // level takes whatever is farther.
+    static final int[] SHIFTS = {6, 12, 18, 24, 30};
+    static final int[] BUCKETS = {64, 64, 64, 64, 1};
+
+    private static final long ORIGIN = System.nanoTime();
+
+    static class Timer {
+        final ICacheNode node;
+
+        // The deadline of the time to live, Long.MAX_VALUE if there's none.
+        volatile long ttlDeadline = Long.MAX_VALUE;
+
+        // The time of the last access.
+        volatile long accessed = 0;
+
+        // The links in a bucket, guarded by the lock of the store.
+        Timer prev = null;
+        Timer next = null;
+
+        Timer(ICacheNode node) {
+            this.node = node;
+        }
+
+        /**
+         * Take the timer out of its bucket, if any.
+         */
+        void unlink() {
+            if (prev != null) {
+                prev.next = next;
+                next.prev = prev;
+                prev = null;
+                next = null;
+            }
+        }
+    }
+
+    // The sentinels of the buckets by level.
+    protected final Timer[][] mWheel;
+
+    // The time the wheel is advanced to.
+    protected long mNow;
+
+    // Expire the timers not accessed for this long, 0 to disable.
+    protected volatile long mExpireAfterAccess = 0;
+
+    public TimerWheel() {
+        mNow = now();
+        mWheel = new Timer[BUCKETS.length][];
+
+        for (int i = 0; i < BUCKETS.length; ++i) {
+            mWheel[i] = new Timer[BUCKETS[i]];
+            for (int j = 0; j < BUCKETS[i]; ++j) {
+                Timer sentinel = new Timer(null);
+                sentinel.prev = sentinel;
+                sentinel.next = sentinel;
+                mWheel[i][j] = sentinel;
+            }
+        }
+    }
+
+    /**
+     * @return The monotonic time in milliseconds.
+     */
+    static long now() {
+        return (System.nanoTime() - ORIGIN) / 1000000;
+    }
+
+    public void setExpireAfterAccess(long ms) {
+        mExpireAfterAccess = ms;
+    }
+
+    public long expireAfterAccess() {
+        return mExpireAfterAccess;
+    }
+
+    /**
+     * @return The deadline of the timer, Long.MAX_VALUE if it never expires.
+     */
+    public long deadlineOf(Timer timer) {
+        long deadline = timer.ttlDeadline;
+        long idle = mExpireAfterAccess;
+
+        if (idle > 0 && timer.accessed + idle < deadline) {
+            deadline = timer.accessed + idle;
+        }
+
+        return deadline;
+    }
+
+    /**
+     * Safe to call without the lock of the store.
+     * @return True if the timer is due at the given time.
+     */
+    public boolean isExpired(Timer timer, long now) {
+        return deadlineOf(timer) <= now;
+    }
+
+    /**
+     * Put the timer in the bucket of its deadline, or take it out if it never expires.
+     */
+    public void schedule(Timer timer) {
+        timer.unlink();
+
+        long deadline = deadlineOf(timer);
+        if (deadline == Long.MAX_VALUE) {
+            return;
+        }
+
+        Timer sentinel = bucketOf(deadline);
+        timer.prev = sentinel.prev;
+        timer.next = sentinel;
+        sentinel.prev.next = timer;
+        sentinel.prev = timer;
+    }
+
+    /**
+     * Give the node a timer of the time to live and the idle time, or drop its timer if it never
+     * expires.
+     * @param ttl The time to live in milliseconds, 0 if there's none.
+     * @param now The current time.
+     */
+    public void schedule(ICacheNode node, long ttl, long now) {
+        Timer timer = node.getTimer();
+
+        if (ttl <= 0 && mExpireAfterAccess <= 0) {
+            if (timer != null) {
+                timer.unlink();
+                node.setTimer(null);
+            }
+            return;
+        }
+
+        if (timer == null) {
+            timer = new Timer(node);
+            node.setTimer(timer);
+        }
+        timer.ttlDeadline = ttl > 0 ? now + ttl : Long.MAX_VALUE;
+        timer.accessed = now;
+        schedule(timer);
+    }
+
+    /**
+     * Record an access of the node, safe to call without the lock of the store. The timer is
+     * moved lazily once its bucket comes due.
+     * @return False if the node is expired.
+     */
+    public boolean touch(ICacheNode node, long now) {
+        Timer timer = node.getTimer();
+
+        if (timer == null) {
+            return true;
+        }
+        if (isExpired(timer, now)) {
+            return false;
+        }
+
+        timer.accessed = now;
+        return true;
+    }
+
+    /**
+     * Advance the wheel to the given time.
+     * @return The nodes of the expired timers, taken out of the wheel.
+     */
+    public List<ICacheNode> advance(long now) {
+        long previous = mNow;
+
+        // Most calls don't cross a tick.
+        if (now <= previous || (now >>> SHIFTS[0]) == (previous >>> SHIFTS[0])) {
+            mNow = Math.max(now, previous);
+            return Collections.emptyList();
+        }
+        mNow = now;
+
+        List<ICacheNode> expired = new ArrayList<>();
+
+        for (int i = 0; i < BUCKETS.length; ++i) {
+            long previousTicks = previous >>> SHIFTS[i];
+            long ticks = now >>> SHIFTS[i];
+
+            // The coarser levels haven't moved either.
+            if (ticks == previousTicks) {
+                break;
+            }
+
+            // Visit the buckets from the previous tick to the current one.
+            int count = (int) Math.min(ticks - previousTicks + 1, BUCKETS[i]);
+            int mask = BUCKETS[i] - 1;
+            for (int j = 0; j < count; ++j) {
+                expire(mWheel[i][(int) ((previousTicks + j) & mask)], now, expired);
+            }
+        }
+
+        return expired;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Protected/Private ///////////////////////////////////////////////////////////////////////////
+
+    protected Timer bucketOf(long deadline) {
+        // A past deadline goes to the current bucket, which is visited on the next tick.
+        long when = Math.max(deadline, mNow);
+        long delay = when - mNow;
+
+        for (int i = 0; i < BUCKETS.length - 1; ++i) {
+            if (delay < (1L << SHIFTS[i + 1])) {
+                return mWheel[i][(int) ((when >>> SHIFTS[i]) & (BUCKETS[i] - 1))];
+            }
+        }
+
+        return mWheel[BUCKETS.length - 1][0];
+    }
+
+    protected void expire(Timer sentinel, long now, List<ICacheNode> expired) {
+        if (sentinel.next == sentinel) {
+            return;
+        }
+
+        // Detach the chain first, the timers not yet due are put back into the wheel.
+        Timer timer = sentinel.next;
+        sentinel.prev.next = null;
+        sentinel.prev = sentinel;
+        sentinel.next = sentinel;
+
+        while (timer != null) {
+            Timer next = timer.next;
+            timer.prev = null;
+            timer.next = null;
+
+            if (deadlineOf(timer) <= now) {
+                expired.add(timer.node);
+            } else {
+                schedule(timer);
+            }
+
+            timer = next;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package cb.quiz.picocache.factory;
+
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * W-TinyLFU: a small LRU admission window in front of a main LRU region, guarded by a
+ * FrequencySketch.
+ *
+ * New nodes enter the window. When the window holds more than its share of the entries, the
+ * oldest node of the window becomes a candidate for the main region. If the store overflows, the
+ * candidate is only admitted if the sketch estimates it hotter than the victim it would evict
+ * from the main region, otherwise the candidate itself is evicted. A one-off scan therefore
+ * cannot flush the working set.
+ */
+class TinyLfuTrimmer implements ICacheStoreTrimmer {
+
+    // The share of the entries held by the admission window, in percent.
+    private static final int WINDOW_PERCENT = 1;
+
+    // The admission window, in LRU order.
+    protected CacheNodeList mWindow = new CacheNodeList();
+
+    // The main region, in LRU order.
+    protected CacheNodeList mMain = new CacheNodeList();
+
+    // The nodes living in the window.
+    protected HashSet<ICacheNode> mWindowNodes = new HashSet<>();
+
+    // The frequency filter.
+    protected FrequencySketch mSketch = new FrequencySketch();
+
+    @Override
+    public void onAdd(ICacheNode node) {
+        mSketch.ensureCapacity(mWindow.count() + mMain.count() + 1);
+        mSketch.increment(node.getKey());
+
+        mWindow.addLast(node);
+        mWindowNodes.add(node);
+    }
+
+    @Override
+    public void onAccess(ICacheNode node) {
+        mSketch.increment(node.getKey());
+
+        if (mWindowNodes.contains(node)) {
+            mWindow.moveToLast(node);
+        } else {
+            mMain.moveToLast(node);
+        }
+    }
+
+    @Override
+    public void onRemove(ICacheNode node) {
+        if (mWindowNodes.remove(node)) {
+            mWindow.remove(node);
+        } else {
+            mMain.remove(node);
+        }
+    }
+
+    @Override
+    public void clear() {
+        mWindow.clear();
+        mMain.clear();
+        mWindowNodes.clear();
+        mSketch.clear();
+    }
+
+    @Override
+    public long trim(final Map<String, ICacheNode> index, long size, final long max,
+                     final ICacheEvictionListener listener) {
+        try {
+            int windowMax = Math.max(1, index.size() * WINDOW_PERCENT / 100);
+
+            // Let the overflow of the window compete for the main region.
+            while (mWindow.count() > windowMax) {
+                ICacheNode candidate = mWindow.first();
+                mWindow.remove(candidate);
+                mWindowNodes.remove(candidate);
+
+                ICacheNode victim = mMain.first();
+                if (size <= max || victim == null) {
+                    // There's still room, admit it without a fight.
+                    mMain.addLast(candidate);
+                    continue;
+                }
+
+                if (mSketch.frequency(candidate.getKey()) > mSketch.frequency(victim.getKey())) {
+                    mMain.remove(victim);
+                    mMain.addLast(candidate);
+                    size = evict(index, victim, size, listener);
+                } else {
+                    size = evict(index, candidate, size, listener);
+                }
+            }
+
+            // Still overflowed, evict the coldest ones.
+            while (size > max && !(mMain.isEmpty() && mWindow.isEmpty())) {
+                ICacheNode victim;
+                if (!mMain.isEmpty()) {
+                    victim = mMain.first();
+                    mMain.remove(victim);
+                } else {
+                    victim = mWindow.first();
+                    mWindow.remove(victim);
+                    mWindowNodes.remove(victim);
+                }
+
+                size = evict(index, victim, size, listener);
+            }
+        } catch (Exception e) {
+            // DO NOTHING.
+        }
+
+        return size;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Protected/Private ///////////////////////////////////////////////////////////////////////////
+
+    protected long evict(final Map<String, ICacheNode> index, ICacheNode node, long size,
+                         final ICacheEvictionListener listener) {
+        index.remove(node.getKey());
+        // Subtract the node's weight.
+        size -= node.weight();
+        // Let the listener take it over, then dispose the node.
+        if (listener != null) {
+            listener.onEvict(node);
+        }
+        node.dispose();
+
+        return size;
+    }
+
+}
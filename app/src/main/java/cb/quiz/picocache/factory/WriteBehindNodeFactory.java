@@ -0,0 +1,500 @@
+package cb.quiz.picocache.factory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import bolts.Task;
+import cb.quiz.picocache.iface.IPicoCacheStats;
+
+/**
+ * Create the file nodes whose values are staged in memory and written to the SegmentLog later,
+ * so a put never waits for the disk and the readers are never stalled by a write.
+ *
+ * A staged value is readable right away. The staged nodes are queued in the order of putting
+ * and a background writer appends them to the log in batches of BATCH_BYTES with a single
+ * write. Once the staged bytes exceed the budget, the putting thread writes batches itself in
+ * awaitCapacity, before the store takes its lock, so the producers are slowed down to the speed
+ * of the disk instead of growing the memory. The budget is exceeded by the puts in flight.
+ *
+ * A batch only appends the values whose nodes are unchanged, checked under the lock of the
+ * log, so a stale value never takes over the record of a newer one of its key.
+ *
+ * Lock order: the node, then the log. The queue lock is never held while taking the others.
+ */
+class WriteBehindNodeFactory implements ICacheNodeFactory {
+
+    // The maximum bytes written in one batch.
+    static final int BATCH_BYTES = 1 << 20;
+
+    // Shared by all the factories, the disk is the bottleneck anyway.
+    private static final ExecutorService sWriter = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "picocache-writer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    protected final SegmentLog mLog;
+
+    // The maximum staged bytes.
+    protected final long mBudget;
+
+    // The staged nodes in the order of putting, guarded by itself.
+    protected final LinkedHashSet<StagedNode> mQueue = new LinkedHashSet<>();
+    protected long mStagedBytes = 0;
+
+    // The running writer, guarded by mQueue.
+    protected Task<Void> mWriter = null;
+
+    /**
+     * @param log The log to write to.
+     * @param budget The maximum staged bytes.
+     */
+    public WriteBehindNodeFactory(SegmentLog log, long budget) {
+        mLog = log;
+        mBudget = budget;
+    }
+
+    @Override
+    public ICacheNode create(String key, byte[] value) {
+        ICacheNode node = new StagedNode(null);
+
+        node.setKey(key);
+        node.setData(value);
+
+        return node;
+    }
+
+    /**
+     * The streamed value is written to the log right away, it's not staged.
+     */
+    @Override
+    public NodeOutputStream openOutputStream(String key) throws IOException {
+        return new NodeOutputStream(key, mLog.openWriter()) {
+            @Override
+            protected ICacheNode createNode(SegmentLog.Record record) {
+                StagedNode node = new StagedNode(record);
+                node.setKey(record.mKey);
+                return node;
+            }
+        };
+    }
+
+    @Override
+    public List<ICacheNode> restore() {
+        List<ICacheNode> nodes = new ArrayList<>();
+
+        for (SegmentLog.Record record : mLog.records()) {
+            StagedNode node = new StagedNode(record);
+            node.setKey(record.mKey);
+            nodes.add(node);
+        }
+
+        return nodes;
+    }
+
+    @Override
+    public long mappedSize() {
+        return mLog.mappedBytes();
+    }
+
+    @Override
+    public void setCapacity(long bytes) {
+        // DO NOTHING.
+    }
+
+    @Override
+    public SlabStats slabStats() {
+        return null;
+    }
+
+    @Override
+    public int backend() {
+        return IPicoCacheStats.BACKEND_FILE;
+    }
+
+    /**
+     * Sort the nodes by the locations of their records, the staged ones come first.
+     */
+    @Override
+    public void sortByLocation(List<ICacheNode> nodes) {
+        List<SegmentLog.Record> records = new ArrayList<>(nodes.size());
+
+        for (ICacheNode node : nodes) {
+            SegmentLog.Record record = null;
+
+            if (node instanceof StagedNode) {
+                StagedNode staged = (StagedNode) node;
+                synchronized (staged) {
+                    record = staged.mStaged == null ? staged.mRecord : null;
+                }
+            }
+            records.add(record);
+        }
+
+        mLog.sortByLocation(nodes, records);
+    }
+
+    /**
+     * Write all the staged nodes and wait for the running writer.
+     */
+    @Override
+    public void flush() {
+        while (writeBatch()) {
+            // Keep writing.
+        }
+
+        Task<Void> writer;
+        synchronized (mQueue) {
+            writer = mWriter;
+        }
+
+        if (writer != null) {
+            try {
+                writer.waitForCompletion();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Back-pressure, the putting thread writes the oldest batches itself while the staged bytes
+     * exceed the budget.
+     */
+    @Override
+    public void awaitCapacity() {
+        while (true) {
+            synchronized (mQueue) {
+                if (mStagedBytes <= mBudget) {
+                    return;
+                }
+            }
+
+            if (!writeBatch()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Write the staged nodes, then release the log.
+     */
+    @Override
+    public void close() {
+        flush();
+        mLog.release();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return mLog.isClosed();
+    }
+
+    /**
+     * @return The staged bytes not yet taken by a writer.
+     */
+    public long stagedBytes() {
+        synchronized (mQueue) {
+            return mStagedBytes;
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Protected/Private ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Queue the node for the writer. It never writes itself, the node is locked by the store.
+     */
+    protected void stage(StagedNode node, int bytes) {
+        synchronized (mQueue) {
+            mStagedBytes += bytes - node.mQueuedBytes;
+            node.mQueuedBytes = bytes;
+            mQueue.add(node);
+
+            if (mWriter == null) {
+                mWriter = Task.call(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        drain();
+                        return null;
+                    }
+                }, sWriter);
+            }
+        }
+    }
+
+    protected void unstage(StagedNode node) {
+        synchronized (mQueue) {
+            if (mQueue.remove(node)) {
+                mStagedBytes -= node.mQueuedBytes;
+            }
+            node.mQueuedBytes = 0;
+        }
+    }
+
+    protected void drain() {
+        while (true) {
+            synchronized (mQueue) {
+                if (mQueue.isEmpty()) {
+                    mWriter = null;
+                    return;
+                }
+            }
+
+            writeBatch();
+        }
+    }
+
+    /**
+     * Append the oldest staged values to the log with a single write.
+     * @return False if there was nothing to write.
+     */
+    protected boolean writeBatch() {
+        ArrayList<StagedNode> nodes = new ArrayList<>();
+
+        synchronized (mQueue) {
+            Iterator<StagedNode> it = mQueue.iterator();
+            long bytes = 0;
+
+            while (it.hasNext() && bytes < BATCH_BYTES) {
+                StagedNode node = it.next();
+                it.remove();
+
+                bytes += node.mQueuedBytes;
+                mStagedBytes -= node.mQueuedBytes;
+                node.mQueuedBytes = 0;
+                nodes.add(node);
+            }
+        }
+
+        if (nodes.isEmpty()) {
+            return false;
+        }
+
+        // Take a snapshot of the values, they could be replaced while being written.
+        final ArrayList<StagedNode> staged = new ArrayList<>(nodes.size());
+        ArrayList<String> keys = new ArrayList<>(nodes.size());
+        ArrayList<byte[]> values = new ArrayList<>(nodes.size());
+        final int[] versions = new int[nodes.size()];
+
+        for (StagedNode node : nodes) {
+            synchronized (node) {
+                if (node.mStaged != null) {
+                    versions[staged.size()] = node.mVersion;
+                    staged.add(node);
+                    keys.add(node.getKey());
+                    values.add(node.mStaged);
+                }
+            }
+        }
+
+        int count = staged.size();
+        SegmentLog.Record[] records = new SegmentLog.Record[count];
+        for (int i = 0; i < count; ++i) {
+            records[i] = new SegmentLog.Record();
+        }
+
+        boolean isWritten = false;
+        if (count > 0) {
+            try {
+                // The value replaced in between is skipped, otherwise its record would take
+                // over the key from the newer value appended meanwhile.
+                mLog.append(records, keys.toArray(new String[count]),
+                        values.toArray(new byte[count][]), new SegmentLog.AppendFilter() {
+                            @Override
+                            public boolean accept(int index) {
+                                return staged.get(index).mVersion == versions[index];
+                            }
+                        });
+                isWritten = true;
+            } catch (IOException e) {
+                // DO NOTHING.
+            }
+        }
+
+        for (int i = 0; i < count; ++i) {
+            StagedNode node = staged.get(i);
+
+            synchronized (node) {
+                if (node.mVersion != versions[i]) {
+                    // Replaced or disposed in between, the record is stale if it's written.
+                    if (isWritten) {
+                        mLog.free(records[i]);
+                    }
+                } else if (isWritten) {
+                    node.mRecord = records[i];
+                    node.mStaged = null;
+                } else {
+                    // Give the value up, the store drops the node on the next read.
+                    node.mStaged = null;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    protected class StagedNode extends BaseNode {
+
+        // The value not yet written, guarded by the node.
+        protected byte[] mStaged = null;
+
+        // The record of the written value, guarded by the node.
+        protected SegmentLog.Record mRecord;
+
+        // Bumped whenever the value is replaced or disposed, written under the node and read
+        // by the filter of the append under the log.
+        protected volatile int mVersion = 0;
+
+        // The bytes counted in the staged bytes, guarded by mQueue.
+        protected int mQueuedBytes = 0;
+
+        protected volatile int mSize;
+
+        StagedNode(SegmentLog.Record record) {
+            mRecord = record;
+            mSize = record != null ? record.mLength : 0;
+        }
+
+        @Override
+        public void setData(byte[] value) throws IllegalArgumentException {
+            super.setData(value);
+
+            synchronized (this) {
+                if (mRecord != null) {
+                    mLog.free(mRecord);
+                    mRecord = null;
+                }
+
+                mStaged = value;
+                mSize = value.length;
+                ++mVersion;
+            }
+
+            stage(this, value.length);
+        }
+
+        @Override
+        public byte[] getData() {
+            SegmentLog.Record record;
+
+            synchronized (this) {
+                if (mStaged != null) {
+                    return mStaged;
+                }
+                record = mRecord;
+            }
+
+            if (record == null) {
+                return null;
+            }
+
+            try {
+                byte[] value = mLog.read(record);
+
+                if (value != null && value.length == mSize) {
+                    return value;
+                }
+            } catch (IOException e) {
+                // DO NOTHING.
+            }
+
+            return null;
+        }
+
+        @Override
+        public ByteBuffer getBuffer() {
+            SegmentLog.Record record;
+
+            synchronized (this) {
+                if (mStaged != null) {
+                    return ByteBuffer.wrap(mStaged).asReadOnlyBuffer();
+                }
+                record = mRecord;
+            }
+
+            if (record == null) {
+                return null;
+            }
+
+            try {
+                ByteBuffer buffer = mLog.readBuffer(record);
+
+                if (buffer != null && buffer.remaining() == mSize) {
+                    return buffer;
+                }
+            } catch (IOException e) {
+                // DO NOTHING.
+            }
+
+            return null;
+        }
+
+        @Override
+        public InputStream openInputStream() {
+            SegmentLog.Record record;
+
+            synchronized (this) {
+                if (mStaged != null) {
+                    return new ByteArrayInputStream(mStaged);
+                }
+                record = mRecord;
+            }
+
+            return record != null ? mLog.openReader(record) : null;
+        }
+
+        @Override
+        public ByteBuffer copyTo(BufferPool pool) {
+            SegmentLog.Record record;
+
+            synchronized (this) {
+                if (mStaged != null) {
+                    return super.copyTo(pool);
+                }
+                record = mRecord;
+            }
+
+            return record != null ? CacheNodeFactory.copyRecord(mLog, record, pool) : null;
+        }
+
+        @Override
+        public int size() {
+            return mSize;
+        }
+
+        @Override
+        public void dispose() {
+            // Drop the staged value before the key, the writer takes both together.
+            synchronized (this) {
+                if (mRecord != null) {
+                    mLog.free(mRecord);
+                    mRecord = null;
+                }
+
+                mStaged = null;
+                mSize = 0;
+                ++mVersion;
+            }
+
+            unstage(this);
+            super.dispose();
+        }
+
+    }
+
+}
@@ -0,0 +1,45 @@
+package cb.quiz.picocache.iface;
+
+import bolts.Task;
+
+/**
+ * The asynchronous companion of IPicoCache. The calls run on the I/O executor of the cache, so
+ * they never block the caller, e.g. the UI thread.
+ */
+public interface IPicoAsyncCache {
+    /**
+     * Get the data refer to given key.
+     * @param key The key paired with the data.
+     * @return The task of the data, the result is null if the key is missing.
+     */
+    Task<byte[]> getAsync(String key);
+
+    /**
+     * Insert a chunk of data paired with given key.
+     * @param key The key could be a URL, file path, etc...
+     * @param data The binary data.
+     * @return The task of the insertion.
+     */
+    Task<Void> putAsync(String key, byte[] data);
+
+    /**
+     * Get the data refer to given key, or load and insert it if the key is missing. The calls
+     * for the same key while a load is in flight share the same task, so the data is loaded
+     * once.
+     * @param key The key paired with the data.
+     * @param loader Load the data of the missing key.
+     * @return The task of the data, faulted if the loader fails.
+     */
+    Task<byte[]> getOrLoadAsync(String key, IPicoLoader loader);
+
+    /**
+     * @return The blocking cache under the asynchronous one.
+     */
+    IPicoCache getCache();
+
+    /**
+     * Shut the I/O threads down once the calls already made are done, the calls afterwards throw
+     * RejectedExecutionException. The blocking cache is left open.
+     */
+    void close();
+}
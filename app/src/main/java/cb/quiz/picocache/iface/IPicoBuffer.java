@@ -0,0 +1,20 @@
+package cb.quiz.picocache.iface;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A copy of the data of a key in a buffer taken from a pool, see IPicoCache.getPooled.
+ */
+public interface IPicoBuffer {
+    /**
+     * @return The data between the position and the limit, not to be used after the release.
+     * @throws IllegalStateException, if the buffer is released.
+     */
+    ByteBuffer buffer() throws IllegalStateException;
+
+    /**
+     * Give the buffer back to the pool to be reused, rather than leaving it to the GC. Only the
+     * first call counts.
+     */
+    void release();
+}
@@ -1,5 +1,12 @@
 package cb.quiz.picocache.iface;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Map;
+
 public interface IPicoCache {
     /**
      * Insert a chunk of data paired with given key.
@@ -9,26 +16,186 @@ public interface IPicoCache {
     void put(String key, byte[] data) throws IllegalArgumentException;
 
     /**
-     * Get the data refer to given key.
+     * Insert a chunk of data paired with given key, which expires after given time. The time to
+     * live is not kept across a restart.
+     * @param key The key could be a URL, file path, etc...
+     * @param data The binary data.
+     * @param ttl The time to live in milliseconds, 0 if it never expires.
+     */
+    void put(String key, byte[] data, long ttl) throws IllegalArgumentException;
+
+    /**
+     * Get the data refer to given key. The data of TYPE_MEMORY is the array held by the cache,
+     * so it must not be modified; see read for the access without a copy.
      * @param key The key paired with the data.
      * @return The data.
      */
     byte[] get(String key);
 
     /**
-     * The total size of current data in Bytes.
+     * Insert the chunks of data paired with their keys, the cache is trimmed once for the batch.
+     * @param entries The data by their keys.
+     */
+    void putAll(Map<String, byte[]> entries) throws IllegalArgumentException;
+
+    /**
+     * Get the data refer to given keys at once. The data on the disk is read in the order of
+     * its location.
+     * @param keys The keys paired with the data.
+     * @return The data by their keys, the missing keys are left out.
+     */
+    Map<String, byte[]> getAll(Collection<String> keys);
+
+    /**
+     * Get the data refer to given key, or load and insert it if the key is missing. The callers
+     * of the same key share one load, and a key the loader has nothing for is not loaded again
+     * for a few seconds.
+     * @param key The key paired with the data.
+     * @param loader Load the data of the missing key.
+     * @return The data, or null if the loader has nothing for the key.
+     * @throws RuntimeException wrapping the failure of the loader.
+     */
+    byte[] get(String key, IPicoLoader loader);
+
+    /**
+     * Get a read-only view of the data refer to given key. For TYPE_FILE the view is backed by
+     * the memory-mapped file whenever possible, so the data is not copied on the heap.
+     * @param key The key paired with the data.
+     * @return The read-only view of the data.
+     */
+    ByteBuffer getBuffer(String key);
+
+    /**
+     * Read the data refer to given key in place. The reader gets a read-only view of the data,
+     * which is pinned and stays intact during the call even if the key is replaced or evicted,
+     * so neither the data is copied nor the cache is locked. The view must not be kept after
+     * the call.
+     * @param key The key paired with the data.
+     * @param reader Read the data.
+     * @return Whatever the reader returns, or null if the key is missing.
+     */
+    <T> T read(String key, IPicoReader<T> reader);
+
+    /**
+     * Get a copy of the data refer to given key in a buffer taken from a size-classed pool. The
+     * buffer is given back to the pool by release and reused by the following calls, so the
+     * reads of large data don't churn the GC. For TYPE_FILE the data is read straight into the
+     * buffer.
+     * @param key The key paired with the data.
+     * @return The copy, which should be released, or null if the key is missing.
+     */
+    IPicoBuffer getPooled(String key);
+
+    /**
+     * Take the buffers of getPooled from the pool of direct buffers, off the heap, or from the
+     * pool of heap buffers, which is the default.
+     * @param enabled True to use the direct buffers.
+     */
+    void setDirectBuffersEnabled(boolean enabled);
+
+    /**
+     * Open a stream writing the data paired with given key incrementally, e.g. a value too large
+     * to be held on the heap. For TYPE_FILE the data goes to the disk in chunks as it's written,
+     * so the memory taken is bounded by a chunk. The data is put when the stream is closed, it
+     * never expires and it's not compressed; nothing is put if the stream is empty. Use
+     * Channels.newChannel for a WritableByteChannel.
+     * @param key The key could be a URL, file path, etc...
+     * @return The stream, which must be closed.
+     */
+    OutputStream openOutputStream(String key) throws IOException;
+
+    /**
+     * Open a stream reading the data refer to given key incrementally. For TYPE_FILE the data is
+     * read from the disk in chunks, the stream fails if the key is replaced or removed in
+     * between. Use Channels.newChannel for a ReadableByteChannel.
+     * @param key The key paired with the data.
+     * @return The stream, which must be closed, or null if the key is missing.
+     */
+    InputStream openInputStream(String key) throws IOException;
+
+    /**
+     * The total size of current data in Bytes, as told by the weigher.
      * @return The total size of current data in Bytes.
      */
-    int size();
+    long size();
+
+    /**
+     * The total size of the memory-mapped files in Bytes, always 0 for TYPE_MEMORY.
+     * @return The total size of the memory-mapped files in Bytes.
+     */
+    long mappedSize();
+
+    /**
+     * The snapshot of the slabs holding the data, only for TYPE_OFFHEAP.
+     * @return The snapshot or null if the data is not kept in slabs.
+     */
+    IPicoSlabStats getSlabStats();
+
+    /**
+     * Turn the compression of the data put from now on or off, it's off by default. The data
+     * is compressed with Deflater, unless it's too small or doesn't shrink by 1/8 at least, and
+     * its compressed size is counted against the cache size. The data is decompressed on every
+     * get, so it's a trade of CPU for capacity.
+     * @param enabled True to compress the data.
+     */
+    void setCompressionEnabled(boolean enabled);
+
+    /**
+     * Turn the deduplication of the data put from now on or off, it's off by default. The
+     * identical data put under different keys is held once and shared by the keys, so only the
+     * unique data is counted against the cache size. The shared data is freed along with the
+     * last key referring to it. Only for TYPE_MEMORY and TYPE_OFFHEAP, no-op for the others.
+     * @param enabled True to share the identical data.
+     */
+    void setDedupEnabled(boolean enabled);
+
+    /**
+     * Turn the statistics on or off, they are off by default. Turning them on again keeps
+     * counting from where they were.
+     * @param enabled True to record the statistics.
+     */
+    void setStatsEnabled(boolean enabled);
+
+    /**
+     * The snapshot of the statistics since they were turned on.
+     * @return The snapshot, all zero if the statistics are off.
+     */
+    IPicoCacheStats getStats();
+
+    /**
+     * Write the data still held in memory by a write-behind cache to the disk, no-op for the
+     * other caches.
+     */
+    void flush();
 
     /**
      * Clean the cache.
      */
     void clear();
 
+    /**
+     * Release the cache, e.g. the files owned by a TYPE_FILE cache. The data on the disk is kept
+     * for the next cache. The cache cannot be used afterwards, the
+     * puts and gets throw IllegalStateException.
+     */
+    void close();
+
     /**
      * Set the maximum cache size.
      * @param kb Numbers in KB.
      */
     void setCacheSize(int kb) throws IllegalArgumentException;
+
+    /**
+     * Expire the entries not accessed for given time, on top of their time to live.
+     * @param ms The idle time in milliseconds, 0 to disable.
+     */
+    void setExpireAfterAccess(long ms) throws IllegalArgumentException;
+
+    /**
+     * Set the cost model of the entries, the current entries are weighed again and the cache is
+     * trimmed to fit.
+     * @param weigher The weigher, or null to count the size of the data only.
+     */
+    void setWeigher(IPicoWeigher weigher);
 }
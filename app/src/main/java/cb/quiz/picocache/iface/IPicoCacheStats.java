@@ -0,0 +1,97 @@
+package cb.quiz.picocache.iface;
+
+/**
+ * A snapshot of the statistics of a cache since they were turned on.
+ */
+public interface IPicoCacheStats {
+
+    // The causes of an eviction.
+    int CAUSE_SIZE = 0;
+    int CAUSE_EXPIRED = 1;
+    int CAUSE_LOST = 2;
+
+    // The operations timed.
+    int OP_GET = 0;
+    int OP_PUT = 1;
+
+    // The backends serving the operations.
+    int BACKEND_MEMORY = 0;
+    int BACKEND_FILE = 1;
+
+    // The number of the latency buckets, the bucket i counts the latencies in [2^i, 2^(i+1)) ns.
+    int LATENCY_BUCKETS = 40;
+
+    /**
+     * @return The number of the gets finding the data.
+     */
+    long getHitCount();
+
+    /**
+     * @return The number of the gets not finding the data.
+     */
+    long getMissCount();
+
+    /**
+     * @return The ratio of the hits to all the gets, 1 if there's no get.
+     */
+    double getHitRate();
+
+    /**
+     * @return The number of the puts, including the replacements.
+     */
+    long getPutCount();
+
+    /**
+     * @return The number of the puts replacing the data of an existing key.
+     */
+    long getReplaceCount();
+
+    /**
+     * @return The number of the evicted entries of all the causes.
+     */
+    long getEvictionCount();
+
+    /**
+     * @param cause One of CAUSE_SIZE, CAUSE_EXPIRED or CAUSE_LOST.
+     * @return The number of the entries evicted for the cause.
+     */
+    long getEvictionCount(int cause);
+
+    /**
+     * @return The total weight of the evicted entries in Bytes.
+     */
+    long getEvictedBytes();
+
+    /**
+     * @return The number of the loads returning the data or null.
+     */
+    long getLoadSuccessCount();
+
+    /**
+     * @return The number of the loads throwing.
+     */
+    long getLoadFailureCount();
+
+    /**
+     * @param op OP_GET or OP_PUT.
+     * @param backend BACKEND_MEMORY or BACKEND_FILE.
+     * @return The number of the operations timed.
+     */
+    long getLatencyCount(int op, int backend);
+
+    /**
+     * @param op OP_GET or OP_PUT.
+     * @param backend BACKEND_MEMORY or BACKEND_FILE.
+     * @return The counts of the LATENCY_BUCKETS buckets of latency.
+     */
+    long[] getLatencyHistogram(int op, int backend);
+
+    /**
+     * @param op OP_GET or OP_PUT.
+     * @param backend BACKEND_MEMORY or BACKEND_FILE.
+     * @param percentile The percentile in (0, 100].
+     * @return The upper bound of the bucket holding the percentile in nanoseconds, 0 if nothing
+     * is timed.
+     */
+    long getLatencyPercentile(int op, int backend, double percentile);
+}
@@ -0,0 +1,12 @@
+package cb.quiz.picocache.iface;
+
+/**
+ * Load the data of a key missing in the cache, e.g. download it.
+ */
+public interface IPicoLoader {
+    /**
+     * @param key The missing key.
+     * @return The data, or null if there's no data for the key.
+     */
+    byte[] load(String key) throws Exception;
+}
@@ -0,0 +1,15 @@
+package cb.quiz.picocache.iface;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Read the data of a key in place, without copying it.
+ */
+public interface IPicoReader<T> {
+    /**
+     * @param key The key paired with the data.
+     * @param data The read-only view of the data, only valid during the call.
+     * @return Whatever is read out of the data.
+     */
+    T read(String key, ByteBuffer data);
+}
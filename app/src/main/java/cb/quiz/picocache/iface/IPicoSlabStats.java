@@ -0,0 +1,61 @@
+package cb.quiz.picocache.iface;
+
+/**
+ * A snapshot of the slabs of an off-heap cache. The slabs are grouped into classes by the chunk
+ * size, a value takes a chunk of the smallest class that fits.
+ */
+public interface IPicoSlabStats {
+    /**
+     * @return The number of the slab classes.
+     */
+    int getClassCount();
+
+    /**
+     * @param slabClass The index of the class.
+     * @return The chunk size of the class in Bytes.
+     */
+    int getChunkSize(int slabClass);
+
+    /**
+     * @param slabClass The index of the class.
+     * @return The number of chunks allocated to the class.
+     */
+    int getTotalChunks(int slabClass);
+
+    /**
+     * @param slabClass The index of the class.
+     * @return The number of chunks holding a value.
+     */
+    int getUsedChunks(int slabClass);
+
+    /**
+     * @param slabClass The index of the class.
+     * @return The number of values evicted to make room in the class.
+     */
+    long getEvictions(int slabClass);
+
+    /**
+     * @return The total size of the allocated pages in Bytes.
+     */
+    long getAllocatedBytes();
+
+    /**
+     * @return The total size of the used chunks in Bytes.
+     */
+    long getUsedBytes();
+
+    /**
+     * @return The total size of the values in the used chunks in Bytes.
+     */
+    long getRequestedBytes();
+
+    /**
+     * @return The ratio of the used bytes to the allocated bytes.
+     */
+    float getUtilization();
+
+    /**
+     * @return The ratio of the wasted bytes in the used chunks to the used bytes.
+     */
+    float getFragmentation();
+}
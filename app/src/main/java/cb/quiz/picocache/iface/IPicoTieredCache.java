@@ -0,0 +1,32 @@
+package cb.quiz.picocache.iface;
+
+/**
+ * A small memory tier in front of a large file tier. A put goes to the memory tier, the entries
+ * trimmed from the memory tier are demoted to the file tier, and a hit in the file tier is
+ * promoted back to the memory tier. An entry lives in exactly one tier.
+ */
+public interface IPicoTieredCache extends IPicoCache {
+    /**
+     * Set the maximum size of the memory tier.
+     * @param kb Numbers in KB.
+     */
+    void setMemoryCacheSize(int kb) throws IllegalArgumentException;
+
+    /**
+     * Set the maximum size of the file tier.
+     * @param kb Numbers in KB.
+     */
+    void setFileCacheSize(int kb) throws IllegalArgumentException;
+
+    /**
+     * The total size of current data in the memory tier in Bytes.
+     * @return The total size of current data in the memory tier in Bytes.
+     */
+    long memorySize();
+
+    /**
+     * The total size of current data in the file tier in Bytes.
+     * @return The total size of current data in the file tier in Bytes.
+     */
+    long fileSize();
+}
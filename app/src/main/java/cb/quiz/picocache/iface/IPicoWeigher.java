@@ -0,0 +1,13 @@
+package cb.quiz.picocache.iface;
+
+/**
+ * Tell the cost of an entry counted against the maximum cache size.
+ */
+public interface IPicoWeigher {
+    /**
+     * @param key The key of the entry.
+     * @param size The size of the data in Bytes.
+     * @return The cost of the entry in Bytes.
+     */
+    long weigh(String key, int size);
+}
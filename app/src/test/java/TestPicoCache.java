@@ -3,10 +3,33 @@ import junit.framework.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
-
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bolts.Task;
 import cb.quiz.picocache.factory.PicoCacheFactory;
+import cb.quiz.picocache.iface.IPicoAsyncCache;
+import cb.quiz.picocache.iface.IPicoBuffer;
 import cb.quiz.picocache.iface.IPicoCache;
+import cb.quiz.picocache.iface.IPicoCacheStats;
+import cb.quiz.picocache.iface.IPicoLoader;
+import cb.quiz.picocache.iface.IPicoReader;
+import cb.quiz.picocache.iface.IPicoSlabStats;
+import cb.quiz.picocache.iface.IPicoTieredCache;
+import cb.quiz.picocache.iface.IPicoWeigher;
 
 public class TestPicoCache {
     private byte[] data10kb_1 = new byte[10 << 10];
@@ -281,6 +304,8 @@ public class TestPicoCache {
 
         Assert.assertTrue(Arrays.equals(cache2.get("data1"), data50kb_3));
         Assert.assertTrue(cache2.get("data2") != null);
+        cache1.close();
+        cache2.close();
     }
 
     @Test
@@ -298,6 +323,8 @@ public class TestPicoCache {
                 PicoCacheFactory.STRATEGY_FIFO);
         cache2.setCacheSize(20);
         Assert.assertNotNull(cache2.get("data1"));
+        cache1.close();
+        cache2.close();
     }
 
     @Test
@@ -333,5 +360,1875 @@ public class TestPicoCache {
         Assert.assertNull(c2.get("key1"));
         Assert.assertNull(c2.get("key2"));
         Assert.assertNull(c2.get("key3"));
+        c2.close();
+    }
+
+    @Test
+    public void Case06() {
+        System.out.printf("Case: Hit rate of the hash index should be the same as a linear scan\n");
+
+        final int count = 1000;
+        final byte[] data = new byte[1 << 10];
+        Arrays.fill(data, (byte) 1);
+
+        // Room for exactly half of the entries.
+        IPicoCache c1 = PicoCacheFactory.create(PicoCacheFactory.TYPE_MEMORY, PicoCacheFactory.STRATEGY_FIFO);
+        c1.setCacheSize(count / 2);
+        IPicoCache c2 = PicoCacheFactory.create(PicoCacheFactory.TYPE_MEMORY, PicoCacheFactory.STRATEGY_LIFO);
+        c2.setCacheSize(count / 2);
+        for (int i = 0; i < count; ++i) {
+            c1.put("key" + i, data);
+            c2.put("key" + i, data);
+        }
+
+        // FIFO keeps the newer half and LIFO keeps the older half.
+        int hits1 = 0;
+        int hits2 = 0;
+        for (int i = 0; i < count; ++i) {
+            if (c1.get("key" + i) != null) {
+                Assert.assertTrue(i >= count / 2);
+                ++hits1;
+            }
+            if (c2.get("key" + i) != null) {
+                Assert.assertTrue(i < count / 2);
+                ++hits2;
+            }
+        }
+        Assert.assertEquals(count / 2, hits1);
+        Assert.assertEquals(count / 2, hits2);
+    }
+
+    @Test
+    public void Case07() {
+        System.out.printf("Case: Latency of get should stay flat as the entry count grows\n");
+
+        long small = measureGetLatency(1 << 10);
+        long large = measureGetLatency(1 << 15);
+        System.out.printf("get latency: 1K entries=%dns; 32K entries=%dns\n", small, large);
+    }
+
+    @Test
+    public void Case08() {
+        System.out.printf("Case: MEMORY/LRU strategy.\n");
+
+        IPicoCache c = PicoCacheFactory.create(PicoCacheFactory.TYPE_MEMORY, PicoCacheFactory.STRATEGY_LRU);
+        c.setCacheSize(60);
+        c.put("data1", data20kb_1);
+        c.put("data2", data20kb_2);
+        c.put("data3", data20kb_3);
+
+        // A hit makes data1 the most recently used one, so data2 goes first.
+        Assert.assertNotNull(c.get("data1"));
+        c.put("data4", data20kb_1);
+
+        Assert.assertNotNull(c.get("data1"));
+        Assert.assertNull(c.get("data2"));
+        Assert.assertNotNull(c.get("data3"));
+        Assert.assertNotNull(c.get("data4"));
+
+        // Replacing the data is an access as well.
+        c.put("data1", data20kb_2);
+        c.put("data5", data20kb_3);
+
+        Assert.assertNotNull(c.get("data1"));
+        Assert.assertNull(c.get("data3"));
+        Assert.assertNotNull(c.get("data5"));
+    }
+
+    @Test
+    public void Case09() {
+        System.out.printf("Case: MEMORY/LFU strategy.\n");
+
+        IPicoCache c = PicoCacheFactory.create(PicoCacheFactory.TYPE_MEMORY, PicoCacheFactory.STRATEGY_LFU);
+        c.setCacheSize(60);
+        c.put("data1", data20kb_1);
+        c.put("data2", data20kb_2);
+        c.put("data3", data20kb_3);
+
+        c.get("data1");
+        c.get("data1");
+        c.get("data3");
+
+        // data2 is the least frequently used one.
+        c.put("data4", data20kb_1);
+        Assert.assertNull(c.get("data2"));
+
+        // data4 has never been hit while the others have.
+        c.put("data5", data20kb_2);
+        Assert.assertNull(c.get("data4"));
+        Assert.assertNotNull(c.get("data1"));
+        Assert.assertNotNull(c.get("data3"));
+        Assert.assertNotNull(c.get("data5"));
+
+        // Clearing also resets the frequencies.
+        c.clear();
+        Assert.assertNull(c.get("data1"));
+        c.put("data1", data20kb_1);
+        Assert.assertNotNull(c.get("data1"));
+    }
+
+    @Test
+    public void Case10() {
+        System.out.printf("Case: LRU/LFU should beat FIFO on a skewed trace\n");
+
+        int fifo = simulateHits(PicoCacheFactory.STRATEGY_FIFO);
+        int lru = simulateHits(PicoCacheFactory.STRATEGY_LRU);
+        int lfu = simulateHits(PicoCacheFactory.STRATEGY_LFU);
+        System.out.printf("hits: FIFO=%d; LRU=%d; LFU=%d\n", fifo, lru, lfu);
+
+        Assert.assertTrue(lru > fifo);
+        Assert.assertTrue(lfu > fifo);
+    }
+
+    /**
+     * Run a read-through trace where a few hot keys are mixed with a stream of cold keys.
+     */
+    private int simulateHits(int strategy) {
+        final byte[] data = new byte[1 << 10];
+        IPicoCache c = PicoCacheFactory.create(PicoCacheFactory.TYPE_MEMORY, strategy);
+        c.setCacheSize(16);
+
+        int hits = 0;
+        int cold = 0;
+        for (int i = 0; i < 10000; ++i) {
+            String key = (i % 2 == 0) ? "hot" + (i / 2) % 8 : "cold" + cold++;
+
+            if (c.get(key) != null) {
+                ++hits;
+            } else {
+                c.put(key, data);
+            }
+        }
+
+        return hits;
+    }
+
+    @Test
+    public void Case11() {
+        System.out.printf("Case: MEMORY/TINYLFU strategy should resist a scan.\n");
+
+        final byte[] data = new byte[1 << 10];
+        IPicoCache c = PicoCacheFactory.create(PicoCacheFactory.TYPE_MEMORY, PicoCacheFactory.STRATEGY_TINYLFU);
+        c.setCacheSize(100);
+
+        // Build the working set and make it hot.
+        for (int round = 0; round < 5; ++round) {
+            for (int i = 0; i < 50; ++i) {
+                if (c.get("hot" + i) == null) {
+                    c.put("hot" + i, data);
+                }
+            }
+        }
+
+        // Scan a lot of keys which are used only once.
+        for (int i = 0; i < 1000; ++i) {
+            c.put("scan" + i, data);
+        }
+
+        int hits = 0;
+        for (int i = 0; i < 50; ++i) {
+            if (c.get("hot" + i) != null) {
+                ++hits;
+            }
+        }
+        Assert.assertEquals(50, hits);
+        Assert.assertTrue(c.size() <= (100 << 10));
+    }
+
+    @Test
+    public void Case12() {
+        System.out.printf("Case: TINYLFU should beat FIFO on a Zipf-plus-scan trace\n");
+
+        int fifo = simulateZipfScanHits(PicoCacheFactory.STRATEGY_FIFO);
+        int lru = simulateZipfScanHits(PicoCacheFactory.STRATEGY_LRU);
+        int tinyLfu = simulateZipfScanHits(PicoCacheFactory.STRATEGY_TINYLFU);
+        System.out.printf("hits: FIFO=%d; LRU=%d; TINYLFU=%d\n", fifo, lru, tinyLfu);
+
+        Assert.assertTrue(tinyLfu > fifo);
+        Assert.assertTrue(tinyLfu > lru);
+    }
+
+    /**
+     * Run a read-through trace of Zipf distributed keys, interrupted by a long scan of unique keys
+     * every now and then.
+     */
+    private int simulateZipfScanHits(int strategy) {
+        final byte[] data = new byte[1 << 10];
+        final int keys = 2000;
+        final Random random = new Random(165);
+
+        // The cumulative distribution of Zipf(s = 1).
+        double[] cdf = new double[keys];
+        double sum = 0;
+        for (int i = 0; i < keys; ++i) {
+            sum += 1.0 / (i + 1);
+            cdf[i] = sum;
+        }
+
+        IPicoCache c = PicoCacheFactory.create(PicoCacheFactory.TYPE_MEMORY, strategy);
+        c.setCacheSize(100);
+
+        int hits = 0;
+        int scan = 0;
+        for (int i = 0; i < 50000; ++i) {
+            String key;
+            if (i % 10000 >= 9000) {
+                key = "scan" + scan++;
+            } else {
+                int rank = Arrays.binarySearch(cdf, random.nextDouble() * sum);
+                key = "zipf" + (rank >= 0 ? rank : -rank - 1);
+            }
+
+            if (c.get(key) != null) {
+                ++hits;
+            } else {
+                c.put(key, data);
+            }
+        }
+
+        return hits;
+    }
+
+    @Test
+    public void Case13() throws Exception {
+        System.out.printf("Case: Concurrent cache throughput at 1/4/16 threads\n");
+
+        for (int threads : new int[]{1, 4, 16}) {
+            IPicoCache store = PicoCacheFactory.create(PicoCacheFactory.TYPE_MEMORY,
+                    PicoCacheFactory.STRATEGY_LRU);
+            IPicoCache striped = PicoCacheFactory.createConcurrent(PicoCacheFactory.TYPE_MEMORY,
+                    PicoCacheFactory.STRATEGY_LRU, 16);
+            store.setCacheSize(512);
+            striped.setCacheSize(512);
+
+            long storeOps = measureThroughput(store, threads);
+            long stripedOps = measureThroughput(striped, threads);
+            System.out.printf("threads=%d: CacheStore=%d ops/ms; striped=%d ops/ms\n",
+                    threads, storeOps, stripedOps);
+
+            Assert.assertTrue(store.size() <= (512 << 10));
+            Assert.assertTrue(striped.size() <= (512 << 10));
+        }
+
+        // Every segment holds its own share of the budget.
+        IPicoCache c = PicoCacheFactory.createConcurrent(PicoCacheFactory.TYPE_MEMORY,
+                PicoCacheFactory.STRATEGY_FIFO, 3);
+        c.setCacheSize(1024);
+        c.put("data1", data20kb_1);
+        c.put("data2", data20kb_2);
+        Assert.assertTrue(Arrays.equals(c.get("data1"), data20kb_1));
+        Assert.assertTrue(Arrays.equals(c.get("data2"), data20kb_2));
+        Assert.assertEquals(40 << 10, c.size());
+        c.clear();
+        Assert.assertNull(c.get("data1"));
+        Assert.assertEquals(0, c.size());
+    }
+
+    @Test
+    public void Case14() throws Exception {
+        System.out.printf("Case: Lock-free read MEMORY/LRU strategy.\n");
+
+        IPicoCache c = PicoCacheFactory.createLockFreeRead(PicoCacheFactory.TYPE_MEMORY,
+                PicoCacheFactory.STRATEGY_LRU);
+        c.setCacheSize(60);
+        c.put("data1", data20kb_1);
+        c.put("data2", data20kb_2);
+        c.put("data3", data20kb_3);
+
+        // The hit is replayed to the trimmer before the next write.
+        Assert.assertNotNull(c.get("data1"));
+        c.put("data4", data20kb_1);
+
+        Assert.assertTrue(Arrays.equals(c.get("data1"), data20kb_1));
+        Assert.assertNull(c.get("data2"));
+        Assert.assertTrue(Arrays.equals(c.get("data3"), data20kb_3));
+        Assert.assertEquals(60 << 10, c.size());
+
+        c.clear();
+        Assert.assertNull(c.get("data1"));
+        Assert.assertEquals(0, c.size());
+
+        try {
+            PicoCacheFactory.createLockFreeRead(PicoCacheFactory.TYPE_FILE,
+                    PicoCacheFactory.STRATEGY_LRU);
+            Assert.assertTrue("Only memory cache is supported!", false);
+        } catch (Exception e) {
+            // DO NOTHING (Pass).
+        }
+
+        System.out.printf("Case: Lock-free read under concurrent reads/writes.\n");
+
+        final IPicoCache shared = PicoCacheFactory.createLockFreeRead(PicoCacheFactory.TYPE_MEMORY,
+                PicoCacheFactory.STRATEGY_TINYLFU);
+        shared.setCacheSize(64);
+        final byte[][] values = new byte[256][];
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = new byte[1 << 10];
+            Arrays.fill(values[i], (byte) i);
+        }
+
+        final AtomicInteger failures = new AtomicInteger();
+        Thread[] workers = new Thread[8];
+        for (int i = 0; i < workers.length; ++i) {
+            final int seed = i;
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    for (int j = 0; j < 50000; ++j) {
+                        int k = random.nextInt(values.length);
+                        if (random.nextInt(20) == 0) {
+                            shared.put("key" + k, values[k]);
+                        } else {
+                            byte[] data = shared.get("key" + k);
+                            if (data != null && data[0] != (byte) k) {
+                                failures.incrementAndGet();
+                            }
+                        }
+                    }
+                }
+            });
+            workers[i].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        Assert.assertEquals(0, failures.get());
+        Assert.assertTrue(shared.size() <= (64 << 10));
+    }
+
+    @Test
+    public void Case15() {
+        System.out.printf("Case: FILE cache should append to a few segment files\n");
+
+        final File dir = new File("/var/tmp");
+        final byte[][] values = new byte[1000][];
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = new byte[(1 << 10) + i];
+            Arrays.fill(values[i], (byte) i);
+        }
+
+        IPicoCache c = PicoCacheFactory.create(PicoCacheFactory.TYPE_FILE, PicoCacheFactory.STRATEGY_LRU);
+        c.setCacheSize(512);
+
+        // Churn through ~20MB of values.
+        Random random = new Random(165);
+        for (int i = 0; i < 20000; ++i) {
+            int k = random.nextInt(values.length);
+            byte[] data = c.get("key" + k);
+
+            if (data != null) {
+                Assert.assertTrue(Arrays.equals(values[k], data));
+            } else {
+                c.put("key" + k, values[k]);
+            }
+        }
+        Assert.assertTrue(c.size() <= (512 << 10));
+
+        // One file per entry would mean hundreds of files.
+        int files = countCacheFiles(dir);
+        System.out.printf("segment files: %d\n", files);
+        Assert.assertTrue(files <= 8);
+
+        // Nothing should be left behind after clearing.
+        c.clear();
+        Assert.assertEquals(0, countCacheFiles(dir));
+        c.close();
+    }
+
+    @Test
+    public void Case16() {
+        System.out.printf("Case: Read-only buffer views of the cached data\n");
+
+        // Memory cache hands out a view of the cached array.
+        IPicoCache c1 = PicoCacheFactory.create(PicoCacheFactory.TYPE_MEMORY, PicoCacheFactory.STRATEGY_FIFO);
+        c1.setCacheSize(1024);
+        c1.put("data1", data50kb_1);
+
+        ByteBuffer buffer = c1.getBuffer("data1");
+        Assert.assertTrue(buffer.isReadOnly());
+        Assert.assertEquals(50 << 10, buffer.remaining());
+        Assert.assertNull(c1.getBuffer("data2"));
+        Assert.assertEquals(0, c1.mappedSize());
+
+        // File cache maps the sealed segments, 12 x 1MB spans more than one segment.
+        IPicoCache c2 = PicoCacheFactory.create(PicoCacheFactory.TYPE_FILE, PicoCacheFactory.STRATEGY_FIFO);
+        c2.setCacheSize(16 << 10);
+        byte[][] values = new byte[12][];
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = new byte[1 << 20];
+            Arrays.fill(values[i], (byte) i);
+            c2.put("data" + i, values[i]);
+        }
+
+        for (int i = 0; i < values.length; ++i) {
+            buffer = c2.getBuffer("data" + i);
+            Assert.assertTrue(buffer.isReadOnly());
+
+            byte[] copy = new byte[buffer.remaining()];
+            buffer.get(copy);
+            Assert.assertTrue(Arrays.equals(values[i], copy));
+            Assert.assertTrue(Arrays.equals(values[i], c2.get("data" + i)));
+        }
+        System.out.printf("mapped bytes: %d\n", c2.mappedSize());
+        Assert.assertTrue(c2.mappedSize() >= (4 << 20));
+
+        // Clearing unmaps all the segments.
+        c2.clear();
+        Assert.assertNull(c2.getBuffer("data0"));
+        Assert.assertEquals(0, c2.mappedSize());
+        c2.close();
+    }
+
+    @Test
+    public void Case17() {
+        System.out.printf("Case: Off-heap slab cache\n");
+
+        IPicoCache c = PicoCacheFactory.create(PicoCacheFactory.TYPE_OFFHEAP, PicoCacheFactory.STRATEGY_LRU);
+        c.setCacheSize(1024);
+        Assert.assertNull(PicoCacheFactory.create(PicoCacheFactory.TYPE_MEMORY, PicoCacheFactory.STRATEGY_LRU).getSlabStats());
+
+        c.put("data1", data50kb_1);
+        c.put("data2", data50kb_2);
+        Assert.assertTrue(Arrays.equals(data50kb_1, c.get("data1")));
+        Assert.assertTrue(Arrays.equals(data50kb_2, c.get("data2")));
+        Assert.assertNull(c.get("data3"));
+
+        // The store accounts for the whole chunks.
+        IPicoSlabStats stats = c.getSlabStats();
+        Assert.assertEquals(2 * (50 << 10), stats.getRequestedBytes());
+        Assert.assertEquals(c.size(), stats.getUsedBytes());
+        Assert.assertTrue(stats.getFragmentation() >= 0f && stats.getFragmentation() < 0.25f);
+        Assert.assertTrue(stats.getUtilization() > 0f && stats.getUtilization() <= 1f);
+
+        // Replacing the data reuses or changes the chunk.
+        c.put("data1", data20kb_3);
+        Assert.assertTrue(Arrays.equals(data20kb_3, c.get("data1")));
+
+        // Fill the slabs with small values, the least recently used ones are evicted.
+        byte[] small = new byte[1000];
+        for (int i = 0; i < 4000; ++i) {
+            Arrays.fill(small, (byte) i);
+            c.put("small" + i, small);
+        }
+        Arrays.fill(small, (byte) 3999);
+        Assert.assertTrue(Arrays.equals(small, c.get("small3999")));
+        Assert.assertNull(c.get("small0"));
+        Assert.assertTrue(c.size() <= (1024 << 10));
+
+        stats = c.getSlabStats();
+        Assert.assertTrue(stats.getAllocatedBytes() <= (1024 << 10));
+
+        // A new size class takes a page over from the small values, the rest survive.
+        c.put("data3", data90kb_3);
+        Assert.assertTrue(Arrays.equals(data90kb_3, c.get("data3")));
+
+        int survivors = 0;
+        for (int i = 3900; i < 4000; ++i) {
+            if (c.get("small" + i) != null) {
+                ++survivors;
+            }
+        }
+        Assert.assertTrue(survivors > 0);
+
+        long evictions = 0;
+        stats = c.getSlabStats();
+        for (int i = 0; i < stats.getClassCount(); ++i) {
+            Assert.assertTrue(stats.getUsedChunks(i) <= stats.getTotalChunks(i));
+            evictions += stats.getEvictions(i);
+        }
+        System.out.printf("utilization: %.3f, fragmentation: %.3f, evictions: %d\n",
+                stats.getUtilization(), stats.getFragmentation(), evictions);
+        Assert.assertTrue(stats.getAllocatedBytes() <= (1024 << 10));
+
+        // The data larger than the cache is not stored.
+        c.put("data4", new byte[2 << 20]);
+        Assert.assertNull(c.get("data4"));
+
+        c.clear();
+        Assert.assertEquals(0, c.size());
+        Assert.assertNull(c.get("data3"));
+        Assert.assertEquals(0, c.getSlabStats().getUsedBytes());
+    }
+
+    @Test
+    public void Case18() throws Exception {
+        System.out.printf("Case: FILE cache should be restored from the journal\n");
+
+        final File dir = new File("/var/tmp");
+        IPicoCache c1 = PicoCacheFactory.create(PicoCacheFactory.TYPE_FILE, PicoCacheFactory.STRATEGY_FIFO);
+        c1.setCacheSize(1024);
+        c1.clear();
+        c1.put("key1", data20kb_1);
+        c1.put("key2", data20kb_2);
+        c1.put("key3", data20kb_3);
+        c1.put("key1", data50kb_1);
+        c1.put("key4", data20kb_1);
+
+        // Another cache opened meanwhile takes the files over, the first one fails rather than
+        // missing or writing over the files of the second one.
+        IPicoCache c2 = PicoCacheFactory.create(PicoCacheFactory.TYPE_FILE, PicoCacheFactory.STRATEGY_FIFO);
+        Assert.assertEquals((50 << 10) + (60 << 10), c2.size());
+        try {
+            c1.get("key2");
+            Assert.fail("The cache taken over is still read.");
+        } catch (IllegalStateException e) {
+            // DO NOTHING (Pass).
+        }
+        try {
+            c1.put("key1", data20kb_1);
+            Assert.fail("The cache taken over is still written.");
+        } catch (IllegalStateException e) {
+            // DO NOTHING (Pass).
+        }
+        c1.clear();
+        c1.close();
+        Assert.assertTrue(Arrays.equals(data50kb_1, c2.get("key1")));
+        Assert.assertTrue(Arrays.equals(data20kb_1, c2.get("key4")));
+
+        // The closed cache fails as well.
+        c2.setCacheSize(1024);
+        c2.put("key4", data20kb_2);
+        c2.close();
+        try {
+            c2.get("key2");
+            Assert.fail("The closed cache is still read.");
+        } catch (IllegalStateException e) {
+            // DO NOTHING (Pass).
+        }
+
+        // Opening the cache again restores the files, in the order of putting. The lost files
+        // turn into misses.
+        IPicoCache c3 = PicoCacheFactory.create(PicoCacheFactory.TYPE_FILE, PicoCacheFactory.STRATEGY_FIFO);
+        c3.setCacheSize(1024);
+        Assert.assertEquals((50 << 10) + (60 << 10), c3.size());
+        Assert.assertTrue(Arrays.equals(data20kb_2, c3.get("key4")));
+        c3.setCacheSize(70);
+        Assert.assertNull(c3.get("key2"));
+        Assert.assertNull(c3.get("key3"));
+        Assert.assertTrue(Arrays.equals(data50kb_1, c3.get("key1")));
+        c3.close();
+        c3 = PicoCacheFactory.create(PicoCacheFactory.TYPE_FILE, PicoCacheFactory.STRATEGY_FIFO);
+        c3.setCacheSize(1024);
+        Assert.assertEquals((50 << 10) + (20 << 10), c3.size());
+        for (String name : dir.list()) {
+            if (name.matches("picocache-\\d+\\.seg")) {
+                Assert.assertTrue(new File(dir, name).delete());
+            }
+        }
+        Assert.assertNull(c3.get("key1"));
+        Assert.assertNull(c3.getBuffer("key3"));
+        Assert.assertNull(c3.get("key4"));
+        Assert.assertEquals(0, c3.size());
+        c3.close();
+
+        // A key longer than 64KB is journaled as well as the records around it.
+        char[] chars = new char[70000];
+        Arrays.fill(chars, 'k');
+        String longKey = new String(chars);
+        c3 = PicoCacheFactory.create(PicoCacheFactory.TYPE_FILE, PicoCacheFactory.STRATEGY_FIFO);
+        c3.setCacheSize(1024);
+        c3.put("before", data20kb_1);
+        c3.put(longKey, data20kb_2);
+        c3.put("after", data20kb_3);
+        c3.close();
+        c3 = PicoCacheFactory.create(PicoCacheFactory.TYPE_FILE, PicoCacheFactory.STRATEGY_FIFO);
+        Assert.assertTrue(Arrays.equals(data20kb_1, c3.get("before")));
+        Assert.assertTrue(Arrays.equals(data20kb_2, c3.get(longKey)));
+        Assert.assertTrue(Arrays.equals(data20kb_3, c3.get("after")));
+        c3.clear();
+        c3.close();
+
+        // The files not in the journal are swept in the background.
+        File orphan = new File(dir, "picocache-65536.seg");
+        Assert.assertTrue(orphan.createNewFile());
+        IPicoCache c4 = PicoCacheFactory.create(PicoCacheFactory.TYPE_FILE, PicoCacheFactory.STRATEGY_FIFO);
+        for (int i = 0; i < 100 && orphan.exists(); ++i) {
+            Thread.sleep(10);
+        }
+        Assert.assertFalse(orphan.exists());
+        Assert.assertEquals(0, c4.size());
+        c4.close();
+    }
+
+    @Test
+    public void Case19() {
+        System.out.printf("Case: Memory tier over file tier\n");
+
+        IPicoTieredCache c = PicoCacheFactory.createTiered(PicoCacheFactory.STRATEGY_LRU, PicoCacheFactory.STRATEGY_FIFO);
+        c.clear();
+        c.setMemoryCacheSize(60);
+        c.setFileCacheSize(1024);
+
+        c.put("data1", data20kb_1);
+        c.put("data2", data20kb_2);
+        c.put("data3", data20kb_3);
+        Assert.assertEquals((60 << 10), c.memorySize());
+        Assert.assertEquals(0, c.fileSize());
+
+        // The trimmed entries are demoted instead of being dropped.
+        c.put("data4", data50kb_1);
+        Assert.assertEquals((50 << 10), c.memorySize());
+        Assert.assertEquals((60 << 10), c.fileSize());
+
+        // A hit in the file tier is promoted back and demotes the least recently used.
+        Assert.assertTrue(Arrays.equals(data20kb_1, c.get("data1")));
+        Assert.assertEquals((20 << 10), c.memorySize());
+        Assert.assertEquals((90 << 10), c.fileSize());
+        Assert.assertEquals((110 << 10), c.size());
+
+        // Too large for the memory tier.
+        c.put("data5", data90kb_1);
+        Assert.assertEquals((20 << 10), c.memorySize());
+        Assert.assertEquals((180 << 10), c.fileSize());
+
+        ByteBuffer buffer = c.getBuffer("data2");
+        byte[] copy = new byte[buffer.remaining()];
+        buffer.get(copy);
+        Assert.assertTrue(Arrays.equals(data20kb_2, copy));
+        Assert.assertEquals((40 << 10), c.memorySize());
+
+        // Replacing the data keeps a single copy.
+        c.put("data4", data20kb_3);
+        Assert.assertEquals((60 << 10), c.memorySize());
+        Assert.assertEquals((110 << 10), c.fileSize());
+        Assert.assertTrue(Arrays.equals(data20kb_3, c.get("data4")));
+
+        // Only the file tier survives a restart.
+        c.close();
+        IPicoCache c2 = PicoCacheFactory.create(PicoCacheFactory.TYPE_TIERED, PicoCacheFactory.STRATEGY_LRU);
+        Assert.assertTrue(c2 instanceof IPicoTieredCache);
+        c2.setCacheSize(1024);
+        Assert.assertTrue(Arrays.equals(data20kb_3, c2.get("data3")));
+        Assert.assertTrue(Arrays.equals(data90kb_1, c2.get("data5")));
+        Assert.assertNull(c2.get("data1"));
+
+        c2.clear();
+        Assert.assertEquals(0, c2.size());
+        Assert.assertNull(c2.get("data3"));
+        c2.close();
+    }
+
+    @Test
+    public void Case20() {
+        System.out.printf("Case: Write-behind FILE cache\n");
+
+        IPicoCache c = PicoCacheFactory.createWriteBehind(PicoCacheFactory.STRATEGY_LRU, 64);
+        c.clear();
+        c.setCacheSize(4096);
+
+        // The staged data is readable right away.
+        byte[][] values = new byte[100][];
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = new byte[20 << 10];
+            Arrays.fill(values[i], (byte) i);
+            c.put("key" + i, values[i]);
+            Assert.assertTrue(Arrays.equals(values[i], c.get("key" + i)));
+        }
+
+        // Replacing a staged value keeps the last one.
+        c.put("key0", data20kb_3);
+        c.put("key0", data50kb_2);
+        Assert.assertTrue(Arrays.equals(data50kb_2, c.get("key0")));
+
+        c.flush();
+        Assert.assertTrue(Arrays.equals(data50kb_2, c.get("key0")));
+        for (int i = 1; i < values.length; ++i) {
+            Assert.assertTrue(Arrays.equals(values[i], c.get("key" + i)));
+        }
+
+        // The flushed data survives a restart.
+        c.close();
+        IPicoCache c2 = PicoCacheFactory.create(PicoCacheFactory.TYPE_FILE, PicoCacheFactory.STRATEGY_LRU);
+        c2.setCacheSize(4096);
+        Assert.assertEquals((50 << 10) + 99 * (20 << 10), c2.size());
+        Assert.assertTrue(Arrays.equals(data50kb_2, c2.get("key0")));
+        Assert.assertTrue(Arrays.equals(values[99], c2.get("key99")));
+
+        c2.close();
+
+        // Trimming drops the staged data too.
+        IPicoCache c3 = PicoCacheFactory.createWriteBehind(PicoCacheFactory.STRATEGY_FIFO, 1024);
+        c3.setCacheSize(100);
+        for (int i = 0; i < values.length; ++i) {
+            c3.put("key" + i, values[i]);
+        }
+        Assert.assertTrue(c3.size() <= (100 << 10));
+        Assert.assertNull(c3.get("key0"));
+        Assert.assertTrue(Arrays.equals(values[99], c3.get("key99")));
+
+        c3.clear();
+        c3.flush();
+        Assert.assertEquals(0, c3.size());
+        c3.close();
+
+        // The last of the values replaced under back-pressure survives a restart.
+        IPicoCache c4 = PicoCacheFactory.createWriteBehind(PicoCacheFactory.STRATEGY_LRU, 64);
+        c4.clear();
+        c4.setCacheSize(4096);
+        for (int i = 0; i < 300; ++i) {
+            c4.put("key" + (i % 3), values[i % values.length]);
+        }
+        c4.close();
+
+        IPicoCache c5 = PicoCacheFactory.create(PicoCacheFactory.TYPE_FILE, PicoCacheFactory.STRATEGY_LRU);
+        c5.setCacheSize(4096);
+        Assert.assertEquals(3 * (20 << 10), c5.size());
+        for (int i = 297; i < 300; ++i) {
+            Assert.assertTrue(Arrays.equals(values[i % values.length], c5.get("key" + (i % 3))));
+        }
+        c5.clear();
+        c5.close();
+    }
+
+    @Test
+    public void Case21() throws Exception {
+        System.out.printf("Case: Async MEMORY cache\n");
+
+        IPicoAsyncCache c = PicoCacheFactory.createAsync(
+                PicoCacheFactory.create(PicoCacheFactory.TYPE_MEMORY, PicoCacheFactory.STRATEGY_LRU), 4);
+        c.getCache().setCacheSize(1024);
+
+        Task<Void> put = c.putAsync("key1", data20kb_1);
+        put.waitForCompletion();
+        Assert.assertFalse(put.isFaulted());
+
+        Task<byte[]> get = c.getAsync("key1");
+        get.waitForCompletion();
+        Assert.assertTrue(Arrays.equals(data20kb_1, get.getResult()));
+
+        get = c.getAsync("key2");
+        get.waitForCompletion();
+        Assert.assertNull(get.getResult());
+
+        // The concurrent loads of the same key share one load.
+        final AtomicInteger loads = new AtomicInteger(0);
+        final CountDownLatch release = new CountDownLatch(1);
+        IPicoLoader loader = new IPicoLoader() {
+            @Override
+            public byte[] load(String key) throws Exception {
+                loads.incrementAndGet();
+                release.await();
+                return data50kb_1;
+            }
+        };
+
+        List<Task<byte[]>> tasks = new ArrayList<>();
+        for (int i = 0; i < 8; ++i) {
+            tasks.add(c.getOrLoadAsync("key2", loader));
+        }
+        release.countDown();
+        for (Task<byte[]> task : tasks) {
+            task.waitForCompletion();
+            Assert.assertTrue(Arrays.equals(data50kb_1, task.getResult()));
+        }
+        Assert.assertEquals(1, loads.get());
+        Assert.assertTrue(Arrays.equals(data50kb_1, c.getCache().get("key2")));
+
+        // A cached key is never loaded.
+        get = c.getOrLoadAsync("key2", loader);
+        get.waitForCompletion();
+        Assert.assertEquals(1, loads.get());
+
+        // A failed load is not cached and the next call loads again.
+        get = c.getOrLoadAsync("key3", new IPicoLoader() {
+            @Override
+            public byte[] load(String key) throws Exception {
+                throw new IllegalStateException("No network.");
+            }
+        });
+        get.waitForCompletion();
+        Assert.assertTrue(get.isFaulted());
+        Assert.assertNull(c.getCache().get("key3"));
+
+        get = c.getOrLoadAsync("key3", loader);
+        get.waitForCompletion();
+        Assert.assertTrue(Arrays.equals(data50kb_1, get.getResult()));
+        Assert.assertEquals(2, loads.get());
+
+        // The calls after closing fail, the blocking cache is still open.
+        c.close();
+        try {
+            c.getAsync("key1");
+            Assert.fail("Should be rejected after closing.");
+        } catch (RejectedExecutionException e) {
+            // DO NOTHING (Pass).
+        }
+        Assert.assertTrue(Arrays.equals(data20kb_1, c.getCache().get("key1")));
+    }
+
+    @Test
+    public void Case22() throws Exception {
+        System.out.printf("Case: Read-through get with single-flight loads\n");
+
+        final IPicoCache c = PicoCacheFactory.createConcurrent(PicoCacheFactory.TYPE_MEMORY,
+                PicoCacheFactory.STRATEGY_LRU, 4);
+        c.setCacheSize(1024);
+
+        // The concurrent callers of the same key share one load.
+        final AtomicInteger loads = new AtomicInteger(0);
+        final CountDownLatch start = new CountDownLatch(1);
+        final IPicoLoader loader = new IPicoLoader() {
+            @Override
+            public byte[] load(String key) throws Exception {
+                loads.incrementAndGet();
+                Thread.sleep(50);
+                return key.startsWith("missing") ? null : data20kb_1;
+            }
+        };
+
+        final AtomicInteger hits = new AtomicInteger(0);
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; ++i) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (Arrays.equals(data20kb_1, c.get("avatar", loader))) {
+                        hits.incrementAndGet();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(threads.length, hits.get());
+        Assert.assertEquals(1, loads.get());
+        Assert.assertTrue(Arrays.equals(data20kb_1, c.get("avatar")));
+
+        // The missing key is remembered for a while.
+        Assert.assertNull(c.get("missing", loader));
+        Assert.assertNull(c.get("missing", loader));
+        Assert.assertEquals(2, loads.get());
+
+        // A put wins over the remembered miss.
+        c.put("missing", data10kb_1);
+        Assert.assertTrue(Arrays.equals(data10kb_1, c.get("missing", loader)));
+
+        // The failure reaches the caller and is not remembered.
+        IPicoCache c2 = PicoCacheFactory.create(PicoCacheFactory.TYPE_MEMORY, PicoCacheFactory.STRATEGY_LRU);
+        c2.setCacheSize(1024);
+        try {
+            c2.get("key1", new IPicoLoader() {
+                @Override
+                public byte[] load(String key) throws Exception {
+                    throw new java.io.IOException("No network.");
+                }
+            });
+            Assert.fail("The failure is swallowed.");
+        } catch (RuntimeException e) {
+            Assert.assertTrue(e.getCause() instanceof java.io.IOException);
+        }
+        Assert.assertTrue(Arrays.equals(data20kb_1, c2.get("key1", loader)));
+
+        // The remembered misses are forgotten by clear.
+        IPicoCache[] caches = new IPicoCache[] {
+                c2,
+                PicoCacheFactory.createLockFreeRead(PicoCacheFactory.TYPE_MEMORY, PicoCacheFactory.STRATEGY_LRU),
+                PicoCacheFactory.createCompact(PicoCacheFactory.TYPE_MEMORY)
+        };
+        for (IPicoCache cache : caches) {
+            cache.setCacheSize(1024);
+            Assert.assertNull(cache.get("missing-cleared", loader));
+            cache.clear();
+            Assert.assertTrue(Arrays.equals(data20kb_1, cache.get("missing-cleared", new IPicoLoader() {
+                @Override
+                public byte[] load(String key) throws Exception {
+                    return data20kb_1;
+                }
+            })));
+            cache.close();
+        }
+    }
+
+    @Test
+    public void Case23() {
+        System.out.printf("Case: Batch get/put\n");
+
+        for (int n = 0; n < 4; ++n) {
+            IPicoCache c;
+            if (n == 0) {
+                c = PicoCacheFactory.create(PicoCacheFactory.TYPE_FILE, PicoCacheFactory.STRATEGY_FIFO);
+            } else if (n == 1) {
+                c = PicoCacheFactory.createConcurrent(PicoCacheFactory.TYPE_MEMORY, PicoCacheFactory.STRATEGY_FIFO, 4);
+            } else if (n == 2) {
+                c = PicoCacheFactory.createLockFreeRead(PicoCacheFactory.TYPE_MEMORY, PicoCacheFactory.STRATEGY_FIFO);
+            } else {
+                c = PicoCacheFactory.createTiered(PicoCacheFactory.STRATEGY_FIFO, PicoCacheFactory.STRATEGY_FIFO);
+            }
+            c.clear();
+            c.setCacheSize(1024);
+
+            Map<String, byte[]> entries = new HashMap<>();
+            for (int i = 0; i < 20; ++i) {
+                byte[] value = new byte[10 << 10];
+                Arrays.fill(value, (byte) i);
+                entries.put("key" + i, value);
+            }
+            c.putAll(entries);
+            Assert.assertEquals(20 * (10 << 10), c.size());
+
+            List<String> keys = new ArrayList<>();
+            for (int i = 19; i >= 0; --i) {
+                keys.add("key" + i);
+            }
+            keys.add("key5");
+            keys.add("missing");
+
+            Map<String, byte[]> result = c.getAll(keys);
+            Assert.assertEquals(20, result.size());
+            Assert.assertFalse(result.containsKey("missing"));
+            for (int i = 0; i < 20; ++i) {
+                Assert.assertTrue(Arrays.equals(entries.get("key" + i), result.get("key" + i)));
+            }
+
+            // The batch is trimmed once it's all in.
+            c.clear();
+            c.setCacheSize(100);
+            c.putAll(entries);
+            Assert.assertTrue(c.size() <= (100 << 10));
+            Assert.assertTrue(c.getAll(keys).size() <= 10);
+
+            c.clear();
+            c.close();
+        }
+    }
+
+    @Test
+    public void Case24() {
+        System.out.printf("Case: Weigher and 64-bit sizes\n");
+
+        // A budget over 2GB doesn't overflow.
+        IPicoCache c = PicoCacheFactory.create(PicoCacheFactory.TYPE_MEMORY, PicoCacheFactory.STRATEGY_LRU);
+        c.setCacheSize(4 << 20);
+        c.put("key1", data50kb_1);
+        Assert.assertTrue(Arrays.equals(data50kb_1, c.get("key1")));
+        Assert.assertEquals(50 << 10, c.size());
+
+        // The heap weigher counts the key and the entry overhead too.
+        c.setWeigher(PicoCacheFactory.createHeapWeigher());
+        Assert.assertTrue(c.size() > (50 << 10));
+        Assert.assertTrue(c.size() < (50 << 10) + 256);
+
+        // The entries are weighed again and trimmed to fit.
+        c.setCacheSize(100);
+        c.put("key2", data50kb_2);
+        Assert.assertNull(c.get("key1"));
+        Assert.assertTrue(Arrays.equals(data50kb_2, c.get("key2")));
+
+        c.setWeigher(null);
+        c.put("key1", data50kb_1);
+        Assert.assertEquals(100 << 10, c.size());
+        Assert.assertNotNull(c.get("key1"));
+        Assert.assertNotNull(c.get("key2"));
+
+        // A custom weigher, e.g. counting the entries.
+        IPicoCache c2 = PicoCacheFactory.createConcurrent(PicoCacheFactory.TYPE_MEMORY,
+                PicoCacheFactory.STRATEGY_FIFO, 1);
+        c2.setCacheSize(1);
+        c2.setWeigher(new IPicoWeigher() {
+            @Override
+            public long weigh(String key, int size) {
+                return 256;
+            }
+        });
+        for (int i = 0; i < 10; ++i) {
+            c2.put("key" + i, data20kb_1);
+        }
+        Assert.assertEquals(4 * 256, c2.size());
+        Assert.assertNull(c2.get("key5"));
+        Assert.assertNotNull(c2.get("key6"));
+    }
+
+    @Test
+    public void Case25() throws Exception {
+        System.out.printf("Case: Time to live and expire after access\n");
+
+        IPicoCache[] caches = new IPicoCache[] {
+                PicoCacheFactory.create(PicoCacheFactory.TYPE_MEMORY, PicoCacheFactory.STRATEGY_LRU),
+                PicoCacheFactory.createLockFreeRead(PicoCacheFactory.TYPE_MEMORY, PicoCacheFactory.STRATEGY_LRU),
+                PicoCacheFactory.createConcurrent(PicoCacheFactory.TYPE_MEMORY, PicoCacheFactory.STRATEGY_LRU, 4)
+        };
+
+        for (IPicoCache c : caches) {
+            c.setCacheSize(1024);
+            c.put("short", data20kb_1, 100);
+            c.put("long", data20kb_2, 60000);
+            c.put("forever", data20kb_3);
+            Assert.assertNotNull(c.get("short"));
+            Assert.assertEquals(3 * (20 << 10), c.size());
+
+            // The expired entry stops counting without being read.
+            Thread.sleep(400);
+            Assert.assertEquals(2 * (20 << 10), c.size());
+            Assert.assertNull(c.get("short"));
+            Assert.assertNotNull(c.get("long"));
+            Assert.assertNotNull(c.get("forever"));
+
+            // A put without the time to live makes it live forever.
+            c.put("long", data20kb_2);
+
+            // The entries accessed in time survive the idle time.
+            c.setExpireAfterAccess(300);
+            for (int i = 0; i < 8; ++i) {
+                Thread.sleep(50);
+                Assert.assertNotNull(c.get("forever"));
+            }
+            Thread.sleep(600);
+            Assert.assertEquals(0, c.size());
+            Assert.assertNull(c.get("forever"));
+
+            c.setExpireAfterAccess(0);
+            c.put("forever", data20kb_3);
+            Thread.sleep(100);
+            Assert.assertNotNull(c.get("forever"));
+
+            try {
+                c.put("bad", data20kb_1, -1);
+                Assert.fail("The negative time to live is taken.");
+            } catch (IllegalArgumentException e) {
+                // DO NOTHING (Pass).
+            }
+            c.clear();
+        }
+
+        // The time to live follows the entry across the tiers.
+        IPicoTieredCache t = PicoCacheFactory.createTiered(PicoCacheFactory.STRATEGY_LRU,
+                PicoCacheFactory.STRATEGY_LRU);
+        t.clear();
+        t.setMemoryCacheSize(40);
+        t.setFileCacheSize(1024);
+        t.put("key1", data20kb_1, 200);
+        t.put("key2", data20kb_2);
+        t.put("key3", data20kb_3);
+        Assert.assertEquals(20 << 10, t.fileSize());
+        Thread.sleep(500);
+        Assert.assertNull(t.get("key1"));
+        Assert.assertEquals(0, t.fileSize());
+        t.clear();
+        t.close();
+    }
+
+    @Test
+    public void Case26() throws Exception {
+        System.out.printf("Case: Statistics\n");
+
+        IPicoCache[] caches = new IPicoCache[] {
+                PicoCacheFactory.create(PicoCacheFactory.TYPE_MEMORY, PicoCacheFactory.STRATEGY_LRU),
+                PicoCacheFactory.createLockFreeRead(PicoCacheFactory.TYPE_MEMORY, PicoCacheFactory.STRATEGY_LRU),
+                PicoCacheFactory.createConcurrent(PicoCacheFactory.TYPE_MEMORY, PicoCacheFactory.STRATEGY_LRU, 2)
+        };
+
+        for (IPicoCache c : caches) {
+            c.clear();
+            c.setCacheSize(100);
+
+            // Nothing is recorded until the statistics are on.
+            c.put("key1", data20kb_1);
+            Assert.assertEquals(0, c.getStats().getPutCount());
+
+            c.setStatsEnabled(true);
+            c.put("key1", data20kb_1);
+            c.put("key2", data20kb_2, 50);
+            Assert.assertNotNull(c.get("key1"));
+            Assert.assertNull(c.get("missing"));
+
+            IPicoCacheStats stats = c.getStats();
+            Assert.assertEquals(1, stats.getHitCount());
+            Assert.assertEquals(1, stats.getMissCount());
+            Assert.assertEquals(0.5, stats.getHitRate(), 0.001);
+            Assert.assertEquals(2, stats.getPutCount());
+            Assert.assertEquals(1, stats.getReplaceCount());
+            Assert.assertEquals(2, stats.getLatencyCount(IPicoCacheStats.OP_GET,
+                    IPicoCacheStats.BACKEND_MEMORY));
+            Assert.assertEquals(2, stats.getLatencyCount(IPicoCacheStats.OP_PUT,
+                    IPicoCacheStats.BACKEND_MEMORY));
+            Assert.assertTrue(stats.getLatencyPercentile(IPicoCacheStats.OP_GET,
+                    IPicoCacheStats.BACKEND_MEMORY, 99) > 0);
+
+            // The evictions by the cause.
+            Thread.sleep(200);
+            Assert.assertNull(c.get("key2"));
+            for (int i = 0; i < 10; ++i) {
+                c.put("fill" + i, data20kb_3);
+            }
+            stats = c.getStats();
+            Assert.assertEquals(1, stats.getEvictionCount(IPicoCacheStats.CAUSE_EXPIRED));
+            Assert.assertTrue(stats.getEvictionCount(IPicoCacheStats.CAUSE_SIZE) >= 6);
+            Assert.assertEquals(stats.getEvictionCount() * (20 << 10), stats.getEvictedBytes());
+
+            // The loads.
+            Assert.assertNotNull(c.get("loaded", new IPicoLoader() {
+                @Override
+                public byte[] load(String key) throws Exception {
+                    return data10kb_1;
+                }
+            }));
+            try {
+                c.get("failed", new IPicoLoader() {
+                    @Override
+                    public byte[] load(String key) throws Exception {
+                        throw new IllegalStateException("Failed.");
+                    }
+                });
+                Assert.fail("The failure of the loader is not thrown.");
+            } catch (IllegalStateException e) {
+                // DO NOTHING.
+            }
+            Assert.assertEquals(1, c.getStats().getLoadSuccessCount());
+            Assert.assertEquals(1, c.getStats().getLoadFailureCount());
+
+            c.setStatsEnabled(false);
+            Assert.assertEquals(0, c.getStats().getHitCount());
+        }
+
+        // The tiered cache times the gets by the tier serving them.
+        IPicoTieredCache t = PicoCacheFactory.createTiered(PicoCacheFactory.STRATEGY_LRU,
+                PicoCacheFactory.STRATEGY_LRU);
+        t.clear();
+        t.setMemoryCacheSize(50);
+        t.setFileCacheSize(1024);
+        t.setStatsEnabled(true);
+        t.put("key1", data20kb_1);
+        t.put("key2", data20kb_2);
+        t.put("key3", data20kb_3);
+        Assert.assertNotNull(t.get("key1"));
+        Assert.assertNotNull(t.get("key1"));
+
+        IPicoCacheStats stats = t.getStats();
+        Assert.assertEquals(3, stats.getPutCount());
+        Assert.assertEquals(2, stats.getHitCount());
+        Assert.assertEquals(1, stats.getLatencyCount(IPicoCacheStats.OP_GET,
+                IPicoCacheStats.BACKEND_FILE));
+        Assert.assertEquals(1, stats.getLatencyCount(IPicoCacheStats.OP_GET,
+                IPicoCacheStats.BACKEND_MEMORY));
+
+        // A demotion is not an eviction.
+        Assert.assertEquals(0, stats.getEvictionCount());
+        t.clear();
+        t.close();
+    }
+
+    @Test
+    public void Case27() {
+        System.out.printf("Case: Zero-copy read of pinned data\n");
+
+        final IPicoReader<byte[]> copier = new IPicoReader<byte[]>() {
+            @Override
+            public byte[] read(String key, ByteBuffer data) {
+                byte[] copy = new byte[data.remaining()];
+                data.get(copy);
+                return copy;
+            }
+        };
+
+        int[] types = new int[] {PicoCacheFactory.TYPE_MEMORY, PicoCacheFactory.TYPE_OFFHEAP,
+                PicoCacheFactory.TYPE_FILE};
+        for (int i = 0; i < types.length + 2; ++i) {
+            final IPicoCache c = i < types.length ?
+                    PicoCacheFactory.create(types[i], PicoCacheFactory.STRATEGY_LRU) :
+                    i == types.length ?
+                            PicoCacheFactory.createLockFreeRead(PicoCacheFactory.TYPE_MEMORY, PicoCacheFactory.STRATEGY_LRU) :
+                            PicoCacheFactory.createConcurrent(PicoCacheFactory.TYPE_MEMORY, PicoCacheFactory.STRATEGY_LRU, 2);
+            c.clear();
+            c.setCacheSize(1024);
+            c.put("key1", data20kb_1);
+
+            Assert.assertTrue(Arrays.equals(data20kb_1, c.read("key1", copier)));
+            Assert.assertNull(c.read("missing", copier));
+
+            // The view is read-only.
+            Assert.assertTrue(c.read("key1", new IPicoReader<Boolean>() {
+                @Override
+                public Boolean read(String key, ByteBuffer data) {
+                    return data.isReadOnly();
+                }
+            }));
+
+            // The pinned data stays intact while the key is replaced and cleared.
+            byte[] read = c.read("key1", new IPicoReader<byte[]>() {
+                @Override
+                public byte[] read(String key, ByteBuffer data) {
+                    c.put(key, data20kb_2);
+                    c.put("key2", data20kb_3);
+                    c.clear();
+                    c.put(key, data20kb_2);
+                    return copier.read(key, data);
+                }
+            });
+            Assert.assertTrue(Arrays.equals(data20kb_1, read));
+            Assert.assertTrue(Arrays.equals(data20kb_2, c.get("key1")));
+
+            c.clear();
+            c.close();
+        }
+
+        // A pinned slab chunk is reused once unpinned.
+        IPicoCache c = PicoCacheFactory.create(PicoCacheFactory.TYPE_OFFHEAP, PicoCacheFactory.STRATEGY_LRU);
+        c.setCacheSize(1024);
+        for (int i = 0; i < 100; ++i) {
+            c.put("key" + i, data20kb_1);
+            Assert.assertTrue(Arrays.equals(data20kb_1, c.read("key" + i, copier)));
+        }
+        Assert.assertTrue(c.getSlabStats().getRequestedBytes() <= 1024 << 10);
+    }
+
+    @Test
+    public void Case28() {
+        System.out.printf("Case: Compression\n");
+
+        byte[] random = new byte[20 << 10];
+        new Random(28).nextBytes(random);
+
+        // Looks like a compressed frame but isn't.
+        byte[] fake = new byte[64];
+        fake[0] = (byte) 0x8a;
+        fake[1] = 'P';
+        fake[2] = 'Z';
+        fake[3] = 0x1a;
+        fake[4] = 1;
+
+        IPicoReader<byte[]> copier = new IPicoReader<byte[]>() {
+            @Override
+            public byte[] read(String key, ByteBuffer data) {
+                byte[] copy = new byte[data.remaining()];
+                data.get(copy);
+                return copy;
+            }
+        };
+
+        int[] types = new int[] {PicoCacheFactory.TYPE_MEMORY, PicoCacheFactory.TYPE_OFFHEAP,
+                PicoCacheFactory.TYPE_FILE};
+        for (int i = 0; i < types.length + 1; ++i) {
+            IPicoCache c = i < types.length ?
+                    PicoCacheFactory.create(types[i], PicoCacheFactory.STRATEGY_LRU) :
+                    PicoCacheFactory.createLockFreeRead(PicoCacheFactory.TYPE_MEMORY, PicoCacheFactory.STRATEGY_LRU);
+            c.clear();
+            c.setCacheSize(100);
+
+            // The raw data looking like a frame is kept intact either way.
+            c.put("fake", fake);
+            Assert.assertTrue(Arrays.equals(fake, c.get("fake")));
+
+            c.setCompressionEnabled(true);
+            c.put("fake", fake);
+            Assert.assertTrue(Arrays.equals(fake, c.get("fake")));
+            c.clear();
+
+            // The compressible data takes a fraction of the budget.
+            for (int j = 0; j < 20; ++j) {
+                c.put("key" + j, data50kb_1);
+            }
+            Assert.assertTrue(c.size() < 20 * (5 << 10));
+            for (int j = 0; j < 20; ++j) {
+                Assert.assertTrue(Arrays.equals(data50kb_1, c.get("key" + j)));
+            }
+            Assert.assertTrue(Arrays.equals(data50kb_1, c.read("key1", copier)));
+            Assert.assertEquals(50 << 10, c.getBuffer("key2").remaining());
+            Map<String, byte[]> all = c.getAll(Arrays.asList("key3", "key4"));
+            Assert.assertTrue(Arrays.equals(data50kb_1, all.get("key4")));
+
+            // The incompressible data is kept raw.
+            c.clear();
+            c.put("random", random);
+            Assert.assertTrue(c.size() >= 20 << 10);
+            Assert.assertTrue(Arrays.equals(random, c.get("random")));
+
+            // The data put before turning it off is still readable.
+            c.put("key1", data50kb_2);
+            c.setCompressionEnabled(false);
+            Assert.assertTrue(Arrays.equals(data50kb_2, c.get("key1")));
+            c.put("key2", data50kb_3);
+            Assert.assertTrue(c.size() >= (20 << 10) + (50 << 10));
+            Assert.assertTrue(Arrays.equals(data50kb_3, c.get("key2")));
+
+            c.clear();
+            c.close();
+        }
+
+        // The compressed data is demoted as it is.
+        IPicoTieredCache t = PicoCacheFactory.createTiered(PicoCacheFactory.STRATEGY_LRU,
+                PicoCacheFactory.STRATEGY_LRU);
+        t.clear();
+        t.setCompressionEnabled(true);
+        t.setMemoryCacheSize(64);
+        t.setFileCacheSize(1024);
+        for (int j = 0; j < 1000; ++j) {
+            t.put("key" + j, data50kb_1);
+        }
+        Assert.assertTrue(t.fileSize() > 0);
+        Assert.assertTrue(t.size() < 1000 * (1 << 10));
+        for (int j = 0; j < 1000; ++j) {
+            Assert.assertTrue(Arrays.equals(data50kb_1, t.get("key" + j)));
+        }
+
+        // The raw data looking like a frame is read off the file tier as it is.
+        final byte[] framed = new byte[4 << 10];
+        framed[0] = (byte) 0x8a;
+        framed[1] = 'P';
+        framed[2] = 'Z';
+        framed[3] = 0x1a;
+        t.setCompressionEnabled(false);
+        t.setMemoryCacheSize(1);
+        t.put("framed", framed);
+        Assert.assertTrue(Arrays.equals(framed, t.get("framed")));
+        Assert.assertEquals(Boolean.TRUE, t.read("framed", new IPicoReader<Boolean>() {
+            @Override
+            public Boolean read(String key, ByteBuffer data) {
+                return ByteBuffer.wrap(framed).equals(data);
+            }
+        }));
+        t.clear();
+        t.close();
+    }
+
+    @Test
+    public void Case29() {
+        System.out.printf("Case: Deduplication of identical data\n");
+
+        IPicoCache[] caches = new IPicoCache[] {
+                PicoCacheFactory.create(PicoCacheFactory.TYPE_MEMORY, PicoCacheFactory.STRATEGY_LRU),
+                PicoCacheFactory.create(PicoCacheFactory.TYPE_OFFHEAP, PicoCacheFactory.STRATEGY_LRU),
+                PicoCacheFactory.createLockFreeRead(PicoCacheFactory.TYPE_MEMORY, PicoCacheFactory.STRATEGY_LRU)
+        };
+
+        for (IPicoCache c : caches) {
+            c.setCacheSize(200);
+            c.setDedupEnabled(true);
+
+            // The same data under many keys counts once.
+            c.put("key0", data50kb_1);
+            long unique = c.size();
+            for (int i = 1; i < 50; ++i) {
+                c.put("key" + i, data50kb_1);
+            }
+            Assert.assertEquals(unique, c.size());
+            for (int i = 0; i < 50; ++i) {
+                Assert.assertTrue(Arrays.equals(data50kb_1, c.get("key" + i)));
+            }
+
+            // The owner goes away, the next key takes the data over.
+            c.put("key0", data50kb_2);
+            Assert.assertEquals(2 * unique, c.size());
+            Assert.assertTrue(Arrays.equals(data50kb_2, c.get("key0")));
+            Assert.assertTrue(Arrays.equals(data50kb_1, c.get("key1")));
+
+            // Trimmed to the unique data.
+            c.put("other1", data90kb_1);
+            c.put("other2", data90kb_2);
+            Assert.assertTrue(c.size() <= 200 << 10);
+            Assert.assertTrue(Arrays.equals(data90kb_2, c.get("other2")));
+            for (int i = 0; i < 50; ++i) {
+                byte[] data = c.get("key" + i);
+                Assert.assertTrue(data == null || Arrays.equals(i == 0 ? data50kb_2 : data50kb_1, data));
+            }
+
+            // The data put after turning it off is not shared.
+            c.clear();
+            Assert.assertEquals(0, c.size());
+            c.setDedupEnabled(false);
+            c.put("key0", data20kb_1);
+            c.put("key1", data20kb_1);
+            Assert.assertTrue(c.size() >= 2 * (20 << 10));
+        }
+
+        // The file caches keep a copy per key.
+        IPicoCache f = PicoCacheFactory.create(PicoCacheFactory.TYPE_FILE, PicoCacheFactory.STRATEGY_LRU);
+        f.clear();
+        f.setCacheSize(1024);
+        f.setDedupEnabled(true);
+        f.put("key0", data20kb_1);
+        f.put("key1", data20kb_1);
+        Assert.assertEquals(2 * (20 << 10), f.size());
+        f.clear();
+        f.close();
+    }
+
+    @Test
+    public void Case30() throws Exception {
+        System.out.printf("Case: Streaming put and get\n");
+
+        byte[] large = new byte[3 << 20];
+        new Random(30).nextBytes(large);
+
+        // Raw data looking like a compressed frame.
+        byte[] framed = Arrays.copyOf(data20kb_1, data20kb_1.length);
+        framed[0] = (byte) 0x8a;
+        framed[1] = 'P';
+        framed[2] = 'Z';
+        framed[3] = 0x1a;
+        framed[4] = 1;
+
+        // Create the file caches one by one, they share the same directory.
+        for (int i = 0; i < 6; ++i) {
+            IPicoCache c;
+            switch (i) {
+                case 0:
+                    c = PicoCacheFactory.create(PicoCacheFactory.TYPE_FILE, PicoCacheFactory.STRATEGY_LRU);
+                    break;
+                case 1:
+                    c = PicoCacheFactory.createWriteBehind(PicoCacheFactory.STRATEGY_LRU, 64);
+                    break;
+                case 2:
+                    c = PicoCacheFactory.createTiered(PicoCacheFactory.STRATEGY_LRU, PicoCacheFactory.STRATEGY_LRU);
+                    break;
+                case 3:
+                    c = PicoCacheFactory.create(PicoCacheFactory.TYPE_MEMORY, PicoCacheFactory.STRATEGY_LRU);
+                    break;
+                case 4:
+                    c = PicoCacheFactory.create(PicoCacheFactory.TYPE_OFFHEAP, PicoCacheFactory.STRATEGY_LRU);
+                    break;
+                default:
+                    c = PicoCacheFactory.createLockFreeRead(PicoCacheFactory.TYPE_MEMORY, PicoCacheFactory.STRATEGY_LRU);
+                    break;
+            }
+            c.clear();
+            c.setCacheSize(8 << 10);
+
+            // Written and read in pieces smaller than a chunk.
+            writeInPieces(c, "large", large, 1000);
+            Assert.assertTrue(Arrays.equals(large, readInPieces(c, "large", 777)));
+            Assert.assertTrue(Arrays.equals(large, c.get("large")));
+
+            // Replaced by a stream.
+            c.put("key", data20kb_1);
+            writeInPieces(c, "key", data20kb_2, 4096);
+            Assert.assertTrue(Arrays.equals(data20kb_2, c.get("key")));
+
+            // The raw data looking like a frame is read back as it is.
+            writeInPieces(c, "framed", framed, 100);
+            Assert.assertTrue(Arrays.equals(framed, c.get("framed")));
+            Assert.assertTrue(Arrays.equals(framed, readInPieces(c, "framed", 100)));
+
+            // The compressed data is inflated while being read.
+            byte[] text = new byte[100 << 10];
+            Arrays.fill(text, (byte) 'a');
+            c.setCompressionEnabled(true);
+            c.put("text", text);
+            Assert.assertTrue(Arrays.equals(text, readInPieces(c, "text", 1000)));
+            c.setCompressionEnabled(false);
+
+            // Nothing is put for an empty stream.
+            c.openOutputStream("empty").close();
+            Assert.assertNull(c.get("empty"));
+            Assert.assertNull(c.openInputStream("empty"));
+
+            c.clear();
+            c.close();
+        }
+
+        // The stream of a file entry fails once the entry is replaced.
+        IPicoCache f = PicoCacheFactory.create(PicoCacheFactory.TYPE_FILE, PicoCacheFactory.STRATEGY_LRU);
+        f.clear();
+        f.setCacheSize(8 << 10);
+        f.put("key", data90kb_1);
+        InputStream in = f.openInputStream("key");
+        Assert.assertTrue(in.read() >= 0);
+        f.put("key", data90kb_2);
+        try {
+            while (in.read(new byte[1024]) >= 0) {
+                // Keep reading.
+            }
+            Assert.fail("The replaced entry is still read.");
+        } catch (IOException e) {
+            // Expected.
+        } finally {
+            in.close();
+        }
+        Assert.assertTrue(Arrays.equals(data90kb_2, readInPieces(f, "key", 4096)));
+        f.clear();
+        f.close();
+    }
+
+    @Test
+    public void Case31() {
+        System.out.printf("Case: Pooled buffers\n");
+
+        // Create the file caches one by one, they share the same directory.
+        for (int i = 0; i < 5; ++i) {
+            IPicoCache c;
+            switch (i) {
+                case 0:
+                    c = PicoCacheFactory.create(PicoCacheFactory.TYPE_FILE, PicoCacheFactory.STRATEGY_LRU);
+                    break;
+                case 1:
+                    c = PicoCacheFactory.createTiered(PicoCacheFactory.STRATEGY_LRU, PicoCacheFactory.STRATEGY_LRU);
+                    break;
+                case 2:
+                    c = PicoCacheFactory.create(PicoCacheFactory.TYPE_MEMORY, PicoCacheFactory.STRATEGY_LRU);
+                    break;
+                case 3:
+                    c = PicoCacheFactory.create(PicoCacheFactory.TYPE_OFFHEAP, PicoCacheFactory.STRATEGY_LRU);
+                    break;
+                default:
+                    c = PicoCacheFactory.createLockFreeRead(PicoCacheFactory.TYPE_MEMORY, PicoCacheFactory.STRATEGY_LRU);
+                    break;
+            }
+            c.clear();
+            c.setCacheSize(1024);
+
+            Assert.assertNull(c.getPooled("key"));
+
+            c.put("key", data50kb_1);
+            IPicoBuffer buffer = c.getPooled("key");
+            Assert.assertEquals(data50kb_1.length, buffer.buffer().remaining());
+            Assert.assertTrue(Arrays.equals(data50kb_1, toArray(buffer.buffer())));
+
+            // The released buffer is reused.
+            ByteBuffer first = buffer.buffer();
+            buffer.release();
+            buffer.release();
+            buffer = c.getPooled("key");
+            Assert.assertSame(first, buffer.buffer());
+            buffer.release();
+            try {
+                buffer.buffer();
+                Assert.fail("The released buffer is still handed out.");
+            } catch (IllegalStateException e) {
+                // Expected.
+            }
+
+            // The compressed data is decoded.
+            byte[] text = new byte[20 << 10];
+            Arrays.fill(text, (byte) 'a');
+            c.setCompressionEnabled(true);
+            c.put("text", text);
+            buffer = c.getPooled("text");
+            Assert.assertTrue(Arrays.equals(text, toArray(buffer.buffer())));
+            buffer.release();
+            c.setCompressionEnabled(false);
+
+            // The direct buffers.
+            c.setDirectBuffersEnabled(true);
+            buffer = c.getPooled("key");
+            Assert.assertTrue(buffer.buffer().isDirect());
+            Assert.assertTrue(Arrays.equals(data50kb_1, toArray(buffer.buffer())));
+            buffer.release();
+            c.setDirectBuffersEnabled(false);
+
+            c.clear();
+            c.close();
+        }
+    }
+
+    private byte[] toArray(ByteBuffer buffer) {
+        byte[] array = new byte[buffer.remaining()];
+        buffer.duplicate().get(array);
+        return array;
+    }
+
+    @Test
+    public void Case32() throws Exception {
+        System.out.printf("Case: Sampled eviction\n");
+
+        IPicoCache c = PicoCacheFactory.create(PicoCacheFactory.TYPE_MEMORY, PicoCacheFactory.STRATEGY_SAMPLED);
+        byte[] data = new byte[1024];
+
+        // Few nodes are all sampled, so it's the exact LRU.
+        c.setCacheSize(3);
+        c.put("key1", data);
+        c.put("key2", data);
+        c.put("key3", data);
+        Assert.assertNotNull(c.get("key1"));
+        c.put("key4", data);
+        Assert.assertNull(c.get("key2"));
+        Assert.assertNotNull(c.get("key1"));
+        Assert.assertNotNull(c.get("key3"));
+        Assert.assertNotNull(c.get("key4"));
+
+        // The recently used half survives the most.
+        c.clear();
+        c.setCacheSize(1000);
+        for (int i = 0; i < 1000; ++i) {
+            c.put("key" + i, data);
+        }
+        for (int i = 0; i < 500; ++i) {
+            Assert.assertNotNull(c.get("key" + i));
+        }
+        for (int i = 1000; i < 1500; ++i) {
+            c.put("key" + i, data);
+        }
+        Assert.assertTrue(c.size() <= 1000 << 10);
+
+        int hot = 0;
+        int cold = 0;
+        for (int i = 0; i < 500; ++i) {
+            hot += c.get("key" + i) != null ? 1 : 0;
+            cold += c.get("key" + (i + 500)) != null ? 1 : 0;
+        }
+        Assert.assertTrue(hot > 2 * cold);
+
+        // Removed and replaced nodes keep the table consistent.
+        for (int i = 0; i < 1500; i += 3) {
+            c.put("key" + i, data, 1);
+        }
+        Thread.sleep(10);
+        for (int i = 0; i < 1500; i += 3) {
+            Assert.assertNull(c.get("key" + i));
+        }
+        for (int i = 0; i < 3000; ++i) {
+            c.put("key" + (i % 1700), data);
+            Assert.assertTrue(c.size() <= 1000 << 10);
+        }
+        int recent = 0;
+        for (int i = 1000; i < 1300; ++i) {
+            recent += c.get("key" + i) != null ? 1 : 0;
+        }
+        Assert.assertTrue(recent > 270);
+        c.clear();
+        Assert.assertEquals(0, c.size());
+    }
+
+    @Test
+    public void Case33() throws Exception {
+        System.out.printf("Case: Compact store\n");
+
+        IPicoCache c = PicoCacheFactory.createCompact(PicoCacheFactory.TYPE_MEMORY);
+        byte[] data = new byte[1024];
+        Arrays.fill(data, (byte) 7);
+
+        // Put, replace and get.
+        c.setStatsEnabled(true);
+        c.setCacheSize(3);
+        c.put("key1", data);
+        c.put("key1", new byte[]{1, 2, 3});
+        Assert.assertTrue(Arrays.equals(new byte[]{1, 2, 3}, c.get("key1")));
+        Assert.assertEquals(3, c.size());
+        Assert.assertNull(c.get("key0"));
+        Assert.assertEquals(2, c.getStats().getPutCount());
+        Assert.assertEquals(1, c.getStats().getReplaceCount());
+        Assert.assertEquals(1, c.getStats().getHitCount());
+        Assert.assertEquals(1, c.getStats().getMissCount());
+
+        // Few entries are all sampled, so it's the exact LRU.
+        c.clear();
+        c.put("key1", data);
+        c.put("key2", data);
+        c.put("key3", data);
+        Assert.assertNotNull(c.get("key1"));
+        c.put("key4", data);
+        Assert.assertNull(c.get("key2"));
+        Assert.assertTrue(Arrays.equals(data, c.get("key1")));
+        Assert.assertTrue(Arrays.equals(data, c.get("key3")));
+        Assert.assertTrue(Arrays.equals(data, c.get("key4")));
+        Assert.assertEquals(1, c.getStats().getEvictionCount());
+
+        // The views, the streams and the pooled copies.
+        Assert.assertEquals(ByteBuffer.wrap(data), c.getBuffer("key1"));
+        Assert.assertEquals(Integer.valueOf(1024), c.read("key1", new IPicoReader<Integer>() {
+            @Override
+            public Integer read(String key, ByteBuffer data) {
+                return data.remaining();
+            }
+        }));
+        IPicoBuffer pooled = c.getPooled("key3");
+        Assert.assertEquals(ByteBuffer.wrap(data), pooled.buffer());
+        pooled.release();
+        c.clear();
+        c.setCacheSize(1024);
+        byte[] large = new byte[300 << 10];
+        new Random(33).nextBytes(large);
+        writeInPieces(c, "large", large, 1000);
+        Assert.assertTrue(Arrays.equals(large, readInPieces(c, "large", 777)));
+        Assert.assertTrue(Arrays.equals(large, c.get("large")));
+
+        // Compressed, batched and weighed.
+        c.setCompressionEnabled(true);
+        c.put("zip", data);
+        Assert.assertTrue(c.size() < (300 << 10) + 1024);
+        Assert.assertTrue(Arrays.equals(data, c.get("zip")));
+        c.setCompressionEnabled(false);
+        Map<String, byte[]> entries = new HashMap<>();
+        entries.put("a", data);
+        entries.put("b", data);
+        c.putAll(entries);
+        Assert.assertEquals(3, c.getAll(Arrays.asList("a", "b", "c", "zip")).size());
+        c.setWeigher(new IPicoWeigher() {
+            @Override
+            public long weigh(String key, int size) {
+                return size * 4;
+            }
+        });
+        Assert.assertNull(c.get("large"));
+        Assert.assertTrue(c.size() <= 1024 << 10);
+        Assert.assertTrue(Arrays.equals(data, c.get("a")));
+        c.setWeigher(null);
+
+        // Expired entries are dropped.
+        c.put("ttl", data, 1);
+        c.setExpireAfterAccess(5);
+        c.put("idle", data);
+        Thread.sleep(20);
+        Assert.assertNull(c.get("ttl"));
+        Assert.assertNull(c.get("idle"));
+        c.setExpireAfterAccess(0);
+
+        // Many entries through the growth, the removals and the compaction of the arena.
+        c.clear();
+        c.setCacheSize(1000);
+        for (int i = 0; i < 1000; ++i) {
+            c.put("key" + i, data);
+        }
+        for (int i = 0; i < 500; ++i) {
+            Assert.assertNotNull(c.get("key" + i));
+        }
+        for (int i = 1000; i < 1500; ++i) {
+            c.put("key" + i, data);
+        }
+        Assert.assertTrue(c.size() <= 1000 << 10);
+
+        int hot = 0;
+        int cold = 0;
+        for (int i = 0; i < 500; ++i) {
+            hot += c.get("key" + i) != null ? 1 : 0;
+            cold += c.get("key" + (i + 500)) != null ? 1 : 0;
+        }
+        Assert.assertTrue(hot > 2 * cold);
+
+        for (int i = 0; i < 4000; ++i) {
+            data[0] = (byte) i;
+            c.put("key" + (i % 900), data);
+        }
+        int churned = 0;
+        for (int i = 3100; i < 4000; ++i) {
+            data[0] = (byte) i;
+            byte[] value = c.get("key" + (i % 900));
+            Assert.assertTrue(value == null || Arrays.equals(data, value));
+            churned += value != null ? 1 : 0;
+        }
+        Assert.assertTrue(churned > 850);
+        for (int i = 0; i < 5000; ++i) {
+            byte[] value = ("value" + i).getBytes();
+            c.put("key" + (i % 1700), value);
+            Assert.assertTrue(Arrays.equals(value, c.get("key" + (i % 1700))));
+            Assert.assertTrue(c.size() <= 1000 << 10);
+        }
+        for (int i = 0; i < 1700; ++i) {
+            int last = i < 1600 ? 3400 + i : 1700 + i;
+            Assert.assertTrue(Arrays.equals(("value" + last).getBytes(), c.get("key" + i)));
+        }
+        c.clear();
+        Assert.assertEquals(0, c.size());
+        Assert.assertNull(c.get("key1"));
+    }
+
+    private void writeInPieces(IPicoCache c, String key, byte[] data, int piece) throws IOException {
+        OutputStream out = c.openOutputStream(key);
+        for (int i = 0; i < data.length; i += piece) {
+            out.write(data, i, Math.min(piece, data.length - i));
+        }
+        out.close();
+    }
+
+    private byte[] readInPieces(IPicoCache c, String key, int piece) throws IOException {
+        InputStream in = c.openInputStream(key);
+        if (in == null) {
+            return null;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[piece];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+
+        return out.toByteArray();
+    }
+
+    private int countCacheFiles(File dir) {
+        String[] names = dir.list();
+        int count = 0;
+
+        if (names != null) {
+            for (String name : names) {
+                if (name.matches("picocache-\\d+\\.seg")) {
+                    ++count;
+                }
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Run 90% get and 10% put over 1024 keys from the given number of threads.
+     * @return The operations per millisecond.
+     */
+    private long measureThroughput(final IPicoCache c, int threads) throws Exception {
+        final byte[] data = new byte[256];
+        final int opsPerThread = 200000;
+        final AtomicInteger failures = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+
+        for (int i = 0; i < threads; ++i) {
+            final int seed = i;
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Random random = new Random(seed);
+                        start.await();
+                        for (int j = 0; j < opsPerThread; ++j) {
+                            String key = "key" + random.nextInt(1024);
+                            if (random.nextInt(10) == 0) {
+                                c.put(key, data);
+                            } else {
+                                c.get(key);
+                            }
+                        }
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+            workers[i].start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = Math.max(1, (System.nanoTime() - begin) / 1000000);
+
+        Assert.assertEquals(0, failures.get());
+        return (long) threads * opsPerThread / elapsed;
+    }
+
+    private long measureGetLatency(int count) {
+        final byte[] data = new byte[16];
+        final int rounds = 200000;
+        IPicoCache c = PicoCacheFactory.create(PicoCacheFactory.TYPE_MEMORY, PicoCacheFactory.STRATEGY_FIFO);
+        c.setCacheSize(1 << 20);
+        for (int i = 0; i < count; ++i) {
+            c.put("key" + i, data);
+        }
+
+        String[] keys = new String[count];
+        for (int i = 0; i < count; ++i) {
+            keys[i] = "key" + i;
+        }
+
+        // Warm up.
+        for (int i = 0; i < rounds; ++i) {
+            c.get(keys[i % count]);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; ++i) {
+            Assert.assertNotNull(c.get(keys[i % count]));
+        }
+        return Math.max(1, (System.nanoTime() - start) / rounds);
     }
 }
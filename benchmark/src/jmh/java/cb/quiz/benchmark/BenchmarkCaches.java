@@ -0,0 +1,49 @@
+package cb.quiz.benchmark;
+
+import cb.quiz.picocache.factory.PicoCacheFactory;
+
+/**
+ * Map the names used in the @Param of the benchmarks to the PicoCacheFactory constants.
+ */
+final class BenchmarkCaches {
+
+    private BenchmarkCaches() {
+        throw new RuntimeException("Cannot be constructed!");
+    }
+
+    static int type(String name) {
+        switch (name) {
+            case "MEMORY":
+                return PicoCacheFactory.TYPE_MEMORY;
+            case "FILE":
+                return PicoCacheFactory.TYPE_FILE;
+        }
+
+        throw new IllegalArgumentException("Unknown cache type " + name);
+    }
+
+    static int strategy(String name) {
+        switch (name) {
+            case "FIFO":
+                return PicoCacheFactory.STRATEGY_FIFO;
+            case "LIFO":
+                return PicoCacheFactory.STRATEGY_LIFO;
+            case "LRU":
+                return PicoCacheFactory.STRATEGY_LRU;
+            case "LFU":
+                return PicoCacheFactory.STRATEGY_LFU;
+            case "TINYLFU":
+                return PicoCacheFactory.STRATEGY_TINYLFU;
+        }
+
+        throw new IllegalArgumentException("Unknown cache strategy " + name);
+    }
+
+    /**
+     * @return The cache size in KB holding the given number of entries.
+     */
+    static int sizeInKb(int entries, int payload) {
+        long bytes = (long) entries * payload;
+        return (int) Math.max(1, (bytes + 1023) >> 10);
+    }
+}
@@ -0,0 +1,104 @@
+package cb.quiz.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import cb.quiz.picocache.iface.IPicoCache;
+import cb.quiz.picocache.factory.PicoCacheFactory;
+
+/**
+ * Single-threaded latency of IPicoCache get/put on the hit and miss paths.
+ *
+ * The cache is filled with exactly the given number of entries and sized to hold them, so the
+ * put of a key which is not in the cache always evicts one entry.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class PicoCacheBenchmark {
+
+    @Param({"MEMORY", "FILE"})
+    public String type;
+
+    @Param({"FIFO", "LIFO", "LRU", "LFU", "TINYLFU"})
+    public String strategy;
+
+    @Param({"1000", "10000"})
+    public int entries;
+
+    @Param({"64", "4096", "65536"})
+    public int payload;
+
+    private IPicoCache mCache;
+
+    // The keys in the cache.
+    private String[] mKeys;
+
+    // The keys never put into the cache.
+    private String[] mMissingKeys;
+
+    private byte[] mData;
+
+    private int mNext = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mCache = PicoCacheFactory.create(BenchmarkCaches.type(type),
+                BenchmarkCaches.strategy(strategy));
+        mCache.setCacheSize(BenchmarkCaches.sizeInKb(entries, payload));
+
+        mData = new byte[payload];
+        Arrays.fill(mData, (byte) 1);
+
+        mKeys = new String[entries];
+        mMissingKeys = new String[entries];
+        for (int i = 0; i < entries; ++i) {
+            mKeys[i] = "https://example.com/images/" + i + ".png";
+            mMissingKeys[i] = "https://example.com/missing/" + i + ".png";
+
+            mCache.put(mKeys[i], mData);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mCache.clear();
+    }
+
+    @Benchmark
+    public byte[] getHit() {
+        return mCache.get(mKeys[next()]);
+    }
+
+    @Benchmark
+    public byte[] getMiss() {
+        return mCache.get(mMissingKeys[next()]);
+    }
+
+    @Benchmark
+    public void putReplace() {
+        mCache.put(mKeys[next()], mData);
+    }
+
+    @Benchmark
+    public void putEvict() {
+        // Alternate the two key sets so that the put key is (mostly) not in the cache.
+        int i = next();
+        mCache.put((mNext / entries) % 2 == 0 ? mMissingKeys[i] : mKeys[i], mData);
+    }
+
+    private int next() {
+        return (mNext++ & Integer.MAX_VALUE) % entries;
+    }
+}
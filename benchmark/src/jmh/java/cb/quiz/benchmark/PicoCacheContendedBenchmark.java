@@ -0,0 +1,102 @@
+package cb.quiz.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import cb.quiz.picocache.iface.IPicoCache;
+import cb.quiz.picocache.factory.PicoCacheFactory;
+
+/**
+ * Throughput of a memory cache shared by many threads: 7 readers and 1 writer per group.
+ * Use -t/-tg of JMH (or the jmh.threads option) to scale the number of groups.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Group)
+public class PicoCacheContendedBenchmark {
+
+    private static final int ENTRIES = 4096;
+    private static final int PAYLOAD = 1024;
+
+    @Param({"STORE", "STRIPED", "LOCK_FREE_READ"})
+    public String impl;
+
+    @Param({"FIFO", "LIFO"})
+    public String strategy;
+
+    private IPicoCache mCache;
+
+    private String[] mKeys;
+
+    private byte[] mData;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private final Random mRandom = new Random();
+
+        int next() {
+            return mRandom.nextInt(ENTRIES);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        int cacheStrategy = BenchmarkCaches.strategy(strategy);
+
+        switch (impl) {
+            case "STRIPED":
+                mCache = PicoCacheFactory.createConcurrent(PicoCacheFactory.TYPE_MEMORY,
+                        cacheStrategy, Runtime.getRuntime().availableProcessors());
+                break;
+            case "LOCK_FREE_READ":
+                mCache = PicoCacheFactory.createLockFreeRead(PicoCacheFactory.TYPE_MEMORY,
+                        cacheStrategy);
+                break;
+            default:
+                mCache = PicoCacheFactory.create(PicoCacheFactory.TYPE_MEMORY, cacheStrategy);
+                break;
+        }
+
+        // Hold 3/4 of the keys so that there're both hits and misses.
+        mCache.setCacheSize(BenchmarkCaches.sizeInKb(ENTRIES * 3 / 4, PAYLOAD));
+
+        mData = new byte[PAYLOAD];
+        mKeys = new String[ENTRIES];
+        for (int i = 0; i < ENTRIES; ++i) {
+            mKeys[i] = "https://example.com/images/" + i + ".png";
+            mCache.put(mKeys[i], mData);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mCache.clear();
+    }
+
+    @Benchmark
+    @Group("readHeavy")
+    @GroupThreads(7)
+    public byte[] get(Cursor cursor) {
+        return mCache.get(mKeys[cursor.next()]);
+    }
+
+    @Benchmark
+    @Group("readHeavy")
+    @GroupThreads(1)
+    public void put(Cursor cursor) {
+        mCache.put(mKeys[cursor.next()], mData);
+    }
+}
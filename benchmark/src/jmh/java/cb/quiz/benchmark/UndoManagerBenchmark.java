@@ -0,0 +1,60 @@
+package cb.quiz.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+import cb.quiz.undomanager.UndoManager;
+
+/**
+ * Latency of UndoManager add/undo/redo with a full history of the given depth.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class UndoManagerBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    public int history;
+
+    private UndoManager mManager;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mManager = new UndoManager(0, history);
+
+        for (int i = 0; i < history; ++i) {
+            mManager.add(1);
+        }
+    }
+
+    @Benchmark
+    public int add() {
+        // The history is full, so every add also drops the oldest task.
+        mManager.add(1);
+        return mManager.getNumber();
+    }
+
+    @Benchmark
+    public int undoRedo() {
+        mManager.undo();
+        mManager.redo();
+        return mManager.getNumber();
+    }
+
+    @Benchmark
+    public int undoThenAdd() {
+        // Adding after an undo drops the redo tail.
+        mManager.undo();
+        mManager.add(1);
+        return mManager.getNumber();
+    }
+}